@@ -0,0 +1,167 @@
+package ibis.ipl.apps.cell1d;
+
+// File: $Id$
+
+/**
+ * Conway's game of Life on bit-packed columns: cell j of a column is bit
+ * (j % 64) of word j/64 of a <code>long[]</code>, so a column of
+ * boardsize+2 cells takes (boardsize+2)/8 bytes instead of boardsize+2,
+ * and a border column is sent in 8 times fewer bytes.
+ *
+ * The next states of a column are computed 64 cells at a time. The up and
+ * down neighbours of all cells of a word are the word shifted by one bit,
+ * with the bit that crosses into the adjacent word; the 8 neighbour words
+ * are added with bit-sliced full adders into a count per cell.
+ *
+ * As in the byte version, rows 0 and boardsize+1 are a border that is
+ * always empty.
+ */
+final class BitLife {
+    /** Protect constructor since it is a static only class. */
+    private BitLife() {}
+
+    /** Returns the number of words of a column of a board of the given size. */
+    static int words( int boardsize )
+    {
+        return (boardsize+2+63)/64;
+    }
+
+    /** Returns the mask of the words of a column with the bits of rows 1..boardsize set. */
+    static long[] rowMask( int boardsize )
+    {
+        long mask[] = new long[words( boardsize )];
+
+        for( int j=1; j<=boardsize; j++ ){
+            mask[j>>>6] |= 1L << j;
+        }
+        return mask;
+    }
+
+    /** Packs the byte column <code>col</code> into <code>bits</code>. */
+    static void pack( byte col[], long bits[] )
+    {
+        java.util.Arrays.fill( bits, 0L );
+        for( int j=0; j<col.length; j++ ){
+            if( col[j] != 0 ){
+                bits[j>>>6] |= 1L << j;
+            }
+        }
+    }
+
+    /** Unpacks <code>bits</code> into the byte column <code>col</code>. */
+    static void unpack( long bits[], byte col[] )
+    {
+        for( int j=0; j<col.length; j++ ){
+            col[j] = (byte) ((bits[j>>>6] >>> j) & 1);
+        }
+    }
+
+    /**
+     * Given the previous, current and next column, computes the next
+     * state of the current column into <code>out</code>.
+     */
+    static void computeNextColumn( long prev[], long curr[], long next[], long out[], long mask[] )
+    {
+        // The words before and after the current word, and that word.
+        long pb = 0, cb = 0, nb = 0;
+        long pw = prev[0], cw = curr[0], nw = next[0];
+
+        for( int w=0; w<out.length; w++ ){
+            long pa = 0, ca = 0, na = 0;
+
+            if( w+1<out.length ){
+                pa = prev[w+1];
+                ca = curr[w+1];
+                na = next[w+1];
+            }
+
+            // u=up (row j-1), d=down (row j+1).
+            long pu = (pw << 1) | (pb >>> 63);
+            long pd = (pw >>> 1) | (pa << 63);
+            long cu = (cw << 1) | (cb >>> 63);
+            long cd = (cw >>> 1) | (ca << 63);
+            long nu = (nw << 1) | (nb >>> 63);
+            long nd = (nw >>> 1) | (na << 63);
+
+            // Add up the previous column, and the next column.
+            long ps = pu ^ pw ^ pd;
+            long pc = (pu & pw) | (pd & (pu ^ pw));
+            long ns = nu ^ nw ^ nd;
+            long nc = (nu & nw) | (nd & (nu ^ nw));
+            // And the up and down neighbours in this column.
+            long cs = cu ^ cd;
+            long cc = cu & cd;
+
+            // The ones of the count...
+            long ones = ps ^ ns ^ cs;
+            long onesCarry = (ps & ns) | (cs & (ps ^ ns));
+            // ... the twos, and whether there are fours or more.
+            long t = pc ^ nc ^ cc;
+            long tc = (pc & nc) | (cc & (pc ^ nc));
+            long twos = t ^ onesCarry;
+            long fours = tc | (t & onesCarry);
+
+            // Alive with 3 neighbours, or with 2 if we were alive already.
+            out[w] = twos & (ones | cw) & ~fours & mask[w];
+
+            pb = pw; cb = cw; nb = nw;
+            pw = pa; cw = ca; nw = na;
+        }
+    }
+
+    /**
+     * Runs <code>generations</code> generations on a random board of
+     * <code>boardsize</code> x <code>columns</code> cells with both
+     * this kernel and the byte kernel of {@link Life}, and returns true
+     * iff they agree on every cell after every generation.
+     */
+    static boolean crossCheck( int boardsize, int columns, int generations )
+    {
+        java.util.Random r = new java.util.Random( 42 );
+        long mask[] = rowMask( boardsize );
+        byte board[][] = new byte[columns+2][boardsize+2];
+        long bits[][] = new long[columns+2][words( boardsize )];
+
+        for( int i=1; i<=columns; i++ ){
+            for( int j=1; j<=boardsize; j++ ){
+                board[i][j] = (byte) (r.nextInt( 3 ) == 0 ? 1 : 0);
+            }
+            pack( board[i], bits[i] );
+        }
+
+        byte col[] = new byte[boardsize+2];
+        for( int gen=0; gen<generations; gen++ ){
+            byte nextBoard[][] = new byte[columns+2][boardsize+2];
+            long nextBits[][] = new long[columns+2][words( boardsize )];
+
+            for( int i=1; i<=columns; i++ ){
+                byte prev[] = board[i-1];
+                byte curr[] = board[i];
+                byte next[] = board[i+1];
+
+                for( int j=1; j<=boardsize; j++ ){
+                    nextBoard[i][j] = Life.computeNextState(
+                        gen, i, j,
+                        prev[j-1], prev[j], prev[j+1],
+                        curr[j-1], curr[j], curr[j+1],
+                        next[j-1], next[j], next[j+1]
+                    );
+                }
+                computeNextColumn( bits[i-1], bits[i], bits[i+1], nextBits[i], mask );
+            }
+            board = nextBoard;
+            bits = nextBits;
+
+            for( int i=1; i<=columns; i++ ){
+                unpack( bits[i], col );
+                for( int j=0; j<col.length; j++ ){
+                    if( col[j] != board[i][j] ){
+                        System.out.println( "Generation " + gen + ": cell " + i + "," + j + " is " + col[j] + " in the bit board, but " + board[i][j] + " in the byte board" );
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,206 @@
+package ibis.ipl.apps.cell1d;
+
+// File: $Id$
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisConfigurationException;
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.Registry;
+import ibis.ipl.SendPort;
+
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.WeakHashMap;
+
+/**
+ * Ranks the processors of a closed-world pool and connects their ports.
+ * With totally ordered membership, the rank of a processor is its place
+ * in the order of the joins, which every processor sees the same, so no
+ * elections are needed. Without membership events, the processor elects
+ * until it wins its own rank, and looks up the higher ranks concurrently.
+ * The connections are queued while the ports are created, and made all
+ * at once, one thread per send port; a send port to several receivers
+ * connects to all of them in one call. This is the same bootstrap as the
+ * one of SOR.
+ */
+final class Bootstrap {
+    /** The number of threads that look up election results. */
+    private static final int RESOLVERS = 16;
+
+    /** The ranking of each Ibis, since the joins are reported only once. */
+    private static final WeakHashMap<Ibis, IbisIdentifier[]> rankings =
+        new WeakHashMap<Ibis, IbisIdentifier[]>();
+
+    private final Vector<SendPort> ports = new Vector<SendPort>();
+
+    private final HashMap<SendPort, HashMap<IbisIdentifier, String>> targets =
+        new HashMap<SendPort, HashMap<IbisIdentifier, String>>();
+
+    /** Returns the processors of the pool of <code>ibis</code>, in rank order. */
+    static IbisIdentifier[] rank( Ibis ibis )
+        throws java.io.IOException
+    {
+        synchronized( ibis ){
+            IbisIdentifier[] res;
+            synchronized( rankings ){
+                res = rankings.get( ibis );
+            }
+            if( res == null ){
+                res = joinOrder( ibis );
+                synchronized( rankings ){
+                    rankings.put( ibis, res );
+                }
+            }
+            return res;
+        }
+    }
+
+    private static IbisIdentifier[] joinOrder( Ibis ibis )
+        throws java.io.IOException
+    {
+        Registry registry = ibis.registry();
+        IbisIdentifier[] res = new IbisIdentifier[registry.getPoolSize()];
+
+        try {
+            registry.waitUntilPoolClosed();
+            int n = 0;
+            while( n<res.length ){
+                IbisIdentifier[] joined = registry.joinedIbises();
+                for( int i=0; i<joined.length && n<res.length; i++ ){
+                    res[n++] = joined[i];
+                }
+                if( joined.length == 0 ){
+                    sleep();
+                }
+            }
+        }
+        catch( IbisConfigurationException e ){
+            elect( ibis, res );
+        }
+        return res;
+    }
+
+    private static void elect( Ibis ibis, final IbisIdentifier[] res )
+        throws java.io.IOException
+    {
+        final Registry registry = ibis.registry();
+        int me = -1;
+
+        for( int i=0; i<res.length; i++ ){
+            res[i] = registry.elect( "" + i );
+            if( res[i].equals( ibis.identifier() ) ){
+                me = i;
+                break;
+            }
+        }
+
+        final int first = me+1;
+        final int stride = Math.min( RESOLVERS, res.length-first );
+        final java.io.IOException failure[] = new java.io.IOException[1];
+        Thread resolvers[] = new Thread[stride];
+        for( int t=0; t<stride; t++ ){
+            final int start = first+t;
+            resolvers[t] = new Thread( "Cell1D resolve " + t ){
+                public void run()
+                {
+                    try {
+                        for( int i=start; i<res.length; i+=stride ){
+                            res[i] = registry.getElectionResult( "" + i );
+                        }
+                    }
+                    catch( java.io.IOException e ){
+                        synchronized( failure ){
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            resolvers[t].start();
+        }
+        for( int t=0; t<stride; t++ ){
+            join( resolvers[t] );
+        }
+        if( failure[0] != null ){
+            throw failure[0];
+        }
+    }
+
+    /** Queues a connection from <code>port</code> to port <code>name</code> of <code>id</code>. */
+    void connect( SendPort port, IbisIdentifier id, String name )
+    {
+        HashMap<IbisIdentifier, String> receivers = targets.get( port );
+        if( receivers == null ){
+            receivers = new HashMap<IbisIdentifier, String>();
+            targets.put( port, receivers );
+            ports.add( port );
+        }
+        receivers.put( id, name );
+    }
+
+    /**
+     * Makes all queued connections, concurrently. The receive ports of
+     * this processor must have been enabled before, since the peers may
+     * be connecting to them at the same time.
+     */
+    void connectAll()
+        throws java.io.IOException
+    {
+        final java.io.IOException failure[] = new java.io.IOException[1];
+        Thread connectors[] = new Thread[ports.size()];
+
+        for( int p=0; p<connectors.length; p++ ){
+            final SendPort port = ports.get( p );
+            final HashMap<IbisIdentifier, String> receivers = targets.get( port );
+            connectors[p] = new Thread( "Cell1D connect " + p ){
+                public void run()
+                {
+                    try {
+                        if( receivers.size() == 1 ){
+                            IbisIdentifier id = receivers.keySet().iterator().next();
+                            port.connect( id, receivers.get( id ) );
+                        }
+                        else {
+                            port.connect( receivers );
+                        }
+                    }
+                    catch( java.io.IOException e ){
+                        synchronized( failure ){
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            connectors[p].start();
+        }
+        for( int p=0; p<connectors.length; p++ ){
+            join( connectors[p] );
+        }
+        ports.clear();
+        targets.clear();
+        if( failure[0] != null ){
+            throw failure[0];
+        }
+    }
+
+    private static void sleep()
+        throws java.io.IOException
+    {
+        try {
+            Thread.sleep( 10 );
+        }
+        catch( InterruptedException e ){
+            throw new java.io.IOException( "interrupted while ranking" );
+        }
+    }
+
+    private static void join( Thread t )
+        throws java.io.IOException
+    {
+        try {
+            t.join();
+        }
+        catch( InterruptedException e ){
+            throw new java.io.IOException( "interrupted during the bootstrap" );
+        }
+    }
+}
@@ -28,6 +28,15 @@ class Cell1D implements Config {
     static Registry registry;
     static IbisIdentifier[] instances;
     static int boardsize = 3000;
+    static boolean useShm = false;
+    static boolean useBits = false;
+    static int threads = 1;
+
+    // The rule we run, see Rules.
+    static Rule rule;
+
+    // With -threads, the threads that compute a generation, or null.
+    static ColumnSweep sweep = null;
 
     // We need two extra column arrays to temporarily store the update
     // of a column. These arrays will be circulated with the columns of
@@ -35,13 +44,18 @@ class Cell1D implements Config {
     static byte updatecol[];
     static byte nextupdatecol[];
 
+    // The same for the bit-packed columns of -bitlife.
+    static long updatebits[];
+    static long nextupdatebits[];
+    static long rowMask[];
+
     /**
-     * Creates an update send port that connected to the specified neighbour.
+     * Creates an update send port, and queues its connection to the specified neighbour.
      * @param t The type of the port to construct.
      * @param me My own processor number.
      * @param procno The processor number to connect to.
      */
-    private static SendPort createUpdateSendPort( PortType t, int me, int procno )
+    private static SendPort createUpdateSendPort( PortType t, int me, int procno, Bootstrap bootstrap )
         throws java.io.IOException
     {
         String portclass;
@@ -60,9 +74,9 @@ class Cell1D implements Config {
             System.err.println( "P" + me + ": created send port " + sendportname  );
         }
         IbisIdentifier id = instances[procno];
-        res.connect( id, receiveportname );
+        bootstrap.connect( res, id, receiveportname );
         if( tracePortCreation ){
-            System.err.println( "P" + me + ": connected " + sendportname + " to " + receiveportname + " on " + procno);
+            System.err.println( "P" + me + ": queued connection of " + sendportname + " to " + receiveportname + " on " + procno);
         }
         return res;
     }
@@ -94,26 +108,69 @@ class Cell1D implements Config {
         return res;
     }
 
-    private static void send( int me, SendPort p, byte data[] )
+    /**
+     * Returns true if the columns to and from processor <code>procno</code>
+     * go through a ShmChannel, since it runs on the same host.
+     */
+    private static boolean shared( int procno )
+    {
+        return useShm && procno >= 0 && procno < instances.length
+            && instances[procno].location().equals( ibis.identifier().location() )
+            && ShmChannel.available();
+    }
+
+    /**
+     * Sends column <code>col</code> of the board, or of the bit-packed
+     * board if there is one.
+     */
+    private static void send( int me, SendPort p, ShmChannel c, byte board[][], long bits[][], int col )
         throws java.io.IOException
     {
         if( traceCommunication ){
             System.err.println( "P" + me + ": sending from port " + p );
         }
+        if( c != null ){
+            if( bits != null ){
+                c.write( bits[col] );
+            }
+            else {
+                c.write( board[col] );
+            }
+            return;
+        }
         WriteMessage m = p.newMessage();
-        m.writeArray( data );
+        if( bits != null ){
+            m.writeArray( bits[col] );
+        }
+        else {
+            m.writeArray( board[col] );
+        }
         m.send();
         m.finish();
     }
 
-    private static void receive( int me, ReceivePort p, byte data[] )
+    private static void receive( int me, ReceivePort p, ShmChannel c, byte board[][], long bits[][], int col )
         throws java.io.IOException
     {
         if( traceCommunication ){
             System.err.println( "P" + me + ": receiving on port " + p );
         }
+        if( c != null ){
+            if( bits != null ){
+                c.read( bits[col] );
+            }
+            else {
+                c.read( board[col] );
+            }
+            return;
+        }
         ReadMessage m = p.receive();
-        m.readArray( data );
+        if( bits != null ){
+            m.readArray( bits[col] );
+        }
+        else {
+            m.readArray( board[col] );
+        }
         m.finish();
     }
 
@@ -123,26 +180,17 @@ class Cell1D implements Config {
         byte curr[] = board[0];
         byte next[] = board[1];
 
+        if( sweep != null ){
+            sweep.sweep( board, 1, myColumns+1, board[0], board[myColumns+1], 0, null );
+            return;
+        }
+        rule.startSweep();
         for( int i=1; i<=myColumns; i++ ){
             prev = curr;
             curr = next;
             next = board[i+1];
-            for( int j=1; j<=boardsize; j++ ){
-                updatecol[j] = Ecology.computeNextState(
-                    iter,
-                    i, j,
-                    prev[j-1],
-                    prev[j],
-                    prev[j+1],
-                    curr[j-1],
-                    curr[j],
-                    curr[j+1],
-                    next[j-1],
-                    next[j],
-                    next[j+1]
-                );
-            }
-            
+            rule.computeNextColumn( prev, curr, next, updatecol );
+
             //
             byte tmp[] = board[i];
             board[i] = updatecol;
@@ -151,23 +199,104 @@ class Cell1D implements Config {
         }
     }
 
+    /** As computeNextGeneration(), but for Life on the bit-packed board. */
+    static void computeNextBitGeneration( long bits[][], final int myColumns )
+    {
+        long prev[];
+        long curr[] = bits[0];
+        long next[] = bits[1];
+
+        for( int i=1; i<=myColumns; i++ ){
+            prev = curr;
+            curr = next;
+            next = bits[i+1];
+            BitLife.computeNextColumn( prev, curr, next, updatebits, rowMask );
+
+            long tmp[] = bits[i];
+            bits[i] = updatebits;
+            updatebits = nextupdatebits;
+            nextupdatebits = tmp;
+        }
+    }
+
     public static void main( String [] args )
     {
         int count = GENERATIONS;
+        boolean check = false;
+        String ruleName = null;
         /* Parse commandline parameters. */
         for( int i=0; i<args.length; i++ ){
             if( args[i].equals( "-size" ) ){
                 i++;
                 boardsize = Integer.parseInt( args[i] );
             }
+            else if( args[i].equals( "-shm" ) ){
+                useShm = true;
+            }
+            else if( args[i].equals( "-bitlife" ) ){
+                useBits = true;
+            }
+            else if( args[i].equals( "-check" ) ){
+                check = true;
+            }
+            else if( args[i].equals( "-threads" ) ){
+                i++;
+                threads = Integer.parseInt( args[i] );
+            }
+            else if( args[i].equals( "-rule" ) ){
+                i++;
+                ruleName = args[i];
+            }
             else {
                 count = Integer.parseInt( args[i] );
             }
         }
 
+        if( check ){
+            if( !BitLife.crossCheck( boardsize, 100, 50 ) ){
+                System.out.println( "The bit-packed Life kernel does not match the byte kernel" );
+                System.exit( 1 );
+            }
+            System.out.println( "The bit-packed Life kernel matches the byte kernel" );
+            if( !Ecology.crossCheck( boardsize, 100, 50 ) ){
+                System.out.println( "The Ecology table kernel does not match computeNextState()" );
+                System.exit( 1 );
+            }
+            System.out.println( "The Ecology table kernel matches computeNextState()" );
+            if( !Totalistic.crossCheck( boardsize, 100, 50 ) ){
+                System.out.println( "The B3/S23 kernel does not match the byte Life kernel" );
+                System.exit( 1 );
+            }
+            System.out.println( "The B3/S23 kernel matches the byte Life kernel" );
+        }
+        if( ruleName != null && useBits ){
+            System.out.println( "-bitlife only runs Conway's Life, it cannot be combined with -rule" );
+            System.exit( 1 );
+        }
+        try {
+            if( ruleName == null ){
+                ruleName = Rules.DEFAULT;
+            }
+            rule = Rules.create( ruleName, boardsize );
+        }
+        catch( IllegalArgumentException e ){
+            System.out.println( e.getMessage() );
+            System.exit( 1 );
+        }
+        if( threads>1 ){
+            if( useBits ){
+                System.out.println( "-threads only works for the byte rules, it cannot be combined with -bitlife" );
+                System.exit( 1 );
+            }
+            sweep = new ColumnSweep( threads, ruleName, boardsize );
+        }
+
         try {
+            long bootstrapStart = System.currentTimeMillis();
+
             IbisCapabilities s = new IbisCapabilities(
                     IbisCapabilities.CLOSED_WORLD,
+                    IbisCapabilities.MEMBERSHIP_TOTALLY_ORDERED,
                     IbisCapabilities.ELECTIONS_STRICT);
 
             PortType t = new PortType(
@@ -179,28 +308,35 @@ class Cell1D implements Config {
             ibis = IbisFactory.createIbis( s, null, t );
             registry = ibis.registry();
             
-            final int nProcs = registry.getPoolSize();
+            instances = Bootstrap.rank( ibis );
+            final int nProcs = instances.length;
             int me = -1;
 
-            instances = new IbisIdentifier[nProcs];
-
-            for (int i = 0; i < nProcs; i++) {
-                IbisIdentifier id = registry.elect("" + i);
-                instances[i] = id;
-                if (id.equals(ibis.identifier())) {
+            for( int i=0; i<nProcs; i++ ){
+                if( instances[i].equals( ibis.identifier() ) ){
                     me = i;
-                    break;
                 }
             }
-            
-            for (int i = me + 1; i < nProcs; i++) {
-                instances[i] = registry.getElectionResult("" + i);
-            }
+            Bootstrap bootstrap = new Bootstrap();
 
             SendPort leftSendPort = null;
             SendPort rightSendPort = null;
             ReceivePort leftReceivePort = null;
             ReceivePort rightReceivePort = null;
+            ShmChannel leftOut = null;
+            ShmChannel rightOut = null;
+            ShmChannel leftIn = null;
+            ShmChannel rightIn = null;
+
+            // The channels must exist before the neighbours can connect.
+            int columnLength = useBits ? 8*BitLife.words( boardsize ) : boardsize+2;
+            String pool = registry.getPoolName();
+            if( shared( me-1 ) ){
+                leftOut = ShmChannel.create( ShmChannel.file( pool, me, me-1 ), columnLength );
+            }
+            if( shared( me+1 ) ){
+                rightOut = ShmChannel.create( ShmChannel.file( pool, me, me+1 ), columnLength );
+            }
 
             if( me != 0 ){
                 leftReceivePort = createUpdateReceivePort( t, me, me-1 );
@@ -209,11 +345,19 @@ class Cell1D implements Config {
                 rightReceivePort = createUpdateReceivePort( t, me, me+1 );
             }
             if( me != 0 ){
-                leftSendPort = createUpdateSendPort( t, me, me-1 );
+                leftSendPort = createUpdateSendPort( t, me, me-1, bootstrap );
             }
             if( me != nProcs-1 ){
-                rightSendPort = createUpdateSendPort( t, me, me+1 );
+                rightSendPort = createUpdateSendPort( t, me, me+1, bootstrap );
+            }
+            bootstrap.connectAll();
+            if( shared( me-1 ) ){
+                leftIn = ShmChannel.open( ShmChannel.file( pool, me-1, me ), columnLength );
+            }
+            if( shared( me+1 ) ){
+                rightIn = ShmChannel.open( ShmChannel.file( pool, me+1, me ), columnLength );
             }
+            double bootstrapTime = (System.currentTimeMillis() - bootstrapStart)/1000.0;
 
             final int myColumns = boardsize/nProcs;
 
@@ -227,22 +371,39 @@ class Cell1D implements Config {
             if( me == 0 ){
                 System.out.println( Helpers.getPlatformVersion() );
                 System.out.println( "Using " + ibis.getClass().getName() );
+                System.out.println( "BootstrapTime: " + bootstrapTime );
+                if( !useBits ){
+                    System.out.println( "Rule " + rule );
+                }
                 System.out.println( "Started" );
             }
 
-            if( false ){
+            if( useBits ){
                 Life.putTwister( board, 3, 100 );
                 Life.putGlider( board, 4, 4 );
             }
             else {
-                Ecology.putForest( board, 100, 100 );
+                rule.putPattern( board );
+            }
+
+            // With -bitlife, the bit-packed board replaces the byte board.
+            long bits[][] = null;
+            if( useBits ){
+                bits = new long[myColumns+2][BitLife.words( boardsize )];
+                for( int i=0; i<myColumns+2; i++ ){
+                    BitLife.pack( board[i], bits[i] );
+                }
+                board = null;
+                updatebits = new long[BitLife.words( boardsize )];
+                nextupdatebits = new long[BitLife.words( boardsize )];
+                rowMask = BitLife.rowMask( boardsize );
             }
 
             long startTime = System.currentTimeMillis();
 
             for( int iter=0; iter<count; iter++ ){
 
-                if( showBoard && me == 0 ){
+                if( showBoard && me == 0 && board != null ){
                     System.out.println( "Generation " + iter );
                     for( int y=1; y<SHOWNBOARDHEIGHT; y++ ){
                         for( int x=1; x<SHOWNBOARDWIDTH; x++ ){
@@ -251,33 +412,38 @@ class Cell1D implements Config {
                         System.out.println();
                     }
                 }
-                computeNextGeneration( board, iter, myColumns );
+                if( bits != null ){
+                    computeNextBitGeneration( bits, myColumns );
+                }
+                else {
+                    computeNextGeneration( board, iter, myColumns );
+                }
                 if( (me % 2) == 0 ){
                     if( leftSendPort != null ){
-                        send( me, leftSendPort, board[1] );
+                        send( me, leftSendPort, leftOut, board, bits, 1 );
                     }
                     if( rightSendPort != null ){
-                        send( me, rightSendPort, board[myColumns] );
+                        send( me, rightSendPort, rightOut, board, bits, myColumns );
                     }
                     if( leftReceivePort != null ){
-                        receive( me, leftReceivePort, board[0] );
+                        receive( me, leftReceivePort, leftIn, board, bits, 0 );
                     }
                     if( rightReceivePort != null ){
-                        receive( me, rightReceivePort, board[myColumns+1] );
+                        receive( me, rightReceivePort, rightIn, board, bits, myColumns+1 );
                     }
                 }
                 else {
                     if( rightReceivePort != null ){
-                        receive( me, rightReceivePort, board[myColumns+1] );
+                        receive( me, rightReceivePort, rightIn, board, bits, myColumns+1 );
                     }
                     if( leftReceivePort != null ){
-                        receive( me, leftReceivePort, board[0] );
+                        receive( me, leftReceivePort, leftIn, board, bits, 0 );
                     }
                     if( rightSendPort != null ){
-                        send( me, rightSendPort, board[myColumns] );
+                        send( me, rightSendPort, rightOut, board, bits, myColumns );
                     }
                     if( leftSendPort != null ){
-                        send( me, leftSendPort, board[1] );
+                        send( me, leftSendPort, leftOut, board, bits, 1 );
                     }
                 }
                 if( showProgress ){
@@ -312,6 +478,12 @@ class Cell1D implements Config {
             if( rightReceivePort != null ){
                 rightReceivePort.close();
             }
+            ShmChannel channels[] = { leftOut, rightOut, leftIn, rightIn };
+            for( int i=0; i<channels.length; i++ ){
+                if( channels[i] != null ){
+                    channels[i].close();
+                }
+            }
             if( false && !Life.hasTwister( board, 3, 100 ) ){
                 System.out.println( "Twister has gone missing" );
             }
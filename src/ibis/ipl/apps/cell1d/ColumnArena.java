@@ -0,0 +1,117 @@
+package ibis.ipl.apps.cell1d;
+
+// File: $Id$
+
+import java.nio.ByteBuffer;
+
+/**
+ * Off-heap storage for the byte columns of a board: a single direct
+ * ByteBuffer with room for a number of columns, and a free list of the
+ * slots that are not in use. Columns that move to another processor
+ * give their slot back, and columns that arrive take a slot, so load
+ * balancing allocates nothing on the heap. Columns are sent and received
+ * through slices of the buffer.
+ *
+ * When all slots are in use, the buffer grows to twice its size; the
+ * slot numbers stay the same. A direct ByteBuffer holds at most 2 GB, so
+ * the growth stops there.
+ */
+final class ColumnArena {
+    private final int columnLength;
+    private ByteBuffer buffer;
+
+    // A duplicate of buffer, for bulk copies.
+    private ByteBuffer view;
+
+    // The free slots, a stack.
+    private int free[];
+    private int freeCount = 0;
+
+    ColumnArena( int columnLength, int capacity )
+    {
+        this.columnLength = columnLength;
+        if( capacity<1 ){
+            capacity = 1;
+        }
+        if( (long) columnLength*capacity>Integer.MAX_VALUE ){
+            throw new IllegalArgumentException( capacity + " columns of " + columnLength + " bytes do not fit in a direct ByteBuffer" );
+        }
+        buffer = ByteBuffer.allocateDirect( columnLength*capacity );
+        view = buffer.duplicate();
+        free = new int[capacity];
+        for( int slot=capacity-1; slot>=0; slot-- ){
+            free[freeCount++] = slot;
+        }
+    }
+
+    private int capacity()
+    {
+        return buffer.capacity()/columnLength;
+    }
+
+    private void grow()
+    {
+        int capacity = capacity();
+        int grown = (int) Math.min( 2L*capacity, Integer.MAX_VALUE/columnLength );
+        if( grown == capacity ){
+            throw new IllegalStateException( "the arena is full: " + capacity + " columns of " + columnLength + " bytes" );
+        }
+        ByteBuffer b = ByteBuffer.allocateDirect( columnLength*grown );
+
+        buffer.clear();
+        b.put( buffer );
+        b.clear();
+        buffer = b;
+        view = buffer.duplicate();
+
+        int f[] = new int[grown];
+        System.arraycopy( free, 0, f, 0, freeCount );
+        free = f;
+        for( int slot=grown-1; slot>=capacity; slot-- ){
+            free[freeCount++] = slot;
+        }
+    }
+
+    /** Returns a free slot. Its contents are undefined. */
+    int allocate()
+    {
+        if( freeCount == 0 ){
+            grow();
+        }
+        return free[--freeCount];
+    }
+
+    /** Puts <code>slot</code> back on the free list. */
+    void release( int slot )
+    {
+        free[freeCount++] = slot;
+    }
+
+    /**
+     * Returns a buffer on the contents of <code>slot</code>, which is
+     * only valid until the next allocate().
+     */
+    ByteBuffer slice( int slot )
+    {
+        ByteBuffer b = buffer.duplicate();
+        b.limit( (slot+1)*columnLength );
+        b.position( slot*columnLength );
+        return b.slice();
+    }
+
+    /** Copies the contents of <code>slot</code> to <code>col</code>. */
+    void get( int slot, byte col[] )
+    {
+        view.limit( (slot+1)*columnLength );
+        view.position( slot*columnLength );
+        view.get( col, 0, columnLength );
+    }
+
+    /** Copies <code>col</code> to <code>slot</code>. */
+    void put( int slot, byte col[] )
+    {
+        view.limit( (slot+1)*columnLength );
+        view.position( slot*columnLength );
+        view.put( col, 0, columnLength );
+    }
+}
@@ -0,0 +1,232 @@
+package ibis.ipl.apps.cell1d;
+
+// File: $Id$
+
+/**
+ * Computes the next generation of a range of columns with several
+ * threads. The columns are split into contiguous chunks, one per thread,
+ * and each thread sweeps its chunk from left to right with its own Rule
+ * and its own pair of update columns, as the sequential loop does.
+ *
+ * The first and last column of a chunk are also read by the neighbouring
+ * chunks, so their next states are written into the edge buffers of the
+ * chunk, and only put on the board when all chunks are done. The other
+ * columns are only read by their own chunk, and are replaced as the
+ * sweep goes.
+ *
+ * The calling thread sweeps the first chunk; the other chunks are swept
+ * by worker threads that wait for the next sweep.
+ */
+final class ColumnSweep {
+    private final Chunk chunks[];
+
+    // The sweep that is in progress.
+    private byte board[][];
+    private byte leftBorder[];
+    private byte rightBorder[];
+    private int firstColumn;
+    private int repeat;
+    private LockedInt progress;
+    private int active = 0;
+
+    // The number of sweeps that were started, and the number of workers
+    // that are still busy with the last one.
+    private int started = 0;
+    private int busy = 0;
+
+    private static final class Chunk {
+        final Rule rule;
+        int lo;
+        int hi;
+
+        // The update columns that are circulated with the columns of
+        // the chunk, and the next states of the first and last column.
+        byte updatecol[];
+        byte nextupdatecol[];
+        byte firstcol[];
+        byte lastcol[];
+
+        Chunk( Rule rule, int boardsize )
+        {
+            this.rule = rule;
+            updatecol = new byte[boardsize+2];
+            nextupdatecol = new byte[boardsize+2];
+            firstcol = new byte[boardsize+2];
+            lastcol = new byte[boardsize+2];
+        }
+
+        void compute( byte board[][], byte leftBorder[], byte rightBorder[], int firstColumn, int repeat, LockedInt progress )
+        {
+            byte prev[];
+            byte curr[] = lo == firstColumn ? leftBorder : board[lo-1];
+            byte next[] = board[lo];
+
+            rule.startSweep();
+            for( int i=lo; i<hi; i++ ){
+                prev = curr;
+                curr = next;
+                next = board[i+1];
+                if( next == null ){
+                    next = rightBorder;
+                }
+
+                byte out[];
+                if( i == lo ){
+                    out = firstcol;
+                }
+                else if( i == hi-1 ){
+                    out = lastcol;
+                }
+                else {
+                    out = updatecol;
+                }
+                if( repeat>0 ){
+                    // A rule may carry state from column to column, so
+                    // each extra computation is a sweep of its own.
+                    for( int iters=0; iters<repeat; iters++ ){
+                        rule.startSweep();
+                        rule.computeNextColumn( prev, curr, next, out );
+                    }
+                    rule.startSweep();
+                }
+                rule.computeNextColumn( prev, curr, next, out );
+
+                if( out == updatecol ){
+                    byte tmp[] = board[i];
+                    board[i] = updatecol;
+                    updatecol = nextupdatecol;
+                    nextupdatecol = tmp;
+                }
+                if( progress != null ){
+                    progress.add( 1 );
+                }
+            }
+        }
+
+        /** Puts the next states of the first and last column on the board. */
+        void finish( byte board[][] )
+        {
+            byte tmp[] = board[lo];
+            board[lo] = firstcol;
+            firstcol = tmp;
+            if( hi-1>lo ){
+                tmp = board[hi-1];
+                board[hi-1] = lastcol;
+                lastcol = tmp;
+            }
+        }
+    }
+
+    private final class Worker extends Thread {
+        private final int k;
+
+        Worker( int k )
+        {
+            super( "Cell1D sweep " + k );
+            this.k = k;
+            setDaemon( true );
+        }
+
+        public void run()
+        {
+            int seen = 0;
+
+            for( ;; ){
+                synchronized( ColumnSweep.this ){
+                    while( started == seen ){
+                        try {
+                            ColumnSweep.this.wait();
+                        }
+                        catch( InterruptedException e ){
+                            return;
+                        }
+                    }
+                    seen = started;
+                    if( k>=active ){
+                        // Not enough columns for this worker.
+                        continue;
+                    }
+                }
+                chunks[k].compute( board, leftBorder, rightBorder, firstColumn, repeat, progress );
+                synchronized( ColumnSweep.this ){
+                    busy--;
+                    if( busy == 0 ){
+                        ColumnSweep.this.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a sweep with the given number of threads, each with its own
+     * instance of the rule with the given name (see Rules).
+     */
+    ColumnSweep( int threads, String ruleName, int boardsize )
+    {
+        chunks = new Chunk[threads];
+        for( int k=0; k<threads; k++ ){
+            chunks[k] = new Chunk( Rules.create( ruleName, boardsize ), boardsize );
+        }
+        for( int k=1; k<threads; k++ ){
+            new Worker( k ).start();
+        }
+    }
+
+    /**
+     * Computes the next generation of columns <code>first</code> up to
+     * <code>firstNo</code> of <code>board</code>. The column left of
+     * <code>first</code> is <code>leftBorder</code>, and a null column
+     * right of a column is <code>rightBorder</code>. Each column is
+     * computed <code>repeat</code> extra times, to disturb the load.
+     * If <code>progress</code> is not null, it is set to
+     * <code>first</code> plus the number of columns computed so far, so
+     * it advances as the column number of the sequential sweep does.
+     */
+    void sweep( byte board[][], int first, int firstNo, byte leftBorder[], byte rightBorder[], int repeat, LockedInt progress )
+    {
+        int columns = firstNo-first;
+        int n = Math.min( chunks.length, columns );
+
+        if( n<=0 ){
+            return;
+        }
+        if( progress != null ){
+            progress.set( first );
+        }
+        for( int k=0; k<n; k++ ){
+            chunks[k].lo = first + (k*columns)/n;
+            chunks[k].hi = first + ((k+1)*columns)/n;
+        }
+        synchronized( this ){
+            this.board = board;
+            this.leftBorder = leftBorder;
+            this.rightBorder = rightBorder;
+            this.firstColumn = first;
+            this.repeat = repeat;
+            this.progress = progress;
+            active = n;
+            busy = n-1;
+            started++;
+            notifyAll();
+        }
+        chunks[0].compute( board, leftBorder, rightBorder, first, repeat, progress );
+        synchronized( this ){
+            while( busy>0 ){
+                try {
+                    wait();
+                }
+                catch( InterruptedException e ){
+                    // Ignore.
+                }
+            }
+            this.board = null;
+            this.leftBorder = null;
+            this.rightBorder = null;
+            this.progress = null;
+        }
+        for( int k=0; k<n; k++ ){
+            chunks[k].finish( board );
+        }
+    }
+}
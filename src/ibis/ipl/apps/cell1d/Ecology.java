@@ -2,7 +2,39 @@ package ibis.ipl.apps.cell1d;
 
 /* $Id$ */
 
-class Ecology {
+final class Ecology implements Rule {
+    private final int boardsize;
+
+    Ecology( int boardsize )
+    {
+        this.boardsize = boardsize;
+    }
+
+    public String toString()
+    {
+        return "Ecology";
+    }
+
+    public int states()
+    {
+        return MAXSTATE+1;
+    }
+
+    public void putPattern( byte board[][] )
+    {
+        putForest( board, 100, 100 );
+    }
+
+    public void startSweep()
+    {
+        // We don't carry anything from column to column.
+    }
+
+    public void computeNextColumn( byte prev[], byte curr[], byte next[], byte out[] )
+    {
+        computeNextColumn( prev, curr, next, out, boardsize );
+    }
+
     static private boolean haveAtLeastState( int v, byte lu, byte l, byte ld, byte u, byte d, byte ru, byte r, byte rd )
     {
         return (lu>=v) || (l>=v) || (ld>=v) || (u>=v) || (d>=v) || (ru>=v) || (r>=v) || (rd>=v);
@@ -44,6 +76,99 @@ class Ecology {
         return (byte) (c+1);
     }
 
+    // The highest state; the kernel below assumes all states are in 0..MAXSTATE.
+    static final int MAXSTATE = 20;
+
+    // The next state of a cell, at [c*(MAXSTATE+1)+m] for a cell in state
+    // c whose neighbours have at most state m. Since computeNextState()
+    // only looks at the highest neighbour state, this is all of the rule.
+    private static final byte nextState[] = new byte[(MAXSTATE+1)*(MAXSTATE+1)];
+
+    static {
+        for( int c=0; c<=MAXSTATE; c++ ){
+            for( int m=0; m<=MAXSTATE; m++ ){
+                byte b = (byte) m;
+                nextState[c*(MAXSTATE+1)+m] = computeNextState( 0, 0, 0, b, b, b, b, (byte) c, b, b, b, b );
+            }
+        }
+    }
+
+    /**
+     * Given the previous, current and next column, computes the next
+     * state of cells 1..boardsize of the current column into
+     * <code>out</code>. The maximum of the three columns in rows j-1, j
+     * and j+1 is carried down the column, so the highest neighbour state
+     * takes five compares per cell instead of seven: two for the maximum
+     * of row j+1, one for the side neighbours and two to merge them with
+     * rows j-1 and j+1. The next state is a table lookup.
+     */
+    static void computeNextColumn( byte prev[], byte curr[], byte next[], byte out[], int boardsize )
+    {
+        final byte table[] = nextState;
+        // The maximum of the three columns in row j-1, and in row j.
+        int up = Math.max( Math.max( prev[0], curr[0] ), next[0] );
+        int here = Math.max( Math.max( prev[1], curr[1] ), next[1] );
+
+        for( int j=1; j<=boardsize; j++ ){
+            int side = Math.max( prev[j], next[j] );
+            int down = Math.max( Math.max( prev[j+1], curr[j+1] ), next[j+1] );
+            int m = Math.max( Math.max( up, down ), side );
+
+            out[j] = table[curr[j]*(MAXSTATE+1)+m];
+            up = here;
+            here = down;
+        }
+    }
+
+    /**
+     * Runs <code>generations</code> generations on a board of
+     * <code>boardsize</code> x <code>columns</code> cells with both
+     * computeNextColumn() and computeNextState(), and returns true iff
+     * they agree on every cell after every generation.
+     */
+    static boolean crossCheck( int boardsize, int columns, int generations )
+    {
+        java.util.Random r = new java.util.Random( 42 );
+        byte board[][] = new byte[columns+2][boardsize+2];
+        byte table[][] = new byte[columns+2][boardsize+2];
+
+        for( int i=1; i<=columns; i++ ){
+            for( int j=1; j<=boardsize; j++ ){
+                board[i][j] = table[i][j] = (byte) r.nextInt( MAXSTATE+1 );
+            }
+        }
+
+        for( int gen=0; gen<generations; gen++ ){
+            byte nextBoard[][] = new byte[columns+2][boardsize+2];
+            byte nextTable[][] = new byte[columns+2][boardsize+2];
+
+            for( int i=1; i<=columns; i++ ){
+                byte prev[] = board[i-1];
+                byte curr[] = board[i];
+                byte next[] = board[i+1];
+
+                for( int j=1; j<=boardsize; j++ ){
+                    nextBoard[i][j] = computeNextState(
+                        gen, i, j,
+                        prev[j-1], prev[j], prev[j+1],
+                        curr[j-1], curr[j], curr[j+1],
+                        next[j-1], next[j], next[j+1]
+                    );
+                }
+                computeNextColumn( table[i-1], table[i], table[i+1], nextTable[i], boardsize );
+                for( int j=1; j<=boardsize; j++ ){
+                    if( nextTable[i][j] != nextBoard[i][j] ){
+                        System.out.println( "Generation " + gen + ": cell " + i + "," + j + " is " + nextTable[i][j] + " with the table, but " + nextBoard[i][j] + " with computeNextState()" );
+                        return false;
+                    }
+                }
+            }
+            board = nextBoard;
+            table = nextTable;
+        }
+        return true;
+    }
+
     static void putForest( byte board[][], int dx, int dy )
     {
         for( int x=1; x<board.length; x += dx ){
@@ -0,0 +1,211 @@
+package ibis.ipl.apps.cell1d;
+
+// File: $Id$
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisCapabilities;
+import ibis.ipl.IbisFactory;
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.PortType;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceivePort;
+import ibis.ipl.SendPort;
+import ibis.ipl.WriteMessage;
+
+/**
+ * Runs Conway's game of Life for many generations with HashLife. Every
+ * step of 2^j generations splits into four independent quadrants (see
+ * HashLife.split()); processor 0 sends quadrant q to processor q % nProcs,
+ * computes its own quadrants, and joins the results. Each processor keeps
+ * its own cache of nodes, so the memoized results of earlier steps are
+ * reused. At most four processors get work.
+ */
+class HashCell {
+    static final int DEFAULTBOARDSIZE = 3000;
+    static final long DEFAULTGENERATIONS = 1000000;
+    static final int DEFAULTCACHESIZE = 1 << 20;
+
+    private static void sendNode( SendPort port, int j, int q, HashLife.Node n )
+        throws java.io.IOException
+    {
+        WriteMessage m = port.newMessage();
+        m.writeInt( j );
+        m.writeInt( q );
+        if( n != null ){
+            HashLife.write( m, n );
+        }
+        m.finish();
+    }
+
+    public static void main( String [] args )
+    {
+        int boardsize = DEFAULTBOARDSIZE;
+        long count = DEFAULTGENERATIONS;
+        int cacheSize = DEFAULTCACHESIZE;
+        boolean check = false;
+
+        /* Parse commandline parameters. */
+        for( int i=0; i<args.length; i++ ){
+            if( args[i].equals( "-size" ) ){
+                i++;
+                boardsize = Integer.parseInt( args[i] );
+            }
+            else if( args[i].equals( "-cache" ) ){
+                i++;
+                cacheSize = Integer.parseInt( args[i] );
+            }
+            else if( args[i].equals( "-check" ) ){
+                check = true;
+            }
+            else {
+                count = Long.parseLong( args[i] );
+            }
+        }
+
+        if( check ){
+            if( !HashLife.crossCheck( 60, 100 ) ){
+                System.out.println( "HashLife does not match the byte kernel" );
+                System.exit( 1 );
+            }
+            System.out.println( "HashLife matches the byte kernel" );
+        }
+
+        try {
+            IbisCapabilities s = new IbisCapabilities(
+                    IbisCapabilities.CLOSED_WORLD,
+                    IbisCapabilities.MEMBERSHIP_TOTALLY_ORDERED,
+                    IbisCapabilities.ELECTIONS_STRICT);
+
+            PortType t = new PortType(
+                    PortType.CONNECTION_MANY_TO_ONE,
+                    PortType.COMMUNICATION_RELIABLE,
+                    PortType.RECEIVE_EXPLICIT,
+                    PortType.SERIALIZATION_DATA);
+
+            Ibis ibis = IbisFactory.createIbis( s, null, t );
+            IbisIdentifier instances[] = Bootstrap.rank( ibis );
+            final int nProcs = instances.length;
+            int me = -1;
+
+            for( int i=0; i<nProcs; i++ ){
+                if( instances[i].equals( ibis.identifier() ) ){
+                    me = i;
+                }
+            }
+
+            // Quadrants go to processors 1..3, results come back to 0.
+            int workers = Math.min( nProcs, 4 );
+            Bootstrap bootstrap = new Bootstrap();
+            ReceivePort receivePort = null;
+            SendPort sendPorts[] = new SendPort[workers];
+
+            if( me == 0 ){
+                receivePort = ibis.createReceivePort( t, "results" );
+                receivePort.enableConnections();
+                for( int r=1; r<workers; r++ ){
+                    sendPorts[r] = ibis.createSendPort( t, "work" + r );
+                    bootstrap.connect( sendPorts[r], instances[r], "work" );
+                }
+            }
+            else if( me<workers ){
+                receivePort = ibis.createReceivePort( t, "work" );
+                receivePort.enableConnections();
+                sendPorts[0] = ibis.createSendPort( t, "result" );
+                bootstrap.connect( sendPorts[0], instances[0], "results" );
+            }
+            bootstrap.connectAll();
+
+            HashLife life = new HashLife( cacheSize );
+
+            if( me == 0 ){
+                System.out.println( Helpers.getPlatformVersion() );
+                System.out.println( "Using " + ibis.getClass().getName() );
+                System.out.println( "Started a run of " + count + " generations on a " + boardsize + "x" + boardsize + " board" );
+
+                byte board[][] = new byte[boardsize+2][boardsize+2];
+                Life.putTwister( board, 3, 100 );
+                Life.putGlider( board, 4, 4 );
+                life.load( board );
+
+                long startTime = System.currentTimeMillis();
+
+                for( int j=0; count>>>j != 0; j++ ){
+                    if( ((count>>>j) & 1) == 0 ){
+                        continue;
+                    }
+                    HashLife.Node quadrants[] = life.split( j );
+                    HashLife.Node results[] = new HashLife.Node[4];
+
+                    for( int q=0; q<4; q++ ){
+                        if( q % workers != 0 ){
+                            sendNode( sendPorts[q % workers], j, q, quadrants[q] );
+                        }
+                    }
+                    for( int q=0; q<4; q++ ){
+                        if( q % workers == 0 ){
+                            results[q] = life.step( quadrants[q], j );
+                        }
+                    }
+                    for( int q=0; q<4; q++ ){
+                        if( q % workers != 0 ){
+                            ReadMessage m = receivePort.receive();
+                            m.readInt();    // The step, which we know.
+                            int rq = m.readInt();
+                            results[rq] = life.read( m );
+                            m.finish();
+                        }
+                    }
+                    life.merge( results, j );
+                }
+                for( int r=1; r<workers; r++ ){
+                    sendNode( sendPorts[r], -1, -1, null );
+                }
+
+                long endTime = System.currentTimeMillis();
+                double time = (endTime - startTime)/1000.0;
+
+                // Export the result in the byte layout.
+                life.store( board );
+                long onBoard = 0;
+                for( int x=1; x<=boardsize; x++ ){
+                    for( int y=1; y<=boardsize; y++ ){
+                        onBoard += board[x][y];
+                    }
+                }
+
+                System.out.println( "ExecutionTime: " + time );
+                System.out.println( "Generation " + life.getGeneration() + ": population " + life.getPopulation() + ", " + onBoard + " on the board" );
+                System.out.println( "Cached nodes: " + life.getCacheSize() );
+            }
+            else if( me<workers ){
+                for( ;; ){
+                    ReadMessage m = receivePort.receive();
+                    int j = m.readInt();
+                    int q = m.readInt();
+                    if( j<0 ){
+                        m.finish();
+                        break;
+                    }
+                    HashLife.Node n = life.read( m );
+                    m.finish();
+                    sendNode( sendPorts[0], j, q, life.step( n, j ) );
+                }
+            }
+
+            for( int r=0; r<workers; r++ ){
+                if( sendPorts[r] != null ){
+                    sendPorts[r].close();
+                }
+            }
+            if( receivePort != null ){
+                receivePort.close();
+            }
+            ibis.end();
+        }
+        catch( Exception e ) {
+            System.err.println( "Got exception " + e );
+            System.err.println( "StackTrace:" );
+            e.printStackTrace();
+        }
+    }
+}
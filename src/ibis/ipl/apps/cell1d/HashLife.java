@@ -0,0 +1,550 @@
+package ibis.ipl.apps.cell1d;
+
+// File: $Id$
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Conway's game of Life with HashLife: the universe is a quadtree of
+ * canonical nodes, so equal squares are one node, and the future of a
+ * node is computed once and memoized in it. A node of level k is a square
+ * of 2^k x 2^k cells; its result is its center square of 2^(k-1) x 2^(k-1)
+ * cells, 2^j generations later, for any j <= k-2. A run of g generations
+ * takes a step of 2^j generations for every set bit j of g, so 10^6
+ * generations, 20 bits with 7 of them set, take 7 steps.
+ *
+ * The canonical nodes are kept in a cache of at most cacheSize nodes, that
+ * evicts the least recently used one. A node that is evicted stays valid;
+ * an equal node that is made later is simply a new node, that shares
+ * nothing with the old one.
+ *
+ * The board is embedded in an infinite empty plane. In the byte version
+ * the cells around the board are always empty, so a pattern that reaches
+ * the border of the board evolves differently.
+ *
+ * A step of the root splits into four independent subproblems, see
+ * split(). Nodes can be sent to other Ibis instances with write() and
+ * read(), so the subproblems can be computed elsewhere; see HashCell.
+ */
+final class HashLife {
+    static final class Node {
+        final Node nw, ne, sw, se;
+        final int level;
+        final long population;
+        private final int hash;
+
+        // The memoized result, for steps of 2^resultStep generations.
+        Node result;
+        int resultStep = -1;
+
+        private Node( boolean alive )
+        {
+            nw = ne = sw = se = null;
+            level = 0;
+            population = alive ? 1 : 0;
+            hash = alive ? 1 : 0;
+        }
+
+        private Node( Node nw, Node ne, Node sw, Node se )
+        {
+            this.nw = nw;
+            this.ne = ne;
+            this.sw = sw;
+            this.se = se;
+            level = nw.level+1;
+            population = nw.population + ne.population + sw.population + se.population;
+            hash = System.identityHashCode( nw )
+                + 31*System.identityHashCode( ne )
+                + 961*System.identityHashCode( sw )
+                + 29791*System.identityHashCode( se );
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals( Object o )
+        {
+            if( !(o instanceof Node) ){
+                return false;
+            }
+            Node n = (Node) o;
+            return n.nw == nw && n.ne == ne && n.sw == sw && n.se == se;
+        }
+    }
+
+    static final Node DEAD = new Node( false );
+    static final Node ALIVE = new Node( true );
+
+    private final LinkedHashMap<Node, Node> cache;
+
+    // The empty node of each level, kept here since the cache may evict it.
+    private final Vector<Node> empty = new Vector<Node>();
+
+    private Node root;
+
+    // The board coordinates of the upper left cell of the root.
+    private long originX = 0;
+    private long originY = 0;
+
+    private long generation = 0;
+
+    HashLife( final int cacheSize )
+    {
+        cache = new LinkedHashMap<Node, Node>( 1024, 0.75f, true ) {
+            protected boolean removeEldestEntry( Map.Entry<Node, Node> eldest )
+            {
+                return size()>cacheSize;
+            }
+        };
+        empty.add( DEAD );
+        root = empty( 3 );
+    }
+
+    /** Returns the canonical node with the given quadrants. */
+    Node join( Node nw, Node ne, Node sw, Node se )
+    {
+        Node n = new Node( nw, ne, sw, se );
+        Node c = cache.get( n );
+
+        if( c != null ){
+            return c;
+        }
+        cache.put( n, n );
+        return n;
+    }
+
+    private Node empty( int level )
+    {
+        while( empty.size()<=level ){
+            Node e = empty.lastElement();
+            empty.add( join( e, e, e, e ) );
+        }
+        return empty.get( level );
+    }
+
+    long getGeneration()
+    {
+        return generation;
+    }
+
+    long getPopulation()
+    {
+        return root.population;
+    }
+
+    int getCacheSize()
+    {
+        return cache.size();
+    }
+
+    private static boolean isAlive( byte board[][], long x, long y )
+    {
+        if( x<0 || y<0 || x>=board.length || board[(int) x] == null || y>=board[(int) x].length ){
+            return false;
+        }
+        return board[(int) x][(int) y] != 0;
+    }
+
+    private Node build( byte board[][], int level, long x, long y )
+    {
+        if( level == 0 ){
+            return isAlive( board, x, y ) ? ALIVE : DEAD;
+        }
+        if( x>=board.length ){
+            return empty( level );
+        }
+        long h = 1L << (level-1);
+        return join(
+            build( board, level-1, x, y ),
+            build( board, level-1, x+h, y ),
+            build( board, level-1, x, y+h ),
+            build( board, level-1, x+h, y+h )
+        );
+    }
+
+    /**
+     * Replaces the universe by the cells of <code>board</code>, in the
+     * layout of Cell1D: <code>board[x][y]</code>, with null for columns
+     * that are not there. Non-zero cells are alive.
+     */
+    void load( byte board[][] )
+    {
+        int size = board.length;
+        for( int x=0; x<board.length; x++ ){
+            if( board[x] != null && board[x].length>size ){
+                size = board[x].length;
+            }
+        }
+        int level = 3;
+        while( (1L << level)<size ){
+            level++;
+        }
+        root = build( board, level, 0, 0 );
+        originX = 0;
+        originY = 0;
+    }
+
+    private void store( Node n, long x, long y, byte board[][] )
+    {
+        long size = 1L << n.level;
+
+        if( n.population == 0 || x>=board.length || x+size<=0 || y+size<=0 ){
+            return;
+        }
+        if( n.level == 0 ){
+            if( y<board[(int) x].length ){
+                board[(int) x][(int) y] = 1;
+            }
+            return;
+        }
+        long h = size/2;
+        store( n.nw, x, y, board );
+        store( n.ne, x+h, y, board );
+        store( n.sw, x, y+h, board );
+        store( n.se, x+h, y+h, board );
+    }
+
+    /**
+     * Stores the cells of the universe in the columns of
+     * <code>board</code> that are not null; see load().
+     */
+    void store( byte board[][] )
+    {
+        for( int x=0; x<board.length; x++ ){
+            if( board[x] != null ){
+                java.util.Arrays.fill( board[x], (byte) 0 );
+            }
+        }
+        // Empty columns keep the recursion away from the null columns.
+        byte cols[][] = new byte[board.length][];
+        for( int x=0; x<board.length; x++ ){
+            cols[x] = board[x] != null ? board[x] : new byte[0];
+        }
+        store( root, originX, originY, cols );
+    }
+
+    /** Surrounds the root with empty space, doubling its size. */
+    private void expand()
+    {
+        Node e = empty( root.level-1 );
+
+        root = join(
+            join( e, e, e, root.nw ),
+            join( e, e, root.ne, e ),
+            join( e, root.sw, e, e ),
+            join( root.se, e, e, e )
+        );
+        long h = 1L << (root.level-2);
+        originX -= h;
+        originY -= h;
+    }
+
+    /**
+     * Expands the root until a step of 2^j generations fits: the cells
+     * must be in the central quarter of the root, since they spread at
+     * most 2^j <= 2^(level-3) cells, and the result of the root is its
+     * central half.
+     */
+    private void pad( int j )
+    {
+        while( root.level<j+3
+            || root.nw.population != root.nw.se.se.population
+            || root.ne.population != root.ne.sw.sw.population
+            || root.sw.population != root.sw.ne.ne.population
+            || root.se.population != root.se.nw.nw.population ){
+            expand();
+        }
+    }
+
+    private static int bit( Node n )
+    {
+        return (int) n.population;
+    }
+
+    /** Computes one generation of the center 2x2 cells of level 2 node n. */
+    private Node base( Node n )
+    {
+        // The 4x4 cells, by row.
+        int c[][] = {
+            { bit( n.nw.nw ), bit( n.nw.ne ), bit( n.ne.nw ), bit( n.ne.ne ) },
+            { bit( n.nw.sw ), bit( n.nw.se ), bit( n.ne.sw ), bit( n.ne.se ) },
+            { bit( n.sw.nw ), bit( n.sw.ne ), bit( n.se.nw ), bit( n.se.ne ) },
+            { bit( n.sw.sw ), bit( n.sw.se ), bit( n.se.sw ), bit( n.se.se ) },
+        };
+        Node r[] = new Node[4];
+
+        for( int y=1; y<=2; y++ ){
+            for( int x=1; x<=2; x++ ){
+                int neighbours = 0;
+                for( int dy=-1; dy<=1; dy++ ){
+                    for( int dx=-1; dx<=1; dx++ ){
+                        neighbours += c[y+dy][x+dx];
+                    }
+                }
+                neighbours -= c[y][x];
+                boolean alive = (neighbours == 3) || ((neighbours == 2) && (c[y][x] == 1));
+                r[2*(y-1)+(x-1)] = alive ? ALIVE : DEAD;
+            }
+        }
+        return join( r[0], r[1], r[2], r[3] );
+    }
+
+    private Node center( Node n )
+    {
+        return join( n.nw.se, n.ne.sw, n.sw.ne, n.se.nw );
+    }
+
+    private Node centerHorizontal( Node w, Node e )
+    {
+        return join( w.ne.se, e.nw.sw, w.se.ne, e.sw.nw );
+    }
+
+    private Node centerVertical( Node n, Node s )
+    {
+        return join( n.sw.se, n.se.sw, s.nw.ne, s.ne.nw );
+    }
+
+    private Node centerCenter( Node n )
+    {
+        return join( n.nw.se.se, n.ne.sw.sw, n.sw.ne.ne, n.se.nw.nw );
+    }
+
+    /**
+     * Returns the nine overlapping nodes of level k-2 in the central
+     * part of n, that take no time.
+     */
+    private Node[] centers( Node n )
+    {
+        return new Node[] {
+            center( n.nw ), centerHorizontal( n.nw, n.ne ), center( n.ne ),
+            centerVertical( n.nw, n.sw ), centerCenter( n ), centerVertical( n.ne, n.se ),
+            center( n.sw ), centerHorizontal( n.sw, n.se ), center( n.se ),
+        };
+    }
+
+    /**
+     * Returns the four nodes of level k-1 that overlap in the center of
+     * nine nodes of level k-2.
+     */
+    private Node[] quadrants( Node m[] )
+    {
+        return new Node[] {
+            join( m[0], m[1], m[3], m[4] ),
+            join( m[1], m[2], m[4], m[5] ),
+            join( m[3], m[4], m[6], m[7] ),
+            join( m[4], m[5], m[7], m[8] ),
+        };
+    }
+
+    /**
+     * Returns the center of node n, of level k, 2^j generations later,
+     * for j <= k-2.
+     */
+    Node step( Node n, int j )
+    {
+        if( n.resultStep == j ){
+            return n.result;
+        }
+        Node r;
+
+        if( n.population == 0 ){
+            r = n.nw;
+        }
+        else if( n.level == 2 ){
+            r = base( n );
+        }
+        else if( j == n.level-2 ){
+            // Two half steps: first the nine overlapping subnodes, then
+            // the four nodes that their results make up.
+            Node m[] = {
+                step( n.nw, j-1 ),
+                step( join( n.nw.ne, n.ne.nw, n.nw.se, n.ne.sw ), j-1 ),
+                step( n.ne, j-1 ),
+                step( join( n.nw.sw, n.nw.se, n.sw.nw, n.sw.ne ), j-1 ),
+                step( join( n.nw.se, n.ne.sw, n.sw.ne, n.se.nw ), j-1 ),
+                step( join( n.ne.sw, n.ne.se, n.se.nw, n.se.ne ), j-1 ),
+                step( n.sw, j-1 ),
+                step( join( n.sw.ne, n.se.nw, n.sw.se, n.se.sw ), j-1 ),
+                step( n.se, j-1 ),
+            };
+            Node q[] = quadrants( m );
+            r = join( step( q[0], j-1 ), step( q[1], j-1 ), step( q[2], j-1 ), step( q[3], j-1 ) );
+        }
+        else {
+            // A smaller step: take the central subnodes without time,
+            // and step the four nodes that they make up the whole way.
+            Node q[] = quadrants( centers( n ) );
+            r = join( step( q[0], j ), step( q[1], j ), step( q[2], j ), step( q[3], j ) );
+        }
+        n.result = r;
+        n.resultStep = j;
+        return r;
+    }
+
+    /**
+     * Returns the four independent subproblems of a step of 2^j
+     * generations: nodes whose step() results are the quadrants of the
+     * next root, see merge().
+     */
+    Node[] split( int j )
+    {
+        pad( j );
+        return quadrants( centers( root ) );
+    }
+
+    /**
+     * Makes the results of the subproblems of split() the new root,
+     * 2^j generations later.
+     */
+    void merge( Node results[], int j )
+    {
+        long h = 1L << (root.level-2);
+
+        root = join( results[0], results[1], results[2], results[3] );
+        originX += h;
+        originY += h;
+        generation += 1L << j;
+    }
+
+    /** Advances the universe by the given number of generations. */
+    void advance( long generations )
+    {
+        for( int j=0; generations>>>j != 0; j++ ){
+            if( ((generations>>>j) & 1) != 0 ){
+                Node q[] = split( j );
+                merge( new Node[] { step( q[0], j ), step( q[1], j ), step( q[2], j ), step( q[3], j ) }, j );
+            }
+        }
+    }
+
+    private static void number( Node n, IdentityHashMap<Node, Integer> index, Vector<Node> order )
+    {
+        if( n.level == 0 || index.containsKey( n ) ){
+            return;
+        }
+        number( n.nw, index, order );
+        number( n.ne, index, order );
+        number( n.sw, index, order );
+        number( n.se, index, order );
+        index.put( n, Integer.valueOf( 2+order.size() ) );
+        order.add( n );
+    }
+
+    private static int indexOf( Node n, IdentityHashMap<Node, Integer> index )
+    {
+        if( n.level == 0 ){
+            return n == ALIVE ? 1 : 0;
+        }
+        return index.get( n ).intValue();
+    }
+
+    /**
+     * Writes node n to m, as its distinct subnodes, each after its
+     * quadrants. Index 0 and 1 are the dead and the alive cell.
+     */
+    static void write( WriteMessage m, Node n ) throws java.io.IOException
+    {
+        IdentityHashMap<Node, Integer> index = new IdentityHashMap<Node, Integer>();
+        Vector<Node> order = new Vector<Node>();
+
+        if( n.level == 0 ){
+            throw new IllegalArgumentException( "cannot write a single cell" );
+        }
+        number( n, index, order );
+        int quadrants[] = new int[4*order.size()];
+        for( int i=0; i<order.size(); i++ ){
+            Node o = order.get( i );
+            quadrants[4*i] = indexOf( o.nw, index );
+            quadrants[4*i+1] = indexOf( o.ne, index );
+            quadrants[4*i+2] = indexOf( o.sw, index );
+            quadrants[4*i+3] = indexOf( o.se, index );
+        }
+        m.writeInt( order.size() );
+        m.writeArray( quadrants );
+    }
+
+    /** Reads a node that write() wrote, as canonical nodes of this universe. */
+    Node read( ReadMessage m ) throws java.io.IOException
+    {
+        int count = m.readInt();
+        int quadrants[] = new int[4*count];
+        Node nodes[] = new Node[2+count];
+
+        m.readArray( quadrants );
+        nodes[0] = DEAD;
+        nodes[1] = ALIVE;
+        for( int i=0; i<count; i++ ){
+            nodes[2+i] = join(
+                nodes[quadrants[4*i]],
+                nodes[quadrants[4*i+1]],
+                nodes[quadrants[4*i+2]],
+                nodes[quadrants[4*i+3]]
+            );
+        }
+        return nodes[1+count];
+    }
+
+    /**
+     * Runs <code>generations</code> generations from a random soup of
+     * <code>size</code> x <code>size</code> cells with HashLife and with
+     * the byte kernel of {@link Life}, on a board that is large enough
+     * for the soup never to reach its border, and returns true iff the
+     * results are equal.
+     */
+    static boolean crossCheck( int size, int generations )
+    {
+        java.util.Random r = new java.util.Random( 42 );
+        int margin = generations+2;
+        int n = size+2*margin;
+        byte board[][] = new byte[n][n];
+
+        for( int x=margin; x<margin+size; x++ ){
+            for( int y=margin; y<margin+size; y++ ){
+                board[x][y] = (byte) (r.nextInt( 3 ) == 0 ? 1 : 0);
+            }
+        }
+
+        HashLife life = new HashLife( 1 << 16 );
+        life.load( board );
+        life.advance( generations );
+
+        for( int gen=0; gen<generations; gen++ ){
+            byte next[][] = new byte[n][n];
+            for( int x=1; x<n-1; x++ ){
+                byte prev[] = board[x-1];
+                byte curr[] = board[x];
+                byte nxt[] = board[x+1];
+
+                for( int y=1; y<n-1; y++ ){
+                    next[x][y] = Life.computeNextState(
+                        gen, x, y,
+                        prev[y-1], prev[y], prev[y+1],
+                        curr[y-1], curr[y], curr[y+1],
+                        nxt[y-1], nxt[y], nxt[y+1]
+                    );
+                }
+            }
+            board = next;
+        }
+
+        byte result[][] = new byte[n][n];
+        life.store( result );
+        for( int x=0; x<n; x++ ){
+            for( int y=0; y<n; y++ ){
+                if( result[x][y] != board[x][y] ){
+                    System.out.println( "Generation " + generations + ": cell " + x + "," + y + " is " + result[x][y] + " in HashLife, but " + board[x][y] + " in the byte board" );
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
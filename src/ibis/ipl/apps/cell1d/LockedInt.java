@@ -0,0 +1,17 @@
+package ibis.ipl.apps.cell1d;
+
+// File: $Id$
+
+/** An int that several threads read and update. */
+final class LockedInt {
+    private int v;
+
+    public LockedInt(){ v = 0; }
+    public LockedInt( int n ){ v = n; }
+
+    public synchronized int get() { return v; }
+
+    public synchronized void set( int n ) { v = n; }
+
+    public synchronized void add( int n ) { v += n; }
+}
@@ -33,17 +33,6 @@ interface OpenConfig {
     static final int SHOWNBOARDHEIGHT = 30;
 }
 
-final class LockedInt {
-    private int v;
-
-    public LockedInt(){ v = 0; }
-    public LockedInt( int n ){ v = n; }
-
-    public synchronized int get() { return v; }
-
-    public synchronized void set( int n ) { v = n; }
-}
-
 final class Problem implements OpenConfig {
     public byte leftBorder[];
     public byte board[][];
@@ -57,6 +46,23 @@ final class Problem implements OpenConfig {
     public byte updatecol[];
     public byte nextupdatecol[];
 
+    // With -bitlife, the bit-packed columns (see BitLife) replace
+    // the byte columns, and board is null.
+    public long bits[][];
+    public long leftBits[];
+    public long rightBits[];
+    public long updatebits[];
+    public long nextupdatebits[];
+    public long rowMask[];
+
+    // With -offheap, the byte columns are kept in an arena (see
+    // ColumnArena), and board is null. Column col is in slot slots[col],
+    // or -1 if we don't have it. The columns around the one we compute
+    // are copied into the window.
+    public ColumnArena arena;
+    public int slots[];
+    public byte window[][];
+
     public Problem( int boardsize, int firstCol, int firstNoCol )
     {
         // We use a null column as guard element for the righthand border
@@ -77,6 +83,182 @@ final class Problem implements OpenConfig {
         leftBorder = new byte[boardsize+2];
         rightBorder = new byte[boardsize+2];
     }
+
+    /** Replaces the byte columns by bit-packed columns. */
+    public void pack( int boardsize )
+    {
+        int words = BitLife.words( boardsize );
+
+        bits = new long[board.length][];
+        for( int col=0; col<board.length; col++ ){
+            if( board[col] != null ){
+                bits[col] = new long[words];
+                BitLife.pack( board[col], bits[col] );
+            }
+        }
+        leftBits = new long[words];
+        BitLife.pack( leftBorder, leftBits );
+        rightBits = new long[words];
+        BitLife.pack( rightBorder, rightBits );
+        updatebits = new long[words];
+        nextupdatebits = new long[words];
+        rowMask = BitLife.rowMask( boardsize );
+        board = null;
+        leftBorder = rightBorder = updatecol = nextupdatecol = null;
+    }
+
+    /** Moves the byte columns into an off-heap arena. */
+    public void moveOffHeap()
+    {
+        int columns = 0;
+
+        for( int col=0; col<board.length; col++ ){
+            if( board[col] != null ){
+                columns++;
+            }
+        }
+        arena = new ColumnArena( leftBorder.length, columns+1 );
+        slots = new int[board.length];
+        for( int col=0; col<board.length; col++ ){
+            slots[col] = -1;
+            if( board[col] != null ){
+                slots[col] = arena.allocate();
+                arena.put( slots[col], board[col] );
+            }
+        }
+        window = new byte[3][leftBorder.length];
+        board = null;
+        nextupdatecol = null;
+    }
+
+    public boolean hasColumn( int col )
+    {
+        if( bits != null ){
+            return bits[col] != null;
+        }
+        if( arena != null ){
+            return slots[col] >= 0;
+        }
+        return board[col] != null;
+    }
+
+    public void removeColumn( int col )
+    {
+        if( bits != null ){
+            bits[col] = null;
+        }
+        else if( arena != null ){
+            if( slots[col] >= 0 ){
+                arena.release( slots[col] );
+                slots[col] = -1;
+            }
+        }
+        else {
+            board[col] = null;
+        }
+    }
+
+    public void writeColumn( WriteMessage m, int col ) throws java.io.IOException
+    {
+        if( bits != null ){
+            m.writeArray( bits[col] );
+        }
+        else if( arena != null ){
+            m.writeByteBuffer( arena.slice( slots[col] ) );
+        }
+        else {
+            m.writeArray( board[col] );
+        }
+    }
+
+    /** Reads column <code>col</code>, allocating it if we don't have it. */
+    public void readColumn( ReadMessage m, int col ) throws java.io.IOException
+    {
+        if( bits != null ){
+            if( bits[col] == null ){
+                bits[col] = new long[rowMask.length];
+            }
+            m.readArray( bits[col] );
+        }
+        else if( arena != null ){
+            if( slots[col]<0 ){
+                slots[col] = arena.allocate();
+            }
+            m.readByteBuffer( arena.slice( slots[col] ) );
+        }
+        else {
+            if( board[col] == null ){
+                board[col] = new byte[leftBorder.length];
+            }
+            m.readArray( board[col] );
+        }
+    }
+
+    public void copyToLeftBorder( int col )
+    {
+        if( bits != null ){
+            System.arraycopy( bits[col], 0, leftBits, 0, leftBits.length );
+        }
+        else if( arena != null ){
+            arena.get( slots[col], leftBorder );
+        }
+        else {
+            System.arraycopy( board[col], 0, leftBorder, 0, leftBorder.length );
+        }
+    }
+
+    public void copyToRightBorder( int col )
+    {
+        if( bits != null ){
+            System.arraycopy( bits[col], 0, rightBits, 0, rightBits.length );
+        }
+        else if( arena != null ){
+            arena.get( slots[col], rightBorder );
+        }
+        else {
+            System.arraycopy( board[col], 0, rightBorder, 0, rightBorder.length );
+        }
+    }
+
+    public void writeLeftBorder( WriteMessage m ) throws java.io.IOException
+    {
+        if( bits != null ){
+            m.writeArray( leftBits );
+        }
+        else {
+            m.writeArray( leftBorder );
+        }
+    }
+
+    public void writeRightBorder( WriteMessage m ) throws java.io.IOException
+    {
+        if( bits != null ){
+            m.writeArray( rightBits );
+        }
+        else {
+            m.writeArray( rightBorder );
+        }
+    }
+
+    public void readLeftBorder( ReadMessage m ) throws java.io.IOException
+    {
+        if( bits != null ){
+            m.readArray( leftBits );
+        }
+        else {
+            m.readArray( leftBorder );
+        }
+    }
+
+    public void readRightBorder( ReadMessage m ) throws java.io.IOException
+    {
+        if( bits != null ){
+            m.readArray( rightBits );
+        }
+        else {
+            m.readArray( rightBorder );
+        }
+    }
 }
 
 class RszHandler implements OpenConfig, RegistryEventHandler {
@@ -224,6 +406,12 @@ class OpenCell1D implements OpenConfig {
     static int max_lsteal = 1;
     static int max_rsteal = 1;
 
+    // The rule we run, see Rules.
+    static Rule rule;
+
+    // With -threads, the threads that compute a generation, or null.
+    static ColumnSweep sweep = null;
+
     /**
      * Creates an update send port that connected to the specified neighbour.
      * @param updatePort The type of the port to construct.
@@ -320,7 +508,7 @@ class OpenCell1D implements OpenConfig {
             }
             // The border has changed, but since until now we maintained it,
             // we can record its current state from our own columns.
-            System.arraycopy( p.board[aimFirstColumn-1], 0, p.leftBorder, 0, boardsize+2 );
+            p.copyToLeftBorder( aimFirstColumn-1 );
         }
         WriteMessage m = port.newMessage();
         m.writeInt( generation );
@@ -329,16 +517,17 @@ class OpenCell1D implements OpenConfig {
         // Send the columns we want to move to our neighbour.
         while( sendCount>0 ){
             int ix = p.firstColumn;
-            byte buf[] = p.board[ix];
 
-            if( buf == null ){
+            m.writeInt( ix );
+            if( p.hasColumn( ix ) ){
+                p.writeColumn( m, ix );
+            }
+            else {
                 // This shouldn't happen, but make the best of it.
                 System.out.println( "ERROR: P" + me + ":" + generation + ": cannot send null column " + ix + " to P" + (me-1) + "; sending a dummy instead" );
-                buf = p.leftBorder;
+                p.writeLeftBorder( m );
             }
-            m.writeInt( ix );
-            m.writeArray( buf );
-            p.board[ix] = null;
+            p.removeColumn( ix );
             p.firstColumn++;
             sendCount--;
         }
@@ -350,7 +539,7 @@ class OpenCell1D implements OpenConfig {
             if( traceCommunication ){
                 System.out.println( "P" + me + ":" + generation + ": sending border column " + p.firstColumn + " to P" + (me-1) );
             }
-            m.writeArray( p.board[p.firstColumn] );
+            p.writeColumn( m, p.firstColumn );
         }
         else {
             if( traceCommunication ){
@@ -412,7 +601,7 @@ class OpenCell1D implements OpenConfig {
             // The border has changed, but since until now we
             // maintained it as an ordinary column, we can easily intialize
             // it.
-            System.arraycopy( p.board[p.firstNoColumn-sendCount], 0, p.rightBorder, 0, boardsize+2 );
+            p.copyToRightBorder( p.firstNoColumn-sendCount );
         }
         WriteMessage m = port.newMessage();
         m.writeInt( generation );
@@ -421,16 +610,17 @@ class OpenCell1D implements OpenConfig {
         // Send the columns we want to move to our right neighbour.
         while( sendCount>0 ){
             int ix = p.firstNoColumn-1;
-            byte buf[] = p.board[ix];
 
-            if( buf == null ){
+            m.writeInt( ix );
+            if( p.hasColumn( ix ) ){
+                p.writeColumn( m, ix );
+            }
+            else {
                 // This shouldn't happen, but make the best of it.
                 System.out.println( "ERROR: P" + me + ":" + generation + ": cannot send null column " + ix + " to P" + (me+1) + "; sending a dummy instead" );
-                buf = p.leftBorder;
+                p.writeLeftBorder( m );
             }
-            m.writeInt( ix );
-            m.writeArray( buf );
-            p.board[ix] = null;
+            p.removeColumn( ix );
             p.firstNoColumn--;
             sendCount--;
         }
@@ -447,12 +637,13 @@ class OpenCell1D implements OpenConfig {
             if( traceCommunication ){
                 System.out.println( "P" + me + ":" + generation + ": sending border column " + ix + " to P" + (me+1) );
             }
-            byte buf[] = p.board[ix];
-            if( buf == null ){
+            if( p.hasColumn( ix ) ){
+                p.writeColumn( m, ix );
+            }
+            else {
                 System.out.println( "ERROR: P" + me + ":" + generation + ": cannot send right border column " + ix + " since it is null; sending a dummy" );
-                buf = p.rightBorder;
+                p.writeRightBorder( m );
             }
-            m.writeArray( buf );
         }
         else {
             // We don't have columns, so no border columns either. Tell
@@ -504,13 +695,10 @@ class OpenCell1D implements OpenConfig {
                 if( colno>=p.firstColumn && colno<p.firstNoColumn ){
                     System.out.println( "ERROR: P" + me + ": left neighbour P" + (me-1) + " sent column " + colno + ", but that is in my range" );
                 }
-                else if( p.board[colno] != null ){
+                else if( p.hasColumn( colno ) ){
                     System.out.println( "ERROR: P" + me + ": left neighbour P" + (me-1) + " sent column " + colno + ", but I already have a column there (although it is not in my range)" );
                 }
-                byte buf[] = new byte[boardsize+2];
-
-                m.readArray( buf );
-                p.board[colno] = buf;
+                p.readColumn( m, colno );
                 if( colno<newFirst ){
                     newFirst = colno;
                 }
@@ -535,7 +723,7 @@ class OpenCell1D implements OpenConfig {
             if( traceCommunication ){
                 System.out.println( "P" + me + ":" + generation + ": receiving border column " + colno + " from P" + (me-1) );
             }
-            m.readArray( p.leftBorder );
+            p.readLeftBorder( m );
         }
         else {
             if( traceCommunication ){
@@ -585,17 +773,14 @@ class OpenCell1D implements OpenConfig {
         int ix = p.firstNoColumn-receiveCount;
 
         for( int i=0; i<receiveCount; i++ ){
-            if( p.board[ix] == null ){
-                p.board[ix] = new byte[boardsize+2];
-            }
-            else {
+            if( p.hasColumn( ix ) ){
                 System.out.println( "P" + me + ":" + generation + ": column " + ix + " is not in my posession, but is not null" );
             }
             colno = m.readInt();
             if( colno != ix ){
                 System.out.println( "ERROR: P" + me +":" + generation + ": P" + (me+1) + " sent me column " + colno + ", but I need column " + ix );
             }
-            m.readArray( p.board[ix] );
+            p.readColumn( m, ix );
             ix++;
         }
         colno = m.readInt();
@@ -604,7 +789,7 @@ class OpenCell1D implements OpenConfig {
             if( traceCommunication ){
                 System.out.println( "P" + me + ":" + generation + ": receiving border column " + colno + " from P" + (me+1) );
             }
-            m.readArray( p.rightBorder );
+            p.readRightBorder( m );
         }
         else {
             if( traceCommunication ){
@@ -637,7 +822,13 @@ class OpenCell1D implements OpenConfig {
 
     static void computeNextGeneration( Problem p )
     {
-        if( p.firstColumn<p.firstNoColumn ){
+        if( p.bits != null ){
+            computeNextBitGeneration( p );
+        }
+        else if( p.arena != null ){
+            computeNextArenaGeneration( p );
+        }
+        else if( p.firstColumn<p.firstNoColumn ){
             // Maintain explicit pointers to the previous, current and
             // next columns. They are updated at the beginning of the
             // loop over the columns, the initializations below are such
@@ -656,6 +847,16 @@ class OpenCell1D implements OpenConfig {
                     System.out.println();
                 }
             }
+            if( sweep != null ){
+                int repeat = 0;
+                if( DISTURBANCE>0 && (me == 1) && generation>=DISTURBANCE_START ){
+                    repeat = DISTURBANCE;
+                }
+                // The sweep advances the column number.
+                sweep.sweep( p.board, p.firstColumn, p.firstNoColumn, p.leftBorder, p.rightBorder, repeat, column );
+                return;
+            }
+            rule.startSweep();
             for( int computeColumn=p.firstColumn; computeColumn<p.firstNoColumn; computeColumn++ ){
                 column.set( computeColumn );    // Make column number public.
                 prev = curr;
@@ -666,40 +867,16 @@ class OpenCell1D implements OpenConfig {
                     // that means we must use the right border.
                     next = p.rightBorder;
                 }
-                for( int j=1; j<=boardsize; j++ ){
-                    p.updatecol[j] = Ecology.computeNextState(
-                        generation,
-                        computeColumn, j,
-                        prev[j-1],
-                        prev[j],
-                        prev[j+1],
-                        curr[j-1],
-                        curr[j],
-                        curr[j+1],
-                        next[j-1],
-                        next[j],
-                        next[j+1]
-                    );
-                }
                 if( DISTURBANCE>0 && (me == 1) && generation>=DISTURBANCE_START ){
+                    // A rule may carry state from column to column, so
+                    // each extra computation is a sweep of its own.
                     for( int iters=0; iters<DISTURBANCE; iters++ ){
-                        for( int j=1; j<=boardsize; j++ ){
-                            p.updatecol[j] = Ecology.computeNextState(
-                                generation,
-                                computeColumn, j,
-                                prev[j-1],
-                                prev[j],
-                                prev[j+1],
-                                curr[j-1],
-                                curr[j],
-                                curr[j+1],
-                                next[j-1],
-                                next[j],
-                                next[j+1]
-                            );
-                        }
+                        rule.startSweep();
+                        rule.computeNextColumn( prev, curr, next, p.updatecol );
                     }
+                    rule.startSweep();
                 }
+                rule.computeNextColumn( prev, curr, next, p.updatecol );
                 
                 byte tmp[] = p.board[computeColumn];
                 p.board[computeColumn] = p.updatecol;
@@ -709,6 +886,78 @@ class OpenCell1D implements OpenConfig {
         }
     }
 
+    /** As computeNextGeneration(), but for the columns in the arena. */
+    static void computeNextArenaGeneration( Problem p )
+    {
+        if( p.firstColumn<p.firstNoColumn ){
+            // Column i is copied into window[i%3] before we need it as
+            // next column, so the window holds the old state of the
+            // previous, current and next column, and we can put the
+            // next state of a column in the arena as soon as we have it.
+            byte window[][] = p.window;
+            byte prev[];
+            byte curr[] = p.leftBorder;
+            byte next[] = window[p.firstColumn%3];
+
+            p.arena.get( p.slots[p.firstColumn], next );
+            rule.startSweep();
+            for( int computeColumn=p.firstColumn; computeColumn<p.firstNoColumn; computeColumn++ ){
+                column.set( computeColumn );    // Make column number public.
+                prev = curr;
+                curr = next;
+                if( p.hasColumn( computeColumn+1 ) ){
+                    next = window[(computeColumn+1)%3];
+                    p.arena.get( p.slots[computeColumn+1], next );
+                }
+                else {
+                    next = p.rightBorder;
+                }
+                if( DISTURBANCE>0 && (me == 1) && generation>=DISTURBANCE_START ){
+                    for( int iters=0; iters<DISTURBANCE; iters++ ){
+                        rule.startSweep();
+                        rule.computeNextColumn( prev, curr, next, p.updatecol );
+                    }
+                    rule.startSweep();
+                }
+                rule.computeNextColumn( prev, curr, next, p.updatecol );
+                p.arena.put( p.slots[computeColumn], p.updatecol );
+            }
+        }
+    }
+
+    /** As computeNextGeneration(), but for Life on bit-packed columns. */
+    static void computeNextBitGeneration( Problem p )
+    {
+        if( p.firstColumn<p.firstNoColumn ){
+            long prev[];
+            long curr[] = p.leftBits;
+            long next[] = p.bits[p.firstColumn];
+
+            for( int computeColumn=p.firstColumn; computeColumn<p.firstNoColumn; computeColumn++ ){
+                column.set( computeColumn );    // Make column number public.
+                prev = curr;
+                curr = next;
+                next = p.bits[computeColumn+1];
+                if( next == null ){
+                    // No column there. We blindly assume that
+                    // that means we must use the right border.
+                    next = p.rightBits;
+                }
+                BitLife.computeNextColumn( prev, curr, next, p.updatebits, p.rowMask );
+                if( DISTURBANCE>0 && (me == 1) && generation>=DISTURBANCE_START ){
+                    for( int iters=0; iters<DISTURBANCE; iters++ ){
+                        BitLife.computeNextColumn( prev, curr, next, p.updatebits, p.rowMask );
+                    }
+                }
+
+                long tmp[] = p.bits[computeColumn];
+                p.bits[computeColumn] = p.updatebits;
+                p.updatebits = p.nextupdatebits;
+                p.nextupdatebits = tmp;
+            }
+        }
+    }
+
     /**
      * See if any new members have joined the computation, and if so
      * update the column numbers we should try to own.
@@ -833,6 +1082,11 @@ class OpenCell1D implements OpenConfig {
     {
         int count = DEFAULTGENERATIONS;
         boolean collectStatistics = false;
+        boolean useBits = false;
+        int threads = 1;
+        boolean offHeap = false;
+        boolean check = false;
+        String ruleName = null;
 
         /** The first column that is my responsibility. */
         int firstColumn = -1;
@@ -849,6 +1103,23 @@ class OpenCell1D implements OpenConfig {
             else if( args[i].equals( "-stats" ) ){
                 collectStatistics = true;
             }
+            else if( args[i].equals( "-bitlife" ) ){
+                useBits = true;
+            }
+            else if( args[i].equals( "-check" ) ){
+                check = true;
+            }
+            else if( args[i].equals( "-offheap" ) ){
+                offHeap = true;
+            }
+            else if( args[i].equals( "-threads" ) ){
+                i++;
+                threads = Integer.parseInt( args[i] );
+            }
+            else if( args[i].equals( "-rule" ) ){
+                i++;
+                ruleName = args[i];
+            }
             else {
                 count = Integer.parseInt( args[i] );
             }
@@ -865,6 +1136,49 @@ class OpenCell1D implements OpenConfig {
             administrationTime = new long[count];
         }
 
+        if( check ){
+            if( !BitLife.crossCheck( boardsize, 100, 50 ) ){
+                System.out.println( "The bit-packed Life kernel does not match the byte kernel" );
+                System.exit( 1 );
+            }
+            System.out.println( "The bit-packed Life kernel matches the byte kernel" );
+            if( !Ecology.crossCheck( boardsize, 100, 50 ) ){
+                System.out.println( "The Ecology table kernel does not match computeNextState()" );
+                System.exit( 1 );
+            }
+            System.out.println( "The Ecology table kernel matches computeNextState()" );
+            if( !Totalistic.crossCheck( boardsize, 100, 50 ) ){
+                System.out.println( "The B3/S23 kernel does not match the byte Life kernel" );
+                System.exit( 1 );
+            }
+            System.out.println( "The B3/S23 kernel matches the byte Life kernel" );
+        }
+        if( ruleName != null && useBits ){
+            System.out.println( "-bitlife only runs Conway's Life, it cannot be combined with -rule" );
+            System.exit( 1 );
+        }
+        try {
+            if( ruleName == null ){
+                ruleName = Rules.DEFAULT;
+            }
+            rule = Rules.create( ruleName, boardsize );
+        }
+        catch( IllegalArgumentException e ){
+            System.out.println( e.getMessage() );
+            System.exit( 1 );
+        }
+        if( threads>1 ){
+            if( useBits ){
+                System.out.println( "-threads only works for the byte rules, it cannot be combined with -bitlife" );
+                System.exit( 1 );
+            }
+            sweep = new ColumnSweep( threads, ruleName, boardsize );
+        }
+        if( offHeap && (useBits || sweep != null) ){
+            System.out.println( "-offheap cannot be combined with -bitlife or -threads" );
+            System.exit( 1 );
+        }
+
         try {
             // The properties of Ibis; the union of the properties below.
             IbisCapabilities iprop = new IbisCapabilities(
@@ -925,6 +1239,9 @@ class OpenCell1D implements OpenConfig {
                 System.out.println( Helpers.getPlatformVersion() );
                 System.out.println( "Using " + ibis.getClass().getName());
                 System.out.println( "disturbance=" + DISTURBANCE + ", workstealing=" + doWorkStealing );
+                if( !useBits ){
+                    System.out.println( "Rule " + rule );
+                }
                 System.out.println( "Started a run of " + count + " generations on a " + boardsize + "x" + boardsize + " board" );
             }
 
@@ -937,13 +1254,17 @@ class OpenCell1D implements OpenConfig {
             // bottom *rows* are also empty dummies that are never updated).
             Problem p = new Problem( boardsize, firstColumn, firstNoColumn );
 
-            if( false ){
+            if( useBits ){
                 // Put a few fixed objects on the board to do a sanity check.
                 Life.putTwister( p.board, 3, 100 );
                 Life.putGlider( p.board, 4, 4 );
+                p.pack( boardsize );
             }
             else {
-                Ecology.putForest( p.board, 100, 100 );
+                rule.putPattern( p.board );
+                if( offHeap ){
+                    p.moveOffHeap();
+                }
             }
 
             if( idle ){
@@ -0,0 +1,32 @@
+package ibis.ipl.apps.cell1d;
+
+// File: $Id$
+
+/**
+ * A cellular automaton rule on the byte columns of Cell1D and OpenCell1D.
+ * Each rule is its own final class, with the loop over the cells of a
+ * column inside computeNextColumn(), so the loop is compiled for that
+ * rule alone: the only call through this interface is once per column.
+ * See Rules for the rules that can be selected with -rule.
+ */
+interface Rule {
+    /** Returns the number of states; the cells are in states 0..states()-1. */
+    int states();
+
+    /** Puts the initial pattern on the board; columns may be null. */
+    void putPattern( byte board[][] );
+
+    /**
+     * Must be called before the first column of every sweep, since a
+     * rule may carry state from a column to the next.
+     */
+    void startSweep();
+
+    /**
+     * Given the previous, current and next column, computes the next
+     * state of cells 1..boardsize of the current column into
+     * <code>out</code>. Within a sweep, the previous and current column
+     * are the current and next column of the previous call.
+     */
+    void computeNextColumn( byte prev[], byte curr[], byte next[], byte out[] );
+}
@@ -0,0 +1,38 @@
+package ibis.ipl.apps.cell1d;
+
+// File: $Id$
+
+/** The rules that can be selected by name. */
+final class Rules {
+    /** Protect constructor since it is a static only class. */
+    private Rules() {}
+
+    static final String DEFAULT = "ecology";
+
+    /**
+     * Returns the rule with the given name for a board of the given
+     * size: ecology, life, highlife, seeds, daynight, or any
+     * outer-totalistic rule in B/S notation, such as B3/S23.
+     */
+    static Rule create( String name, int boardsize )
+    {
+        String n = name.toLowerCase();
+
+        if( n.equals( "ecology" ) ){
+            return new Ecology( boardsize );
+        }
+        if( n.equals( "life" ) ){
+            return new Totalistic( "B3/S23", boardsize );
+        }
+        if( n.equals( "highlife" ) ){
+            return new Totalistic( "B36/S23", boardsize );
+        }
+        if( n.equals( "seeds" ) ){
+            return new Totalistic( "B2/S", boardsize );
+        }
+        if( n.equals( "daynight" ) ){
+            return new Totalistic( "B3678/S34678", boardsize );
+        }
+        return new Totalistic( name, boardsize );
+    }
+}
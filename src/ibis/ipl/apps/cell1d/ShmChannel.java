@@ -0,0 +1,165 @@
+package ibis.ipl.apps.cell1d;
+
+// File: $Id$
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A one-way channel for board columns between two processors on the
+ * same host: a ring of SLOTS columns in a memory-mapped file in
+ * /dev/shm. The writer fills a slot and then advances the count of
+ * written columns; the reader waits for that count, empties the slot and
+ * advances the count of read columns. Each count is only written by one
+ * side, and is kept on its own cache line. The volatile accesses in
+ * barrier() keep the columns and the counts in order.
+ * Columns are byte columns, or bit-packed columns of longs (see BitLife)
+ * when the column length is a multiple of 8 bytes.
+ * The writer creates the file, before it enables connections to its
+ * ports; the reader opens it once its ports are connected.
+ */
+final class ShmChannel {
+    static final int SLOTS = 4;
+    static final String DIR = "/dev/shm";
+    private static final int WRITTEN = 0;
+    private static final int READ = 64;
+    private static final int HEADER = 128;
+    private static volatile int barrier;
+
+    private final File file;
+    private final boolean writer;
+    private final int columnLength;
+    private MappedByteBuffer map;
+    private LongBuffer longs;
+    private long count;
+
+    private ShmChannel( File file, boolean writer, int columnLength )
+        throws java.io.IOException
+    {
+        this.file = file;
+        this.writer = writer;
+        this.columnLength = columnLength;
+
+        long size = HEADER + (long) SLOTS*columnLength;
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try {
+            if( writer ){
+                raf.setLength( size );
+            }
+            else if( raf.length() != size ){
+                throw new java.io.IOException( file + " holds " + raf.length() + " bytes, not " + size );
+            }
+            map = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+        }
+        finally {
+            raf.close();
+        }
+        if( columnLength % 8 == 0 ){
+            // Both sides are on the same machine.
+            map.position( HEADER );
+            longs = map.slice().order( ByteOrder.nativeOrder() ).asLongBuffer();
+        }
+    }
+
+    /** Returns true if the processors on one host can use channels. */
+    static boolean available()
+    {
+        File dir = new File( DIR );
+        return dir.isDirectory() && dir.canWrite();
+    }
+
+    /** Returns the file of the channel from processor <code>from</code> to processor <code>to</code>. */
+    static File file( String pool, int from, int to )
+    {
+        String name = "cell1d-" + System.getProperty( "user.name" ) + "-" + pool + "-" + from + "-" + to;
+        return new File( DIR, name.replaceAll( "[^A-Za-z0-9._-]", "_" ) );
+    }
+
+    /** Creates the channel in <code>file</code>, for writing. */
+    static ShmChannel create( File file, int columnLength )
+        throws java.io.IOException
+    {
+        file.delete();
+        if( !file.createNewFile() ){
+            throw new java.io.IOException( "Cannot create " + file );
+        }
+        file.deleteOnExit();
+        return new ShmChannel( file, true, columnLength );
+    }
+
+    /** Opens the channel in <code>file</code> that the writer created, for reading. */
+    static ShmChannel open( File file, int columnLength )
+        throws java.io.IOException
+    {
+        if( !file.exists() ){
+            throw new java.io.IOException( "No channel " + file );
+        }
+        return new ShmChannel( file, false, columnLength );
+    }
+
+    private static void barrier()
+    {
+        barrier++;
+    }
+
+    void write( byte data[] )
+    {
+        while( count-map.getLong( READ )>=SLOTS ){
+            Thread.yield();
+        }
+        barrier();
+        map.position( HEADER + (int) (count % SLOTS)*columnLength );
+        map.put( data, 0, columnLength );
+        barrier();
+        map.putLong( WRITTEN, ++count );
+    }
+
+    void read( byte data[] )
+    {
+        while( map.getLong( WRITTEN )<=count ){
+            Thread.yield();
+        }
+        barrier();
+        map.position( HEADER + (int) (count % SLOTS)*columnLength );
+        map.get( data, 0, columnLength );
+        barrier();
+        map.putLong( READ, ++count );
+    }
+
+    void write( long data[] )
+    {
+        while( count-map.getLong( READ )>=SLOTS ){
+            Thread.yield();
+        }
+        barrier();
+        longs.position( (int) (count % SLOTS)*(columnLength/8) );
+        longs.put( data );
+        barrier();
+        map.putLong( WRITTEN, ++count );
+    }
+
+    void read( long data[] )
+    {
+        while( map.getLong( WRITTEN )<=count ){
+            Thread.yield();
+        }
+        barrier();
+        longs.position( (int) (count % SLOTS)*(columnLength/8) );
+        longs.get( data );
+        barrier();
+        map.putLong( READ, ++count );
+    }
+
+    void close()
+    {
+        map = null;
+        longs = null;
+        if( writer ){
+            file.delete();
+        }
+    }
+}
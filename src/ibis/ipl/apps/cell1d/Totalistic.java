@@ -0,0 +1,192 @@
+package ibis.ipl.apps.cell1d;
+
+// File: $Id$
+
+/**
+ * An outer-totalistic rule with two states, such as Conway's game of
+ * Life: the next state of a cell only depends on its own state and the
+ * number of live neighbours. The rule is given in B/S notation, e.g.
+ * "B3/S23" for Life or "B36/S23" for HighLife: a dead cell is born with
+ * any of the neighbour counts after the B, a live cell survives with any
+ * of the counts after the S.
+ *
+ * The kernel keeps the vertical sums of three cells of the previous,
+ * current and next column. The sums of the next column are computed
+ * down the column with a sliding window, and passed on to the following
+ * columns as the sums of their current and previous column, so a cell
+ * costs about 3 loads and adds instead of 9. A kernel has state, so each
+ * thread needs its own kernel.
+ */
+final class Totalistic implements Rule {
+    private final String rule;
+    private final int boardsize;
+
+    // The next state of a cell, at [c*9+n] for a cell in state c with n
+    // live neighbours.
+    private final byte nextState[] = new byte[2*9];
+
+    // The vertical sums of the previous, current and next column.
+    private byte sums[][];
+    private boolean valid = false;
+
+    Totalistic( String rule, int boardsize )
+    {
+        this.boardsize = boardsize;
+        String parts[] = rule.toUpperCase().split( "/" );
+        boolean born = false;
+        boolean survives = false;
+
+        for( int i=0; i<parts.length; i++ ){
+            String part = parts[i];
+            int c;
+
+            if( part.startsWith( "B" ) && !born ){
+                c = 0;
+                born = true;
+            }
+            else if( part.startsWith( "S" ) && !survives ){
+                c = 1;
+                survives = true;
+            }
+            else {
+                throw new IllegalArgumentException( "Bad rule " + rule + ", use B/S notation, such as B3/S23" );
+            }
+            for( int k=1; k<part.length(); k++ ){
+                int n = part.charAt( k )-'0';
+                if( n<0 || n>8 ){
+                    throw new IllegalArgumentException( "Bad neighbour count " + part.charAt( k ) + " in rule " + rule );
+                }
+                nextState[c*9+n] = 1;
+            }
+        }
+        if( !born || !survives ){
+            throw new IllegalArgumentException( "Bad rule " + rule + ", use B/S notation, such as B3/S23" );
+        }
+
+        StringBuffer b = new StringBuffer( "B" );
+        for( int n=0; n<=8; n++ ){
+            if( nextState[n] != 0 ){
+                b.append( n );
+            }
+        }
+        b.append( "/S" );
+        for( int n=0; n<=8; n++ ){
+            if( nextState[9+n] != 0 ){
+                b.append( n );
+            }
+        }
+        this.rule = b.toString();
+        sums = new byte[3][boardsize+2];
+    }
+
+    public String toString()
+    {
+        return rule;
+    }
+
+    public int states()
+    {
+        return 2;
+    }
+
+    public void putPattern( byte board[][] )
+    {
+        Life.putTwister( board, 3, 100 );
+        Life.putGlider( board, 4, 4 );
+    }
+
+    public void startSweep()
+    {
+        valid = false;
+    }
+
+    private void sum( byte col[], byte s[] )
+    {
+        for( int j=1; j<=boardsize; j++ ){
+            s[j] = (byte) (col[j-1] + col[j] + col[j+1]);
+        }
+    }
+
+    public void computeNextColumn( byte prev[], byte curr[], byte next[], byte out[] )
+    {
+        if( !valid ){
+            sum( prev, sums[0] );
+            sum( curr, sums[1] );
+            valid = true;
+        }
+        final byte table[] = nextState;
+        final byte sp[] = sums[0];
+        final byte sc[] = sums[1];
+        final byte sn[] = sums[2];
+        // The cells of the next column in rows j-1 and j.
+        int up = next[0];
+        int here = next[1];
+
+        for( int j=1; j<=boardsize; j++ ){
+            int down = next[j+1];
+            int v = up + here + down;
+            int c = curr[j];
+
+            sn[j] = (byte) v;
+            out[j] = table[c*9 + sp[j] + sc[j] + v - c];
+            up = here;
+            here = down;
+        }
+
+        // The sums move one column to the left.
+        sums[0] = sc;
+        sums[1] = sn;
+        sums[2] = sp;
+    }
+
+    /**
+     * Runs <code>generations</code> generations on a random board of
+     * <code>boardsize</code> x <code>columns</code> cells with both the
+     * B3/S23 kernel and the byte kernel of {@link Life}, and returns true
+     * iff they agree on every cell after every generation.
+     */
+    static boolean crossCheck( int boardsize, int columns, int generations )
+    {
+        java.util.Random r = new java.util.Random( 42 );
+        Totalistic life = new Totalistic( "B3/S23", boardsize );
+        byte board[][] = new byte[columns+2][boardsize+2];
+        byte kernel[][] = new byte[columns+2][boardsize+2];
+
+        for( int i=1; i<=columns; i++ ){
+            for( int j=1; j<=boardsize; j++ ){
+                board[i][j] = kernel[i][j] = (byte) (r.nextInt( 3 ) == 0 ? 1 : 0);
+            }
+        }
+
+        for( int gen=0; gen<generations; gen++ ){
+            byte nextBoard[][] = new byte[columns+2][boardsize+2];
+            byte nextKernel[][] = new byte[columns+2][boardsize+2];
+
+            life.startSweep();
+            for( int i=1; i<=columns; i++ ){
+                byte prev[] = board[i-1];
+                byte curr[] = board[i];
+                byte next[] = board[i+1];
+
+                for( int j=1; j<=boardsize; j++ ){
+                    nextBoard[i][j] = Life.computeNextState(
+                        gen, i, j,
+                        prev[j-1], prev[j], prev[j+1],
+                        curr[j-1], curr[j], curr[j+1],
+                        next[j-1], next[j], next[j+1]
+                    );
+                }
+                life.computeNextColumn( kernel[i-1], kernel[i], kernel[i+1], nextKernel[i] );
+                for( int j=0; j<boardsize+2; j++ ){
+                    if( nextKernel[i][j] != nextBoard[i][j] ){
+                        System.out.println( "Generation " + gen + ": cell " + i + "," + j + " is " + nextKernel[i][j] + " with " + life + ", but " + nextBoard[i][j] + " with Life" );
+                        return false;
+                    }
+                }
+            }
+            board = nextBoard;
+            kernel = nextKernel;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,269 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * Autotuner.java
+ *
+ * Picks the fastest configuration of an SOR run by successive halving: all
+ * candidate configurations do a short timed trial, the faster half goes on
+ * to a trial twice as long, and so on until one is left. The trials spend
+ * a fixed budget of iterations in total. Each candidate runs in a solver
+ * of its own, on a copy of the group with its own port names. The
+ * solvers take turns on a single grid, which is reset before each trial,
+ * so tuning takes no more memory than the run itself.
+ *
+ * The time of a trial is the maximum over the members, so all members
+ * drop the same candidates. The winner is cached in a file, one line per
+ * pool size, N and hosts; rank 0 reads it, and the reduce tells the other
+ * members.
+ */
+
+import ibis.ipl.Ibis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Vector;
+
+class Autotuner {
+
+    /* the shortest trial that says anything */
+    private static final int MIN_TRIAL = 10;
+
+    private static final String[] REDUCERS = { "linear", "tree", "cluster" };
+
+    static class Config {
+        final boolean async;
+
+        final int itersPerReduce;
+
+        final int reducer; /* SOR.REDUCE_* */
+
+        final int temporal; /* wavefront iterations, 0: none */
+
+        Config(boolean async, int itersPerReduce, int reducer, int temporal) {
+            this.async = async;
+            this.itersPerReduce = itersPerReduce;
+            this.reducer = reducer;
+            this.temporal = temporal;
+        }
+
+        public String toString() {
+            return "async=" + async + " reduce-fac=" + itersPerReduce
+                    + " reducer=" + REDUCERS[reducer] + " temporal="
+                    + temporal;
+        }
+    }
+
+    private final Ibis ibis;
+
+    private final Group group;
+
+    private final ReducerInterface reducer;
+
+    private final int N;
+
+    private final int nrhs;
+
+    private final boolean verbose;
+
+    private final Config[] candidates;
+
+    /**
+     * @param fixed true if the run has a fixed number of iterations, so
+     *        that it can reduce less often and fuse iterations
+     * @param temporal true if the run can sweep with the wavefront
+     */
+    Autotuner(Ibis ibis, Group group, ReducerInterface reducer, int N,
+            int nrhs, boolean fixed, boolean temporal, boolean verbose) {
+        this.ibis = ibis;
+        this.group = group;
+        this.reducer = reducer;
+        this.N = N;
+        this.nrhs = nrhs;
+        this.verbose = verbose;
+
+        int[] facs = fixed ? new int[] { 1, 4, 16 } : new int[] { 1 };
+        int[] depths = fixed && temporal ? new int[] { 0, 2, 4 }
+                : new int[] { 0 };
+        int[] kinds = group.size() == 1 ? new int[] { SOR.REDUCE_TREE }
+                : new int[] { SOR.REDUCE_TREE, SOR.REDUCE_LINEAR,
+                        SOR.REDUCE_CLUSTER };
+
+        Vector<Config> v = new Vector<Config>();
+        for (int d = 0; d < depths.length; d++) {
+            for (int f = 0; f < facs.length; f++) {
+                for (int k = 0; k < kinds.length; k++) {
+                    v.add(new Config(false, facs[f], kinds[k], depths[d]));
+                    if (depths[d] == 0) {
+                        /* the wavefront does not overlap the halo exchange */
+                        v.add(new Config(true, facs[f], kinds[k], 0));
+                    }
+                }
+            }
+        }
+        candidates = v.toArray(new Config[v.size()]);
+    }
+
+    /**
+     * Returns the cached configuration for this pool and N, or else the
+     * fastest one found in trials of <code>budget</code> iterations in
+     * total, which is then cached.
+     */
+    Config tune(int budget) throws IOException {
+        String key = key();
+        String file = SOR.tp.getProperty("autotune.cache", System
+                .getProperty("user.home")
+                + File.separator + ".sor-autotune");
+
+        int cached = -1;
+        if (group.getRank() == 0) {
+            cached = lookup(file, key);
+        }
+        cached = (int) reducer.reduce((double) cached);
+        if (cached >= 0) {
+            if (verbose) {
+                System.out.println("Autotune      : " + candidates[cached]
+                        + " (cached)");
+            }
+            return candidates[cached];
+        }
+
+        int best = halve(budget);
+
+        if (group.getRank() == 0) {
+            store(file, key, candidates[best]);
+        }
+        if (verbose) {
+            System.out.println("Autotune      : " + candidates[best]);
+        }
+        return candidates[best];
+    }
+
+    private int halve(int budget) throws IOException {
+        int[] alive = new int[candidates.length];
+        for (int c = 0; c < alive.length; c++) {
+            alive[c] = c;
+        }
+        int rounds = 1;
+        while ((1 << rounds) < alive.length) {
+            rounds++;
+        }
+
+        SOR[] trials = new SOR[candidates.length];
+        double[][] grid = null;
+        while (true) {
+            int iters = Math.max(MIN_TRIAL, budget / (rounds * alive.length));
+            double[] time = new double[alive.length];
+            for (int a = 0; a < alive.length; a++) {
+                int c = alive[a];
+                if (trials[c] == null) {
+                    trials[c] = create(c, iters);
+                }
+                trials[c].setGrid(grid);
+                grid = trials[c].getGrid();
+                trials[c].setMaxIterations(iters);
+                SORStatistics s = trials[c].trial();
+                time[a] = reducer.reduce(s.getSeconds() / iters);
+            }
+
+            /* sort the survivors by time, stable for equal times */
+            for (int a = 1; a < alive.length; a++) {
+                for (int b = a; b > 0 && time[b] < time[b - 1]; b--) {
+                    double t = time[b];
+                    time[b] = time[b - 1];
+                    time[b - 1] = t;
+                    int c = alive[b];
+                    alive[b] = alive[b - 1];
+                    alive[b - 1] = c;
+                }
+            }
+            if (verbose) {
+                System.out.println("Autotune round of " + iters
+                        + " iterations:");
+                for (int a = 0; a < alive.length; a++) {
+                    System.out.println("    " + (float) (time[a] * 1000.0)
+                            + " ms/iteration  " + candidates[alive[a]]);
+                }
+            }
+
+            int keep = alive.length == 1 ? 1 : (alive.length + 1) / 2;
+            for (int a = keep; a < alive.length; a++) {
+                trials[alive[a]].end();
+                trials[alive[a]] = null;
+            }
+            if (keep == 1) {
+                trials[alive[0]].end();
+                return alive[0];
+            }
+            int[] next = new int[keep];
+            System.arraycopy(alive, 0, next, 0, keep);
+            alive = next;
+        }
+    }
+
+    private SOR create(int c, int iters) throws IOException {
+        Config config = candidates[c];
+        SOR trial = new SOR(ibis, group.split("tune" + c + "-", 1), N, nrhs,
+                iters, config.async, config.itersPerReduce,
+                config.reducer == SOR.REDUCE_CLUSTER);
+        trial.setReducer(config.reducer);
+        if (config.temporal > 0) {
+            trial.setTemporalBlocking(config.temporal);
+        }
+        return trial;
+    }
+
+    private String key() {
+        StringBuffer s = new StringBuffer("size=" + group.size() + " N=" + N
+                + " hosts=");
+        for (int r = 0; r < group.size(); r++) {
+            s.append(r == 0 ? "" : ",");
+            s.append(group.getMember(r).location());
+        }
+        return s.toString();
+    }
+
+    /**
+     * Returns the candidate that the last line for <code>key</code> in
+     * <code>file</code> names, or -1.
+     */
+    private int lookup(String file, String key) throws IOException {
+        if (!new File(file).exists()) {
+            return -1;
+        }
+        String found = null;
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0 && line.substring(0, tab).equals(key)) {
+                    found = line.substring(tab + 1);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        for (int c = 0; found != null && c < candidates.length; c++) {
+            if (candidates[c].toString().equals(found)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    private void store(String file, String key, Config config)
+            throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file, true));
+        try {
+            out.println(key + "\t" + config);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * Bootstrap.java
+ *
+ * Ranks the members of a pool and sets up the connections between them,
+ * without a registry round trip per member or a port connection at a time.
+ *
+ * With totally ordered membership, every member sees the joins in the
+ * same order, so the rank of a member is its place in that order: the
+ * ranking takes no elections at all, only the join events that the
+ * registry delivers anyway. An Ibis without membership events falls back
+ * to the elections "0" ... "poolsize-1": the member still elects until it
+ * wins its own rank, but the results of the higher ranks are looked up
+ * concurrently.
+ *
+ * The connections are queued with {@link #connect} while the ports are
+ * created, and made by {@link #connectAll}, one thread per send port. A
+ * send port to several receivers connects to all of them in one call.
+ */
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisConfigurationException;
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.Registry;
+import ibis.ipl.SendPort;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.WeakHashMap;
+
+class Bootstrap {
+
+    /* threads that look up election results in the fallback */
+    private static final int RESOLVERS = 16;
+
+    /* the ranking of each Ibis, since the joins are reported only once */
+    private static final WeakHashMap<Ibis, IbisIdentifier[]> rankings =
+            new WeakHashMap<Ibis, IbisIdentifier[]>();
+
+    private final Vector<SendPort> ports = new Vector<SendPort>();
+
+    private final HashMap<SendPort, HashMap<IbisIdentifier, String>> targets =
+            new HashMap<SendPort, HashMap<IbisIdentifier, String>>();
+
+    /**
+     * Returns the members of the closed-world pool of <code>ibis</code>,
+     * in rank order. All members must call this.
+     */
+    static IbisIdentifier[] rank(Ibis ibis) throws IOException {
+        synchronized (ibis) {
+            IbisIdentifier[] members;
+            synchronized (rankings) {
+                members = rankings.get(ibis);
+            }
+            if (members == null) {
+                try {
+                    members = joinOrder(ibis.registry());
+                } catch (IbisConfigurationException e) {
+                    members = elect(ibis);
+                }
+                synchronized (rankings) {
+                    rankings.put(ibis, members);
+                }
+            }
+            return members;
+        }
+    }
+
+    private static IbisIdentifier[] joinOrder(Registry registry)
+            throws IOException {
+        IbisIdentifier[] members = new IbisIdentifier[registry.getPoolSize()];
+
+        registry.waitUntilPoolClosed();
+        int n = 0;
+        while (n < members.length) {
+            IbisIdentifier[] joined = registry.joinedIbises();
+            for (int i = 0; i < joined.length && n < members.length; i++) {
+                members[n++] = joined[i];
+            }
+            if (joined.length == 0) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted while ranking");
+                }
+            }
+        }
+        return members;
+    }
+
+    private static IbisIdentifier[] elect(Ibis ibis) throws IOException {
+        final Registry registry = ibis.registry();
+        final IbisIdentifier[] members = new IbisIdentifier[registry
+                .getPoolSize()];
+
+        int rank = -1;
+        for (int i = 0; i < members.length; i++) {
+            members[i] = registry.elect("" + i);
+            if (members[i].equals(ibis.identifier())) {
+                rank = i;
+                break;
+            }
+        }
+
+        final int first = rank + 1;
+        final IOException[] failure = new IOException[1];
+        Thread[] resolvers = new Thread[Math.min(RESOLVERS, members.length
+                - first)];
+        for (int t = 0; t < resolvers.length; t++) {
+            final int stride = resolvers.length;
+            final int start = first + t;
+            resolvers[t] = new Thread("SOR bootstrap " + t) {
+                public void run() {
+                    try {
+                        for (int i = start; i < members.length; i += stride) {
+                            members[i] = registry.getElectionResult("" + i);
+                        }
+                    } catch (IOException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            resolvers[t].start();
+        }
+        join(resolvers);
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return members;
+    }
+
+    private static void join(Thread[] threads) throws IOException {
+        for (int t = 0; t < threads.length; t++) {
+            try {
+                threads[t].join();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted during the bootstrap");
+            }
+        }
+    }
+
+    /**
+     * Queues a connection from <code>port</code> to the receive port
+     * <code>name</code> of <code>id</code>.
+     */
+    void connect(SendPort port, IbisIdentifier id, String name) {
+        HashMap<IbisIdentifier, String> receivers = targets.get(port);
+        if (receivers == null) {
+            receivers = new HashMap<IbisIdentifier, String>();
+            targets.put(port, receivers);
+            ports.add(port);
+        }
+        receivers.put(id, name);
+    }
+
+    /**
+     * Makes all queued connections, concurrently. The receive ports of
+     * this member must have been enabled before, since the peers may be
+     * connecting to them at the same time.
+     */
+    void connectAll() throws IOException {
+        final IOException[] failure = new IOException[1];
+        Thread[] connectors = new Thread[ports.size()];
+
+        for (int p = 0; p < connectors.length; p++) {
+            final SendPort port = ports.get(p);
+            final HashMap<IbisIdentifier, String> receivers = targets
+                    .get(port);
+            connectors[p] = new Thread("SOR connect " + p) {
+                public void run() {
+                    try {
+                        if (receivers.size() == 1) {
+                            IbisIdentifier id = receivers.keySet().iterator()
+                                    .next();
+                            port.connect(id, receivers.get(id));
+                        } else {
+                            port.connect(receivers);
+                        }
+                    } catch (IOException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            connectors[p].start();
+        }
+        join(connectors);
+
+        ports.clear();
+        targets.clear();
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+}
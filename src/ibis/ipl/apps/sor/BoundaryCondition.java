@@ -0,0 +1,10 @@
+package ibis.ipl.apps.sor;
+
+/**
+ * Supplies the Dirichlet values of an SOR problem: the values of the cells
+ * in the first and last row and column of the grid.
+ */
+public interface BoundaryCondition {
+
+    public double value(int row, int col);
+}
@@ -47,20 +47,35 @@ public class ClusterReducer implements ReducerInterface {
 
     private int clusterSize;
 
-    public ClusterReducer(Ibis ibis, IbisIdentifier[] instances, int rank)
-            throws IOException {
+    public ClusterReducer(Ibis ibis, Group group) throws IOException {
+        this(ibis, group, null);
+    }
+
+    /**
+     * Creates the ports, but only queues their connections on
+     * <code>bootstrap</code>, to be made together with those of others.
+     * If <code>bootstrap</code> is null, they are made right away.
+     */
+    ClusterReducer(Ibis ibis, Group group, Bootstrap bootstrap) throws IOException {
+
+        boolean connect = bootstrap == null;
+        if (connect) {
+            bootstrap = new Bootstrap();
+        }
 
+        IbisIdentifier[] instances = group.getMembers();
+        int rank = group.getRank();
         int size = instances.length;
 
         String[] clusters = new String[size];
         int[] cluster = new int[size];
 
-        int clusterSize = 0;
+        clusterSize = 0;
         for (int i = 0; i < size; i++) {
-            String myCluster = ibis.identifier().location().getParent().toString();
+            String myCluster = instances[i].location().getParent().toString();
             int j = 0;
             for (j = 0; j < clusterSize; j++) {
-                if (clusters[i].equals(myCluster)) {
+                if (clusters[j].equals(myCluster)) {
                     cluster[i] = j;
                     break;
                 }
@@ -155,7 +170,7 @@ public class ClusterReducer implements ReducerInterface {
             for (int c = 0; c < 2; c++) {
                 if (child[c] != LEAF_NODE) {
                     reduceRreduce[c] = ibis.createReceivePort(portTypeReduce,
-                            "SOR" + c + "_reduceR");
+                            group.portName("SOR" + c + "_reduceR"));
                     reduceRreduce[c].enableConnections();
                 }
             }
@@ -164,29 +179,31 @@ public class ClusterReducer implements ReducerInterface {
         if (parent != LEAF_NODE) {
             int childrank = localRank[rank] - 2 * localRank[parent] - 1;
             reduceSreduce = ibis.createSendPort(portTypeReduce,
-                    "SOR" + childrank + "_reduceS");
+                    group.portName("SOR" + childrank + "_reduceS"));
             IbisIdentifier id = instances[parent];
-            reduceSreduce.connect(id, "SOR" + childrank + "_reduceR");
+            bootstrap.connect(reduceSreduce, id,
+                    group.portName("SOR" + childrank + "_reduceR"));
         }
 
         /* Create and connect ports for the intra-cluster bcast phase */
         if (parent != LEAF_NODE) {
             reduceRbcast = ibis.createReceivePort(portTypeBroadcast,
-                    "SORreduceR");
+                    group.portName("SORreduceR"));
             reduceRbcast.enableConnections();
         }
 
         if (children > 0) {
             reduceSbcast = ibis.createSendPort(portTypeBroadcast,
-                    "SORreduceSBC");
+                    group.portName("SORreduceSBC"));
             for (int c = 0; c < 2; c++) {
                 if (child[c] != LEAF_NODE) {
-                    IbisIdentifier id = instances[c];
-                    reduceSbcast.connect(id, "SORreduceR");
+                    IbisIdentifier id = instances[child[c]];
+                    bootstrap.connect(reduceSbcast, id,
+                            group.portName("SORreduceR"));
                 }
             }
         }
-        System.err.println(rank + ": local connection OK");
+        System.err.println(rank + ": local ports OK");
 
         if (rank == clusterRoot[myCluster]) {
             /* Create and connect ports for the inter-cluster reduce phase */
@@ -199,21 +216,26 @@ public class ClusterReducer implements ReducerInterface {
             for (int i = 0; i < clusterSize; i++) {
                 if (i != myCluster) {
                     reduceRinter[i] = ibis.createReceivePort(portTypeInter,
-                            "SOR" + i + "_interR");
+                            group.portName("SOR" + i + "_interR"));
                     reduceRinter[i].enableConnections();
                 }
             }
 
-            reduceSinter = ibis.createSendPort(portTypeInter, "SORinterS");
+            reduceSinter = ibis.createSendPort(portTypeInter,
+                    group.portName("SORinterS"));
             for (int i = 0; i < clusterSize; i++) {
                 if (i != myCluster) {
                     IbisIdentifier id = instances[clusterRoot[i]];
-                    reduceSinter.connect(id, "SOR" + myCluster + "_interR");
+                    bootstrap.connect(reduceSinter, id,
+                            group.portName("SOR" + myCluster + "_interR"));
                 }
             }
-            System.err.println(rank + ": interlocal connection OK");
+            System.err.println(rank + ": interlocal ports OK");
         }
 
+        if (connect) {
+            bootstrap.connectAll();
+        }
     }
 
     public double reduce(double value) throws IOException {
@@ -261,6 +283,61 @@ public class ClusterReducer implements ReducerInterface {
         return value;
     }
 
+    public double[] reduce(double[] values) throws IOException {
+
+        double[] temp = new double[values.length];
+
+        for (int c = 0; c < 2; c++) {
+            if (child[c] != LEAF_NODE) {
+                ReadMessage rm = reduceRreduce[c].receive();
+                rm.readArray(temp);
+                rm.finish();
+                max(values, temp);
+            }
+        }
+
+        if (parent != LEAF_NODE) {
+            WriteMessage wm = reduceSreduce.newMessage();
+            wm.writeArray(values);
+            wm.finish();
+
+            ReadMessage rm = reduceRbcast.receive();
+            rm.readArray(values);
+            rm.finish();
+
+        } else {
+            /* Do the inter-cluster all2all */
+            if (clusterSize > 1) {
+                WriteMessage wm = reduceSinter.newMessage();
+                wm.writeArray(values);
+                wm.finish();
+            }
+
+            for (int i = 0; i < clusterSize; i++) {
+                if (i != myCluster) {
+                    ReadMessage rm = reduceRinter[i].receive();
+                    rm.readArray(temp);
+                    rm.finish();
+                    max(values, temp);
+                }
+            }
+        }
+
+        if (reduceSbcast != null) {
+            WriteMessage wm = reduceSbcast.newMessage();
+            wm.writeArray(values);
+            wm.finish();
+        }
+
+        return values;
+    }
+
+    private static void max(double[] values, double[] temp) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.max(values[i], temp[i]);
+        }
+    }
+
     public void end() throws IOException {
 
         if (reduceSreduce != null) {
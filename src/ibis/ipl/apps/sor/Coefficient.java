@@ -0,0 +1,11 @@
+package ibis.ipl.apps.sor;
+
+/**
+ * Supplies the coefficient a of the operator div(a grad u) of an SOR
+ * problem with variable coefficients. It must be positive, and is needed
+ * on all cells including the boundary.
+ */
+public interface Coefficient {
+
+    public double value(int row, int col);
+}
@@ -0,0 +1,415 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * GridFile.java
+ *
+ * A binary SOR grid file, written in parallel: every member maps the part
+ * of the file that holds its own rows and writes them in place, so the
+ * grid is never gathered on one machine.
+ *
+ * The file has a header of HEADER bytes:
+ *     long   magic
+ *     int    N (rows and columns, including the boundary)
+ *     int    nrhs (problems interleaved per cell, see SOR.getGrid())
+ *     long   iteration
+ *     double omega
+ *     double maxdiff
+ *     int    complete (1 once all members have written their rows)
+ * followed by the N rows of N * nrhs big-endian doubles.
+ *
+ * The rows are written by a background thread, so that the next
+ * iterations overlap the write. The grid is snapshotted row by row with
+ * copy-on-write: before the solver updates a row that has not been
+ * written yet, it calls preserve(), which writes the row first.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+class GridFile implements Runnable {
+
+    static final long MAGIC = 0x534f524752494431L; /* "SORGRID1" */
+
+    static final int HEADER = 48;
+
+    private static final int ITERATION = 16;
+
+    private static final int COMPLETE = 40;
+
+    /* row states during a write */
+    private static final int DONE = 0;
+
+    private static final int PENDING = 1;
+
+    private static final int BUSY = 2;
+
+    private final int nrow;
+
+    private final int ncol;
+
+    private final int nrhs;
+
+    private final int rowLength;
+
+    private final long rowBytes;
+
+    private final int rowsPerMap; /* a mapping is at most 2 GB */
+
+    private double[][] g;
+
+    private int first;
+
+    private int last;
+
+    private MappedByteBuffer[] maps;
+
+    private DoubleBuffer[] writerViews;
+
+    private DoubleBuffer[] solverViews;
+
+    private AtomicIntegerArray state;
+
+    private volatile boolean active = false;
+
+    private Thread writer;
+
+    GridFile(int nrow, int ncol, int nrhs) {
+        this.nrow = nrow;
+        this.ncol = ncol;
+        this.nrhs = nrhs;
+        rowLength = nrhs * ncol;
+        rowBytes = 8L * rowLength;
+        rowsPerMap = (int) Math.max(1, Integer.MAX_VALUE / rowBytes);
+    }
+
+    /**
+     * Starts writing rows <code>first ... last</code> of <code>g</code> to
+     * <code>file</code>, in the background. The member that writes the
+     * header marks the file incomplete until {@link #commit} is called.
+     */
+    synchronized void begin(String file, double[][] g, int first, int last,
+            boolean header, long iteration, double omega, double maxdiff)
+            throws IOException {
+
+        await();
+
+        this.g = g;
+        this.first = first;
+        this.last = last;
+
+        int rows = last - first + 1;
+        int nmaps = (rows + rowsPerMap - 1) / rowsPerMap;
+        maps = new MappedByteBuffer[nmaps];
+        writerViews = new DoubleBuffer[nmaps];
+        solverViews = new DoubleBuffer[nmaps];
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (header) {
+                ByteBuffer h = ByteBuffer.allocate(HEADER);
+                h.putLong(MAGIC);
+                h.putInt(nrow);
+                h.putInt(nrhs);
+                h.putLong(iteration);
+                h.putDouble(omega);
+                h.putDouble(maxdiff);
+                h.putInt(0);
+                h.flip();
+                channel.write(h, 0);
+                channel.force(false);
+            }
+            for (int m = 0; m < nmaps; m++) {
+                int r = first + m * rowsPerMap;
+                int n = Math.min(rowsPerMap, last + 1 - r);
+                maps[m] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER
+                        + r * rowBytes, n * rowBytes);
+                writerViews[m] = maps[m].asDoubleBuffer();
+                solverViews[m] = maps[m].asDoubleBuffer();
+            }
+        } finally {
+            raf.close();
+        }
+
+        state = new AtomicIntegerArray(rows);
+        for (int i = 0; i < rows; i++) {
+            state.set(i, PENDING);
+        }
+        active = true;
+
+        if (writer == null) {
+            writer = new Thread(this, "SOR grid writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        notifyAll();
+    }
+
+    private void write(DoubleBuffer[] views, int row) {
+        int k = row - first;
+        DoubleBuffer view = views[k / rowsPerMap];
+        view.position((k % rowsPerMap) * rowLength);
+        view.put(g[row]);
+    }
+
+    /**
+     * Called by the solver before it updates <code>row</code>: writes the
+     * row if the writer has not done so yet.
+     */
+    void preserve(int row) {
+        if (!active) {
+            return;
+        }
+        int k = row - first;
+        if (state.compareAndSet(k, PENDING, BUSY)) {
+            write(solverViews, row);
+            state.set(k, DONE);
+        } else {
+            while (state.get(k) == BUSY) {
+                Thread.yield();
+            }
+        }
+    }
+
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                while (!active) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            for (int row = first; row <= last; row++) {
+                int k = row - first;
+                if (state.compareAndSet(k, PENDING, BUSY)) {
+                    write(writerViews, row);
+                    state.set(k, DONE);
+                }
+            }
+            /* rows that the solver is writing itself */
+            for (int k = 0; k <= last - first; k++) {
+                while (state.get(k) == BUSY) {
+                    Thread.yield();
+                }
+            }
+            for (int m = 0; m < maps.length; m++) {
+                maps[m].force();
+            }
+
+            synchronized (this) {
+                maps = null;
+                writerViews = null;
+                solverViews = null;
+                g = null;
+                active = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the rows of the current write are on disk.
+     */
+    synchronized void await() throws IOException {
+        while (active) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted while writing the grid");
+            }
+        }
+    }
+
+    void end() {
+        if (writer != null) {
+            writer.interrupt();
+            writer = null;
+        }
+    }
+
+    /**
+     * Marks <code>file</code> complete. Must only be called when all
+     * members have finished their {@link #await}.
+     */
+    static void commit(String file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(COMPLETE);
+            raf.writeInt(1);
+            raf.getChannel().force(false);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the iteration of the complete grid in <code>file</code>, or
+     * -1 if the file does not exist or is incomplete. A file without a
+     * header yet is incomplete: the other members may extend it before
+     * rank 0 has written the header, or rank 0 may have died part-way.
+     */
+    static long iteration(String file) throws IOException {
+        if (!new File(file).exists()) {
+            return -1;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < HEADER) {
+                return -1;
+            }
+            long magic = raf.readLong();
+            if (magic == 0) {
+                return -1;
+            }
+            if (magic != MAGIC) {
+                throw new IOException(file + " is not an SOR grid file");
+            }
+            raf.seek(COMPLETE);
+            if (raf.readInt() != 1) {
+                return -1;
+            }
+            raf.seek(ITERATION);
+            return raf.readLong();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns <code>file</code> if it is a complete grid file, or else the
+     * one of the checkpoints <code>file.0</code> and <code>file.1</code>
+     * that is complete and latest.
+     */
+    static String latest(String file) throws IOException {
+        if (new File(file).exists()) {
+            if (iteration(file) < 0) {
+                throw new IOException(file + " is incomplete");
+            }
+            return file;
+        }
+        long i0 = iteration(file + ".0");
+        long i1 = iteration(file + ".1");
+        if (i0 < 0 && i1 < 0) {
+            throw new IOException("No complete checkpoint " + file
+                    + ".0 or " + file + ".1");
+        }
+        return file + (i0 > i1 ? ".0" : ".1");
+    }
+
+    /**
+     * Checks that {@link #latest} picks the complete checkpoint
+     * <code>file.0</code> while <code>file.1</code> is missing its header
+     * in the ways a crash can leave it: empty, shorter than the header,
+     * extended by the other members before rank 0 wrote the header, and
+     * with the header but not yet committed; and that it picks
+     * <code>file.1</code> once that is committed. Returns false if not.
+     */
+    static boolean checkRestart() throws IOException {
+        File dir = File.createTempFile("sor-check", "");
+        dir.delete();
+        dir.mkdir();
+        String file = new File(dir, "grid").getPath();
+        String file0 = file + ".0";
+        String file1 = file + ".1";
+        int n = 8;
+
+        double[][] g = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                g[i][j] = i * n + j;
+            }
+        }
+        GridFile grid = new GridFile(n, n, 1);
+        boolean ok = true;
+        try {
+            grid.begin(file0, g, 0, n - 1, true, 10, 1.5, 0.0);
+            grid.await();
+            commit(file0);
+
+            for (int c = 0; c < 4 && ok; c++) {
+                new File(file1).delete();
+                if (c == 3) {
+                    grid.begin(file1, g, 0, n - 1, true, 20, 1.5, 0.0);
+                } else if (c == 2) {
+                    /* the rows of the other members, no header */
+                    grid.begin(file1, g, n / 2, n - 1, false, 20, 1.5, 0.0);
+                }
+                grid.await();
+                RandomAccessFile raf = new RandomAccessFile(file1, "rw");
+                if (c == 1) {
+                    raf.setLength(HEADER / 2);
+                }
+                raf.close();
+
+                ok = latest(file).equals(file0);
+                if (ok) {
+                    double[][] r = new double[n][];
+                    r[n / 2] = new double[n];
+                    grid.read(latest(file), r, n / 2, n / 2);
+                    ok = r[n / 2][1] == g[n / 2][1];
+                }
+            }
+            if (ok) {
+                /* once committed, the later file.1 wins */
+                commit(file1);
+                ok = latest(file).equals(file1);
+            }
+        } finally {
+            grid.end();
+            new File(file0).delete();
+            new File(file1).delete();
+            dir.delete();
+        }
+        return ok;
+    }
+
+    /**
+     * Reads rows <code>first ... last</code> of <code>file</code> into
+     * <code>g</code>, mapping only that part of the file.
+     */
+    void read(String file, double[][] g, int first, int last)
+            throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.readLong() != MAGIC) {
+                throw new IOException(file + " is not an SOR grid file");
+            }
+            int n = raf.readInt();
+            int k = raf.readInt();
+            if (n != nrow || n != ncol || k != nrhs) {
+                throw new IOException(file + " holds " + k + " grids of "
+                        + n + "x" + n + ", not " + nrhs + " of " + nrow
+                        + "x" + ncol);
+            }
+
+            FileChannel channel = raf.getChannel();
+            for (int r = first; r <= last; r += rowsPerMap) {
+                int rows = Math.min(rowsPerMap, last + 1 - r);
+                DoubleBuffer view = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER + r * rowBytes, rows * rowBytes)
+                        .asDoubleBuffer();
+                for (int i = r; i < r + rows; i++) {
+                    if (g[i] == null) {
+                        g[i] = new double[rowLength];
+                    }
+                    view.get(g[i]);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * Group.java
+ *
+ * An ordered set of pool members with their own rank numbering, like an
+ * MPI communicator. Port names are prefixed with the group name, so the
+ * neighbour ports and reducers of different groups do not clash, even when
+ * one Ibis instance is a member of several of them.
+ *
+ * The group of the whole pool ranks the members in the order in which
+ * they joined, and has the empty name. Subgroups are derived
+ * locally, without communication, since every member knows the ranking.
+ */
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisIdentifier;
+
+import java.io.IOException;
+
+public class Group {
+
+    private final String name;
+
+    private final IbisIdentifier[] members;
+
+    private final int rank;
+
+    private final int index;
+
+    private Group(String name, IbisIdentifier[] members, int rank, int index) {
+        this.name = name;
+        this.members = members;
+        this.rank = rank;
+        this.index = index;
+    }
+
+    /**
+     * Ranks all members of the pool of <code>ibis</code>, see
+     * {@link Bootstrap#rank(Ibis)}. The pool must be closed-world, with
+     * totally ordered membership or strict elections.
+     */
+    public static Group world(Ibis ibis) throws IOException {
+        IbisIdentifier[] instances = Bootstrap.rank(ibis);
+
+        int rank = -1;
+        for (int i = 0; i < instances.length; i++) {
+            if (instances[i].equals(ibis.identifier())) {
+                rank = i;
+            }
+        }
+
+        return new Group("", instances, rank, 0);
+    }
+
+    /**
+     * Splits this group into <code>groups</code> subgroups of consecutive
+     * ranks, of sizes that differ at most one, and returns the one that
+     * this member belongs to. All members must call split with the same
+     * arguments. Subgroup i is named <code>getName() + name + i + "/"</code>.
+     */
+    public Group split(String name, int groups) {
+        int size = members.length;
+        if (groups < 1 || groups > size) {
+            throw new IllegalArgumentException("Cannot split " + size
+                    + " members into " + groups + " groups");
+        }
+
+        int g = 0;
+        while ((g + 1) * size / groups <= rank) {
+            g++;
+        }
+        int first = g * size / groups;
+        int last = (g + 1) * size / groups;
+
+        IbisIdentifier[] sub = new IbisIdentifier[last - first];
+        System.arraycopy(members, first, sub, 0, sub.length);
+
+        return new Group(this.name + name + g + "/", sub, rank - first, g);
+    }
+
+    /**
+     * Returns the group of the first <code>n</code> members of this group,
+     * named <code>getName() + name + "/"</code>, or null if this member is
+     * not among them.
+     */
+    public Group head(String name, int n) {
+        if (n < 1 || n > members.length) {
+            throw new IllegalArgumentException("Cannot take " + n
+                    + " of " + members.length + " members");
+        }
+        if (rank >= n) {
+            return null;
+        }
+
+        IbisIdentifier[] sub = new IbisIdentifier[n];
+        System.arraycopy(members, 0, sub, 0, n);
+
+        return new Group(this.name + name + "/", sub, rank, 0);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of this group among the subgroups it was split
+     * off with.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    public IbisIdentifier getMember(int rank) {
+        return members[rank];
+    }
+
+    public IbisIdentifier[] getMembers() {
+        return members.clone();
+    }
+
+    /**
+     * Returns the name of port <code>port</code> within this group.
+     */
+    public String portName(String port) {
+        return name + port;
+    }
+}
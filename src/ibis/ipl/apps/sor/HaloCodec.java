@@ -0,0 +1,222 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * HaloCodec.java
+ *
+ * Lossless compression of halo rows, after the floating point compression
+ * of Gorilla. Each value is XOR-ed with the value at the same position in
+ * the previous message of the same stream. Near convergence successive
+ * rows differ only in the low mantissa bits, so the XOR has many leading
+ * zero bits. Per value we send a header byte with the number of leading
+ * and trailing zero bytes of the XOR, followed by the bytes in between.
+ *
+ * When the encoded message is not sufficiently smaller than the raw one,
+ * the raw values are sent instead and encoding is not attempted for a
+ * while (exponential backoff). Both sides always remember the values of
+ * the last message, so the streams stay in step whichever format is used.
+ */
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+import ibis.util.Timer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+class HaloCodec {
+
+    private static final byte RAW = 0;
+
+    private static final byte XOR = 1;
+
+    /* only send encoded if it saves at least 1/8 of the raw bytes */
+    private static final double MAX_RATIO = 0.875;
+
+    private static final int MAX_BACKOFF = 64;
+
+    private long[][] prev;
+
+    private int[] skip;
+
+    private int[] backoff;
+
+    private byte[] buf;
+
+    private Timer t_codec = Timer.createTimer();
+
+    private long rawBytes;
+
+    private long wireBytes;
+
+    private long iterRawBytes;
+
+    private long iterWireBytes;
+
+    private double[] iterRatio = new double[64];
+
+    private int iters;
+
+    /**
+     * @param streams the number of independent message streams
+     * @param maxLength the maximum number of values in one message
+     */
+    HaloCodec(int streams, int maxLength) {
+        prev = new long[streams][maxLength];
+        skip = new int[streams];
+        backoff = new int[streams];
+        for (int i = 0; i < streams; i++) {
+            backoff[i] = 1;
+        }
+        buf = new byte[9 * maxLength];
+    }
+
+    void write(WriteMessage m, double[] values, int n, int stream)
+            throws IOException {
+
+        t_codec.start();
+
+        long[] p = prev[stream];
+        int len = -1;
+
+        if (skip[stream] > 0) {
+            skip[stream]--;
+        } else {
+            len = encode(values, n, p);
+            if (len > MAX_RATIO * 8 * n) {
+                len = -1;
+                skip[stream] = backoff[stream];
+                if (backoff[stream] < MAX_BACKOFF) {
+                    backoff[stream] *= 2;
+                }
+            } else {
+                backoff[stream] = 1;
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            p[i] = Double.doubleToRawLongBits(values[i]);
+        }
+
+        t_codec.stop();
+
+        if (len < 0) {
+            m.writeByte(RAW);
+            m.writeArray(values, 0, n);
+            count(8 * n, 1 + 8 * n);
+        } else {
+            m.writeByte(XOR);
+            m.writeInt(len);
+            m.writeArray(buf, 0, len);
+            count(8 * n, 1 + 4 + len);
+        }
+    }
+
+    void read(ReadMessage m, double[] values, int n, int stream)
+            throws IOException {
+
+        long[] p = prev[stream];
+
+        if (m.readByte() == RAW) {
+            m.readArray(values, 0, n);
+            t_codec.start();
+            for (int i = 0; i < n; i++) {
+                p[i] = Double.doubleToRawLongBits(values[i]);
+            }
+            t_codec.stop();
+        } else {
+            int len = m.readInt();
+            m.readArray(buf, 0, len);
+            t_codec.start();
+            decode(values, n, p);
+            t_codec.stop();
+        }
+    }
+
+    private int encode(double[] values, int n, long[] p) {
+        int pos = 0;
+        for (int i = 0; i < n; i++) {
+            long x = Double.doubleToRawLongBits(values[i]) ^ p[i];
+            if (x == 0) {
+                buf[pos++] = (byte) 0x80;
+                continue;
+            }
+            int lz = Long.numberOfLeadingZeros(x) >>> 3;
+            int tz = Long.numberOfTrailingZeros(x) >>> 3;
+            buf[pos++] = (byte) ((lz << 4) | tz);
+            for (int shift = (7 - lz) * 8; shift >= tz * 8; shift -= 8) {
+                buf[pos++] = (byte) (x >>> shift);
+            }
+        }
+        return pos;
+    }
+
+    private void decode(double[] values, int n, long[] p) {
+        int pos = 0;
+        for (int i = 0; i < n; i++) {
+            int h = buf[pos++];
+            int lz = (h >> 4) & 0xf;
+            int tz = h & 0xf;
+            long x = 0;
+            for (int b = 8 - lz - tz; b > 0; b--) {
+                x = (x << 8) | (buf[pos++] & 0xff);
+            }
+            x <<= tz * 8;
+            p[i] ^= x;
+            values[i] = Double.longBitsToDouble(p[i]);
+        }
+    }
+
+    private void count(long raw, long wire) {
+        iterRawBytes += raw;
+        iterWireBytes += wire;
+    }
+
+    /**
+     * Closes the statistics of the last <code>k</code> iterations, whose
+     * halo messages were counted together in one wavefront pass. Their
+     * bytes are spread evenly, so each gets the ratio of the pass.
+     */
+    void endIterations(int k) {
+        while (iters + k > iterRatio.length) {
+            double[] r = new double[2 * iterRatio.length];
+            System.arraycopy(iterRatio, 0, r, 0, iters);
+            iterRatio = r;
+        }
+        double ratio = iterWireBytes == 0 ? 1.0 : (double) iterRawBytes
+                / iterWireBytes;
+        for (int i = 0; i < k; i++) {
+            iterRatio[iters++] = ratio;
+        }
+        rawBytes += iterRawBytes;
+        wireBytes += iterWireBytes;
+        iterRawBytes = 0;
+        iterWireBytes = 0;
+    }
+
+    void resetStatistics() {
+        t_codec.reset();
+        rawBytes = 0;
+        wireBytes = 0;
+        iterRawBytes = 0;
+        iterWireBytes = 0;
+        iters = 0;
+    }
+
+    void report(PrintStream out, int rank) {
+        out.println(rank + ": t_codec " + t_codec.nrTimes() + " av.time "
+                + t_codec.averageTime() + " total "
+                + t_codec.totalTime());
+        out.println(rank + ": halo bytes raw " + rawBytes + " sent "
+                + wireBytes + " ratio "
+                + (wireBytes == 0 ? 1.0 : (double) rawBytes / wireBytes));
+        StringBuffer s = new StringBuffer();
+        s.append(rank + ": halo ratio per iteration");
+        for (int i = 0; i < iters; i++) {
+            s.append(' ');
+            s.append((float) iterRatio[i]);
+        }
+        out.println(s);
+    }
+}
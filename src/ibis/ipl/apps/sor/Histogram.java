@@ -0,0 +1,108 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * Histogram.java
+ *
+ * A histogram of durations in nanoseconds with log-linear buckets, in the
+ * style of HdrHistogram: each power of two is cut into HALF buckets of
+ * equal width, so a percentile is off by at most 1/HALF of its value.
+ * Recording is an index computation and an increment; the buckets of all
+ * values up to 2^63 fit in a few kilobytes.
+ */
+
+class Histogram {
+
+    private static final int SUB_BITS = 5;
+
+    private static final int SUB = 1 << SUB_BITS;
+
+    private static final int HALF = SUB / 2;
+
+    private final long[] counts = new long[(64 - SUB_BITS + 1) * HALF + SUB];
+
+    private long count;
+
+    private long total;
+
+    private long max;
+
+    /*
+     * Values below SUB have a bucket each. Above, a value with its highest
+     * bit at position SUB_BITS - 1 + shift is in bucket shift * HALF +
+     * (value >> shift), where value >> shift is in HALF ... SUB - 1.
+     */
+    private static int index(long value) {
+        if (value < SUB) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * Returns the middle of the values in bucket <code>index</code>.
+     */
+    private static double value(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long low = (long) (index - shift * HALF) << shift;
+        return low + ((1L << shift) - 1) / 2.0;
+    }
+
+    /**
+     * Records <code>n</code> occurrences of <code>value</code>.
+     */
+    void record(long value, int n) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[index(value)] += n;
+        count += n;
+        total += value * n;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    long count() {
+        return count;
+    }
+
+    long total() {
+        return total;
+    }
+
+    long max() {
+        return max;
+    }
+
+    /**
+     * Returns the value below which <code>p</code> percent of the
+     * recorded values are.
+     */
+    double percentile(double p) {
+        long target = (long) Math.ceil(p / 100.0 * count);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(value(i), max);
+            }
+        }
+        return max;
+    }
+
+    void reset() {
+        java.util.Arrays.fill(counts, 0);
+        count = 0;
+        total = 0;
+        max = 0;
+    }
+}
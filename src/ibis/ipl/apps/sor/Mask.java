@@ -0,0 +1,11 @@
+package ibis.ipl.apps.sor;
+
+/**
+ * Marks the obstacle cells of an irregular SOR domain. Obstacle cells are
+ * Dirichlet cells inside the domain: they keep their value, which
+ * solve() takes from the boundary condition like that of the outer edges.
+ */
+public interface Mask {
+
+    public boolean isObstacle(int row, int col);
+}
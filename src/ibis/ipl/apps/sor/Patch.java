@@ -0,0 +1,198 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * Patch.java
+ *
+ * A rectangular patch of the SOR grid that is refined by an integer ratio.
+ * The patch spans the coarse rows row0 ... row1 and columns col0 ...
+ * col1; fine node (a, b) lies at coarse position (row0 + a/ratio, col0 +
+ * b/ratio), so every coarse node in the patch is also a fine node.
+ *
+ * The patch and the coarse grid are coupled both ways. The border of the
+ * fine grid is a layer of ghost cells, interpolated from the coarse nodes
+ * on the border of the patch. The coarse nodes inside the patch are not
+ * swept; they take the value of the fine node on the same spot, so the
+ * coarse grid around the patch sees the refined solution.
+ *
+ * The fine grid is swept with the same red/black 5-point update as the
+ * coarse grid, with the over-relaxation factor for its own size. Only the
+ * member whose stripe holds the inner coarse rows of a patch has the fine
+ * grid, in u; for the others it is null.
+ */
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+import java.io.IOException;
+
+class Patch {
+
+    final int row0;
+
+    final int col0;
+
+    final int row1;
+
+    final int col1;
+
+    final int ratio;
+
+    private final int nrow; /* fine rows, including the ghost cells */
+
+    private final int ncol;
+
+    private final double omega;
+
+    double[][] u; /* the fine grid, null if another member owns it */
+
+    Patch(int row0, int col0, int row1, int col1, int ratio) {
+        this.row0 = row0;
+        this.col0 = col0;
+        this.row1 = row1;
+        this.col1 = col1;
+        this.ratio = ratio;
+        nrow = ratio * (row1 - row0) + 1;
+        ncol = ratio * (col1 - col0) + 1;
+
+        double r = 0.5 * (Math.cos(Math.PI / ncol) + Math.cos(Math.PI / nrow));
+        omega = 2.0 / (1.0 + Math.sqrt(1.0 - r * r));
+    }
+
+    /**
+     * Returns true if the coarse node (i, j) lies inside the patch, where
+     * its value comes from the fine grid.
+     */
+    boolean covers(int i, int j) {
+        return i > row0 && i < row1 && j > col0 && j < col1;
+    }
+
+    boolean overlaps(Patch p) {
+        return row0 < p.row1 && p.row0 < row1 && col0 < p.col1
+                && p.col0 < col1;
+    }
+
+    /**
+     * Returns true if a stripe that starts at row <code>b</code> would
+     * cut the patch: its owner must hold rows row0+1 ... row1-1, and
+     * rows row0 and row1 as its own rows or its halo rows.
+     */
+    boolean cuts(int b) {
+        return b > row0 + 1 && b < row1;
+    }
+
+    /**
+     * Returns the fine cells that are swept.
+     */
+    long cells() {
+        return (long) (nrow - 2) * (ncol - 2);
+    }
+
+    /**
+     * Returns the value at fine node (a, b), bilinearly interpolated from
+     * coarse grid <code>g</code>.
+     */
+    private double interpolate(double[][] g, int a, int b) {
+        int i = row0 + a / ratio;
+        int j = col0 + b / ratio;
+        double y = (double) (a % ratio) / ratio;
+        double x = (double) (b % ratio) / ratio;
+        double v = (1 - y) * (1 - x) * g[i][j];
+        if (x > 0) {
+            v += (1 - y) * x * g[i][j + 1];
+        }
+        if (y > 0) {
+            v += y * (1 - x) * g[i + 1][j];
+            if (x > 0) {
+                v += y * x * g[i + 1][j + 1];
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Allocates the fine grid and fills it by interpolation from
+     * <code>g</code>.
+     */
+    void prolong(double[][] g) {
+        u = new double[nrow][ncol];
+        for (int a = 0; a < nrow; a++) {
+            for (int b = 0; b < ncol; b++) {
+                u[a][b] = interpolate(g, a, b);
+            }
+        }
+    }
+
+    /**
+     * Interpolates the ghost cells from the coarse nodes on the border.
+     */
+    void ghosts(double[][] g) {
+        for (int b = 0; b < ncol; b++) {
+            u[0][b] = interpolate(g, 0, b);
+            u[nrow - 1][b] = interpolate(g, nrow - 1, b);
+        }
+        for (int a = 1; a < nrow - 1; a++) {
+            u[a][0] = interpolate(g, a, 0);
+            u[a][ncol - 1] = interpolate(g, a, ncol - 1);
+        }
+    }
+
+    /**
+     * Does <code>sweeps</code> red/black sweeps over the fine grid, and
+     * returns the largest update of the last one.
+     */
+    double smooth(int sweeps) {
+        double maxdiff = 0.0;
+        for (int s = 0; s < sweeps; s++) {
+            maxdiff = 0.0;
+            for (int color = 0; color < 2; color++) {
+                for (int a = 1; a < nrow - 1; a++) {
+                    double[] up = u[a - 1];
+                    double[] row = u[a];
+                    double[] down = u[a + 1];
+                    for (int b = 1 + ((a + color) & 1); b < ncol - 1; b += 2) {
+                        double uNew = (up[b] + down[b] + row[b - 1] + row[b + 1]) / 4.0;
+                        double diff = Math.abs(uNew - row[b]);
+
+                        if (diff > maxdiff) {
+                            maxdiff = diff;
+                        }
+
+                        row[b] += omega * (uNew - row[b]);
+                    }
+                }
+            }
+        }
+        return maxdiff;
+    }
+
+    /**
+     * Copies the fine values to the coarse nodes inside the patch.
+     */
+    void inject(double[][] g) {
+        for (int i = row0 + 1; i < row1; i++) {
+            double[] row = u[(i - row0) * ratio];
+            for (int j = col0 + 1; j < col1; j++) {
+                g[i][j] = row[(j - col0) * ratio];
+            }
+        }
+    }
+
+    /**
+     * Writes the fine grid to <code>m</code>, and releases it.
+     */
+    void send(WriteMessage m) throws IOException {
+        for (int a = 0; a < nrow; a++) {
+            m.writeArray(u[a]);
+        }
+        u = null;
+    }
+
+    void receive(ReadMessage m) throws IOException {
+        u = new double[nrow][ncol];
+        for (int a = 0; a < nrow; a++) {
+            m.readArray(u[a]);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * QueryServer.java
+ *
+ * Answers queries about the stripe of one SOR member while it solves, see
+ * SORQuery for the client. The closed world of the solvers cannot be
+ * joined, so each member also runs an Ibis in the open pool
+ * <code>&lt;pool&gt;-query</code>, where it is elected as
+ * <code>query&lt;rank&gt;</code> and receives the queries with upcalls.
+ *
+ * A query is answered by the solver thread itself, between two color
+ * phases: the upcall posts it and waits; the solver polls a volatile flag
+ * after each phase, and fills in the answer from its grid, which is then
+ * consistent. When the solver is not iterating, the upcall answers it
+ * directly.
+ *
+ * A query message holds:
+ *     int    kind (INFO, ROW, DOWNSAMPLE or RESIDUAL)
+ *     int    argument (the row, or the step of the downsampling)
+ *     String the name of the client's reply port
+ * and the reply:
+ *     int    rank, size, N, nrhs, lb, ub
+ *     long   iteration
+ *     double maxdiff (of the last iteration)
+ *     int    n, followed by n doubles: the answer
+ */
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisCapabilities;
+import ibis.ipl.IbisCreationFailedException;
+import ibis.ipl.IbisFactory;
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.MessageUpcall;
+import ibis.ipl.PortType;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceivePort;
+import ibis.ipl.SendPort;
+import ibis.ipl.WriteMessage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Properties;
+
+class QueryServer implements MessageUpcall {
+
+    /* the solver's rows, the iteration and the maxdiff; no values */
+    static final int INFO = 0;
+
+    /* row <argument>, interleaved as in the grid, if this member has it */
+    static final int ROW = 1;
+
+    /* every step-th row and column of problem 0, row-major */
+    static final int DOWNSAMPLE = 2;
+
+    /* the maximum residual over the stripe */
+    static final int RESIDUAL = 3;
+
+    static final String POOL_SUFFIX = "-query";
+
+    static final IbisCapabilities capabilities = new IbisCapabilities(
+            IbisCapabilities.ELECTIONS_STRICT);
+
+    static final PortType portTypeQuery = new PortType(
+            PortType.SERIALIZATION_DATA, PortType.CONNECTION_MANY_TO_ONE,
+            PortType.COMMUNICATION_RELIABLE, PortType.RECEIVE_AUTO_UPCALLS);
+
+    static final PortType portTypeReply = new PortType(
+            PortType.SERIALIZATION_DATA, PortType.CONNECTION_MANY_TO_ONE,
+            PortType.COMMUNICATION_RELIABLE, PortType.RECEIVE_EXPLICIT);
+
+    /**
+     * A query, and the snapshot that answers it.
+     */
+    static class Query {
+        final int kind;
+
+        final int argument;
+
+        int rank;
+
+        int size;
+
+        int N;
+
+        int nrhs;
+
+        int lb;
+
+        int ub;
+
+        long iteration;
+
+        double maxdiff;
+
+        double[] values = new double[0];
+
+        Query(int kind, int argument) {
+            this.kind = kind;
+            this.argument = argument;
+        }
+    }
+
+    private final SOR sor;
+
+    private final Ibis ibis;
+
+    private final ReceivePort queries;
+
+    /* reply ports, used by the upcall thread only */
+    private final HashMap<IbisIdentifier, SendPort> replies =
+            new HashMap<IbisIdentifier, SendPort>();
+
+    private Query pending; /* posted for the solver */
+
+    private volatile boolean wanted = false; /* pending != null */
+
+    private boolean running = false; /* the solver is iterating */
+
+    QueryServer(SOR sor, String pool, String name) throws IOException {
+        this.sor = sor;
+
+        Properties properties = new Properties();
+        properties.setProperty("ibis.pool.name", pool + POOL_SUFFIX);
+        try {
+            ibis = IbisFactory.createIbis(capabilities, properties, true,
+                    null, portTypeQuery, portTypeReply);
+        } catch (IbisCreationFailedException e) {
+            throw new IOException("Could not create the query Ibis: " + e);
+        }
+
+        queries = ibis.createReceivePort(portTypeQuery, "query", this);
+        queries.enableConnections();
+        queries.enableMessageUpcalls();
+
+        if (!ibis.identifier().equals(ibis.registry().elect(name))) {
+            throw new IOException("Another solver answers queries as "
+                    + name + " in pool " + pool + POOL_SUFFIX);
+        }
+    }
+
+    public void upcall(ReadMessage m) throws IOException {
+        Query query = new Query(m.readInt(), m.readInt());
+        String port = m.readString();
+        IbisIdentifier client = m.origin().ibisIdentifier();
+        /* release the message before waiting for the solver */
+        m.finish();
+
+        synchronized (this) {
+            if (running) {
+                pending = query;
+                wanted = true;
+                while (pending != null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+            } else {
+                sor.answer(query);
+            }
+        }
+
+        SendPort reply = replies.get(client);
+        try {
+            if (reply == null) {
+                reply = ibis.createSendPort(portTypeReply);
+                reply.connect(client, port);
+                replies.put(client, reply);
+            }
+            WriteMessage w = reply.newMessage();
+            w.writeInt(query.rank);
+            w.writeInt(query.size);
+            w.writeInt(query.N);
+            w.writeInt(query.nrhs);
+            w.writeInt(query.lb);
+            w.writeInt(query.ub);
+            w.writeLong(query.iteration);
+            w.writeDouble(query.maxdiff);
+            w.writeInt(query.values.length);
+            w.writeArray(query.values);
+            w.finish();
+        } catch (IOException e) {
+            /* the client has gone; the solver must go on */
+            replies.remove(client);
+            if (reply != null) {
+                reply.close();
+            }
+        }
+    }
+
+    /**
+     * Called by the solver between two phases: answers the pending query,
+     * if any.
+     */
+    void poll() {
+        if (wanted) {
+            serve();
+        }
+    }
+
+    private synchronized void serve() {
+        sor.answer(pending);
+        pending = null;
+        wanted = false;
+        notifyAll();
+    }
+
+    /**
+     * Called by the solver when it starts and stops iterating. While it
+     * does not iterate, queries are answered by the upcall.
+     */
+    synchronized void setRunning(boolean running) {
+        if (!running && pending != null) {
+            serve();
+        }
+        this.running = running;
+    }
+
+    void end() throws IOException {
+        queries.close();
+        Iterator<SendPort> i = replies.values().iterator();
+        while (i.hasNext()) {
+            i.next().close();
+        }
+        ibis.end();
+    }
+}
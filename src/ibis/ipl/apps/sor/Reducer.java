@@ -17,7 +17,6 @@ import ibis.ipl.IbisIdentifier;
 import ibis.ipl.PortType;
 import ibis.ipl.ReadMessage;
 import ibis.ipl.ReceivePort;
-import ibis.ipl.Registry;
 import ibis.ipl.SendPort;
 import ibis.ipl.WriteMessage;
 import ibis.util.Timer;
@@ -44,9 +43,24 @@ public class Reducer implements ReducerInterface {
 
     private ReceivePort reduceR;
 
-    public Reducer(Ibis ibis, int rank, int size) throws IOException {
+    public Reducer(Ibis ibis, Group group) throws IOException {
+        this(ibis, group, null);
+    }
+
+    /**
+     * Creates the ports, but only queues their connections on
+     * <code>bootstrap</code>, to be made together with those of others.
+     * If <code>bootstrap</code> is null, they are made right away.
+     */
+    Reducer(Ibis ibis, Group group, Bootstrap bootstrap) throws IOException {
+
+        boolean connect = bootstrap == null;
+        if (connect) {
+            bootstrap = new Bootstrap();
+        }
 
-        Registry registry = ibis.registry();
+        rank = group.getRank();
+        size = group.size();
         PortType portTypeReduce = new PortType(PortType.SERIALIZATION_DATA,
             PortType.CONNECTION_MANY_TO_ONE, PortType.COMMUNICATION_RELIABLE, PortType.RECEIVE_EXPLICIT);
 
@@ -56,21 +70,30 @@ public class Reducer implements ReducerInterface {
 
         if (rank == 0) {
             // one-to-many to bcast result
-            reduceR = ibis.createReceivePort(portTypeReduce, "SORreduceR");
+            reduceR = ibis.createReceivePort(portTypeReduce,
+                    group.portName("SORreduceR"));
             reduceR.enableConnections();
-            reduceS = ibis.createSendPort(portTypeBroadcast, "SORreduceS");
+            reduceS = ibis.createSendPort(portTypeBroadcast,
+                    group.portName("SORreduceS"));
             for (int i = 1; i < size; i++) {
-                IbisIdentifier id = registry.getElectionResult("" + i);
-                reduceS.connect(id, "SORreduceR");
+                IbisIdentifier id = group.getMember(i);
+                bootstrap.connect(reduceS, id,
+                        group.portName("SORreduceR"));
             }
         } else {
-            reduceR = ibis.createReceivePort(portTypeBroadcast, "SORreduceR");
+            reduceR = ibis.createReceivePort(portTypeBroadcast,
+                    group.portName("SORreduceR"));
             reduceR.enableConnections();
-            reduceS = ibis.createSendPort(portTypeReduce, "SORreduceS");
+            reduceS = ibis.createSendPort(portTypeReduce,
+                    group.portName("SORreduceS"));
 
             // many-to-one to gather values
-            IbisIdentifier id = registry.getElectionResult("" + 0);
-            reduceS.connect(id, "SORreduceR");
+            IbisIdentifier id = group.getMember(0);
+            bootstrap.connect(reduceS, id, group.portName("SORreduceR"));
+        }
+
+        if (connect) {
+            bootstrap.connectAll();
         }
     }
 
@@ -134,6 +157,39 @@ public class Reducer implements ReducerInterface {
         return value;
     }
 
+    public double[] reduce(double[] values) throws IOException {
+
+        if (rank == 0) {
+            double[] temp = new double[values.length];
+            for (int i = 1; i < size; i++) {
+                ReadMessage rm = reduceR.receive();
+                rm.readArray(temp);
+                rm.finish();
+                max(values, temp);
+            }
+
+            WriteMessage wm = reduceS.newMessage();
+            wm.writeArray(values);
+            wm.finish();
+        } else {
+            WriteMessage wm = reduceS.newMessage();
+            wm.writeArray(values);
+            wm.finish();
+
+            ReadMessage rm = reduceR.receive();
+            rm.readArray(values);
+            rm.finish();
+        }
+
+        return values;
+    }
+
+    private static void max(double[] values, double[] temp) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.max(values[i], temp[i]);
+        }
+    }
+
     public void end() throws IOException {
 
         if (reduceS != null) {
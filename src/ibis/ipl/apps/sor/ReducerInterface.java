@@ -5,6 +5,13 @@ import java.io.IOException;
 public interface ReducerInterface {
     
     public double reduce(double value) throws IOException;
+
+    /**
+     * Replaces each element of <code>values</code> by its maximum over all
+     * members, and returns <code>values</code>. All members must pass
+     * arrays of the same length.
+     */
+    public double[] reduce(double[] values) throws IOException;
     
     public void end() throws IOException;
 }
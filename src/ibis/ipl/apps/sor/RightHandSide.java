@@ -0,0 +1,10 @@
+package ibis.ipl.apps.sor;
+
+/**
+ * Supplies the right-hand side f of the Poisson problem
+ * laplace(u) = f on the unit square, sampled at the interior grid points.
+ */
+public interface RightHandSide {
+
+    public double value(int row, int col);
+}
@@ -33,6 +33,7 @@ import ibis.ipl.WriteMessage;
 import ibis.util.Timer;
 import ibis.util.TypedProperties;
 
+import java.io.File;
 import java.io.IOException;
 
 public class SOR {
@@ -42,8 +43,41 @@ public class SOR {
     private static final boolean USE_O_N_BROADCAST = tp
             .getBooleanProperty("bcast.O_n", false);
 
+    /* send only the cells of the freshly updated color in halo messages */
+    private static final boolean PACKED_HALO = tp
+            .getBooleanProperty("halo.packed", true);
+
+    /* XOR-delta compress halo messages, see HaloCodec */
+    private static final boolean COMPRESS_HALO = tp
+            .getBooleanProperty("halo.compress", false);
+
+    /* exchange halos with neighbours on the same host through ShmChannels */
+    private static final boolean SHM_HALO = tp
+            .getBooleanProperty("halo.shm", false);
+
+    private static final String SHM_DIR = tp.getProperty("halo.shm.dir",
+            "/dev/shm");
+
+    /* sweeps of each refined patch per coarse iteration */
+    private static final int REFINE_SWEEPS = tp.getIntProperty(
+            "refine.sweeps", 2);
+
+    /* bytes per mapped block of an out-of-core stripe */
+    private static final int OOC_BLOCK = tp.getIntProperty("ooc.block",
+            4 * 1024 * 1024);
+
+    /* bytes of the rows near the front of an in-memory wavefront */
+    private static final int WAVEFRONT_CACHE = tp.getIntProperty(
+            "wavefront.cache", 256 * 1024);
+
     private static final double TOLERANCE = 0.00001; /* termination criterion */
 
+    /* rebalance only if the slowest member is this much behind */
+    private static final double IMBALANCE = 1.05;
+
+    /* the minimum number of rows that a member keeps when rebalancing */
+    private static final int MIN_ROWS = 2;
+
     private static final boolean PREV = true;
 
     private static final boolean NEXT = false;
@@ -60,10 +94,79 @@ public class SOR {
 
     private int nrow; /* number of rows and columns */
 
+    private int nrhs; /* number of problems stored interleaved in g */
+
     private int lb;
 
     private int ub; /* lower and upper bound of grid stripe [lb ... ub] -> NOTE: ub is inclusive*/
 
+    private int[] bounds; /* member r computes rows bounds[r] ... bounds[r+1]-1 */
+
+    private int rebalanceIters; /* 0: the stripes are fixed */
+
+    private long sweepNanos; /* compute time since the last rebalance */
+
+    private int rebalances;
+
+    private GridFile gridFile; /* writes checkpoints and exports */
+
+    private String checkpointFile; /* base name, null: no checkpoints */
+
+    private int checkpointIters;
+
+    private int checkpoints;
+
+    private String pendingFile; /* being written, not yet committed */
+
+    private String restartFile;
+
+    private String exportFile;
+
+    private String oocDir; /* null: the stripe is in memory */
+
+    private StripeFile stripe; /* the rows that are not resident in g */
+
+    private Wavefront wavefront; /* null: one half-sweep at a time */
+
+    private int temporal = 1; /* max. iterations in one wavefront */
+
+    private Stencil stencil; /* null: the constant 5-point stencil */
+
+    private int colors = 2; /* phases of a sweep, see Stencil.colors() */
+
+    private Coefficient coefficient; /* null: a constant operator */
+
+    private double[][] a; /* coefficient rows lb-1 ... ub, see Stencil */
+
+    private Mask mask; /* null: no obstacles */
+
+    private Patch[] patches; /* null: no refinement */
+
+    /*
+     * The active (non-obstacle, unrefined) interior cells of row i are the
+     * columns spans[i][2s] ... spans[i][2s+1]-1, for each run s. null: no
+     * mask and no patches.
+     */
+    private int[][] spans;
+
+    /* active cells in rows 1 ... i-1, plus the work of their patches */
+    private long[] active;
+
+    private QueryServer query; /* null: queries are not enabled */
+
+    private int done; /* iterations of the current solve, for queries */
+
+    private double lastDiff = Double.NaN; /* maxdiff of the last iteration */
+
+    private Telemetry telemetry; /* null: no per-iteration statistics */
+
+    /* time spent in each phase, for the telemetry */
+    private long computeNanos;
+
+    private long communicateNanos;
+
+    private long reduceNanos;
+
     private int maxIters;
 
     private boolean reduceAlways;
@@ -72,16 +175,24 @@ public class SOR {
 
     private boolean upcall;
 
+    private boolean packed;
+
     private int itersPerReduce;
 
     private int size;
 
     private int rank; /* process ranks */
 
+    private Group group; /* the members that solve this problem */
+
     private IbisIdentifier[] instances;
 
     private double[][] g;
 
+    private double[] haloBuf; /* half row, for the packed halo format */
+
+    private HaloCodec codec; /* null if halos are not compressed */
+
     private SendPort leftS;
 
     private SendPort rightS;
@@ -90,6 +201,15 @@ public class SOR {
 
     private ReceivePort rightR;
 
+    /* halo channels to and from neighbours on this host, or null */
+    private ShmChannel leftOut;
+
+    private ShmChannel leftIn;
+
+    private ShmChannel rightOut;
+
+    private ShmChannel rightIn;
+
     private Syncer leftSyncer;
 
     private Syncer rightSyncer;
@@ -109,37 +229,60 @@ public class SOR {
 
     private boolean finished = false;
 
+    private boolean ownsIbis; /* false if embedded in another program */
+
+    private boolean verbose; /* print progress on stdout */
+
+    private boolean solved = false; /* g holds a previous solution */
+
+    private double[][] f; /* right-hand side times h*h/4, or null */
+    /* (with a stencil: as returned by Stencil.rhs()) */
+
+    /*
+     * In block mode, g holds nrhs problems with the same operator. Their
+     * values are stored cell-major: value m of cell (i, j) is
+     * g[i][j * nrhs + m], and so is the right-hand side in f.
+     */
+
     private ReducerInterface reducer;
 
-    IbisCapabilities reqprops = new IbisCapabilities(
+    /* the reducers: Reducer, TreeReducer and ClusterReducer */
+    static final int REDUCE_LINEAR = 0;
+
+    static final int REDUCE_TREE = 1;
+
+    static final int REDUCE_CLUSTER = 2;
+
+    private int reducerKind;
+
+    private int reducers; /* reducers created by setReducer() */
+
+    /* ranking the members and connecting the ports */
+    private long bootstrapNanos;
+
+    static final IbisCapabilities reqprops = new IbisCapabilities(
             IbisCapabilities.CLOSED_WORLD,
+            IbisCapabilities.MEMBERSHIP_TOTALLY_ORDERED,
             IbisCapabilities.ELECTIONS_STRICT);
         
-    PortType portTypeReduce = new PortType(PortType.SERIALIZATION_DATA,
-            PortType.CONNECTION_MANY_TO_ONE, PortType.COMMUNICATION_RELIABLE,
-            PortType.RECEIVE_EXPLICIT);
+    static final PortType portTypeReduce = new PortType(
+            PortType.SERIALIZATION_DATA, PortType.CONNECTION_MANY_TO_ONE,
+            PortType.COMMUNICATION_RELIABLE, PortType.RECEIVE_EXPLICIT);
 
-    PortType portTypeBroadcast = new PortType(PortType.SERIALIZATION_DATA,
-            PortType.CONNECTION_ONE_TO_MANY, PortType.COMMUNICATION_RELIABLE,
-            PortType.RECEIVE_EXPLICIT);
+    static final PortType portTypeBroadcast = new PortType(
+            PortType.SERIALIZATION_DATA, PortType.CONNECTION_ONE_TO_MANY,
+            PortType.COMMUNICATION_RELIABLE, PortType.RECEIVE_EXPLICIT);
 
-    PortType portTypeNeighbour = new PortType(PortType.SERIALIZATION_DATA,
-            PortType.COMMUNICATION_RELIABLE, PortType.CONNECTION_ONE_TO_ONE,
-            PortType.RECEIVE_EXPLICIT);
+    static final PortType portTypeNeighbour = new PortType(
+            PortType.SERIALIZATION_DATA, PortType.COMMUNICATION_RELIABLE,
+            PortType.CONNECTION_ONE_TO_ONE, PortType.RECEIVE_EXPLICIT);
 
-    SOR(int N, int maxIters, boolean reduceAlways, boolean async,
+    SOR(int N, int nrhs, int maxIters, boolean reduceAlways, boolean async,
             boolean upcall, int itersPerReduce, boolean clusterReduce)
             throws IOException {
 
-
-        this.N = N;
-        nrow = N;
-        ncol = N;
-        this.maxIters = maxIters;
-        this.reduceAlways = reduceAlways;
-        this.async = async;
-        this.upcall = upcall;
-        this.itersPerReduce = itersPerReduce;
+        ownsIbis = true;
+        verbose = true;
 
         createIbis();
 
@@ -158,29 +301,228 @@ public class SOR {
             System.exit(1);
         }
 
+        init(N, nrhs, maxIters, reduceAlways, async, upcall, itersPerReduce,
+                clusterReduce);
+    }
+
+    /**
+     * Creates an SOR solver that runs on an existing Ibis instance. All
+     * members of the pool must create their solver with the same
+     * parameters. The Ibis must have been created with
+     * {@link #getCapabilities()} and {@link #getPortTypes()}, and the
+     * solver ranks the members in the order in which they joined the pool
+     * (see {@link Group#world(Ibis)}).
+     * The ports and reducers stay connected until {@link #end()}, so
+     * {@link #solve} can be called any number of times.
+     *
+     * @param ibis the Ibis instance to communicate with
+     * @param N the number of rows and columns, including the boundary
+     * @param maxIters the number of iterations per solve, or 0 to iterate
+     *        until convergence
+     */
+    public SOR(Ibis ibis, int N, int maxIters, boolean async,
+            int itersPerReduce, boolean clusterReduce) throws IOException {
+        this(ibis, N, 1, maxIters, async, itersPerReduce, clusterReduce);
+    }
+
+    /**
+     * Creates an SOR solver for <code>nrhs</code> problems that share the
+     * same operator. They are swept together, and their halos are
+     * exchanged in one message per border.
+     *
+     * @see #SOR(Ibis, int, int, boolean, int, boolean)
+     */
+    public SOR(Ibis ibis, int N, int nrhs, int maxIters, boolean async,
+            int itersPerReduce, boolean clusterReduce) throws IOException {
+        this(ibis, Group.world(ibis), N, nrhs, maxIters, async,
+                itersPerReduce, clusterReduce);
+    }
+
+    /**
+     * Creates an SOR solver that runs on the members of
+     * <code>group</code> only, with their own ranks, neighbour ports and
+     * reducers. Solvers of disjoint groups run independently.
+     *
+     * @see #SOR(Ibis, int, int, int, boolean, int, boolean)
+     */
+    public SOR(Ibis ibis, Group group, int N, int nrhs, int maxIters,
+            boolean async, int itersPerReduce, boolean clusterReduce)
+            throws IOException {
+
+        ownsIbis = false;
+        verbose = false;
+
+        this.ibis = ibis;
+        setGroup(group);
+
+        if (N < size) {
+            throw new IllegalArgumentException("Problem too small for "
+                    + size + " CPU's");
+        }
+
+        init(N, nrhs, maxIters, true, async, false, itersPerReduce,
+                clusterReduce);
+    }
+
+    private ReducerInterface createReducer(int kind, Group group,
+            Bootstrap bootstrap) throws IOException {
+        switch (kind) {
+        case REDUCE_LINEAR:
+            return new Reducer(ibis, group, bootstrap);
+        case REDUCE_CLUSTER:
+            return new ClusterReducer(ibis, group, bootstrap);
+        default:
+            return new TreeReducer(ibis, group, bootstrap);
+        }
+    }
+
+    /**
+     * Replaces the reducer by one of <code>kind</code>. The new one gets
+     * its own port names, in a copy of the group with another name.
+     */
+    void setReducer(int kind) throws IOException {
+        if (kind == reducerKind) {
+            return;
+        }
+        reducer.end();
+        reducers++;
+        reducer = createReducer(kind, group.split("reduce" + reducers, 1),
+                null);
+        reducerKind = kind;
+    }
+
+    /**
+     * Chooses async, the reduce factor, the reducer and the wavefront
+     * depth of this solver by timing short trials of the candidates, see
+     * {@link Autotuner}, or takes them from the cache of earlier runs. The
+     * trials spend <code>budget</code> iterations in total. Must be called
+     * on all members, before the solve.
+     */
+    public void autotune(int budget) throws IOException {
+        if (oocDir != null) {
+            throw new IllegalStateException(
+                    "An out-of-core run cannot be tuned");
+        }
+        Autotuner tuner = new Autotuner(ibis, group, reducer, N, nrhs,
+                maxIters > 0, stencil == null && mask == null
+                        && patches == null,
+                verbose && rank == 0);
+        Autotuner.Config c = tuner.tune(budget);
+        async = c.async;
+        itersPerReduce = c.itersPerReduce;
+        setReducer(c.reducer);
+        setTemporalBlocking(c.temporal);
+    }
+
+    /**
+     * Does a timed run of maxIters iterations, for the autotuner.
+     */
+    SORStatistics trial() throws IOException {
+        if (g == null) {
+            initGrid();
+        }
+        return iterate(0);
+    }
+
+    /**
+     * Makes this solver sweep <code>grid</code>, the grid of another solver
+     * with the same N and group size, reset to its initial values. A null
+     * grid allocates a new one.
+     */
+    void setGrid(double[][] grid) throws IOException {
+        g = grid;
+        initGrid();
+    }
+
+    void setMaxIterations(int maxIters) {
+        this.maxIters = maxIters;
+    }
+
+    /**
+     * Returns the capabilities an Ibis instance needs to run SOR.
+     */
+    public static IbisCapabilities getCapabilities() {
+        return reqprops;
+    }
+
+    /**
+     * Returns the port types an Ibis instance needs to run SOR.
+     */
+    public static PortType[] getPortTypes() {
+        return new PortType[] { portTypeReduce, portTypeBroadcast,
+                portTypeNeighbour };
+    }
+
+    private void init(int N, int nrhs, int maxIters, boolean reduceAlways,
+            boolean async, boolean upcall, int itersPerReduce,
+            boolean clusterReduce) throws IOException {
+
+        if (nrhs < 1) {
+            throw new IllegalArgumentException("Need at least one problem "
+                    + "per sweep, not " + nrhs);
+        }
+
+        this.N = N;
+        nrow = N;
+        ncol = N;
+        this.nrhs = nrhs;
+        this.maxIters = maxIters;
+        this.reduceAlways = reduceAlways;
+        this.async = async;
+        this.upcall = upcall;
+        this.itersPerReduce = itersPerReduce;
+        /* the upcall Syncer always reads whole rows */
+        this.packed = PACKED_HALO && !upcall;
+        haloBuf = new double[nrhs * (ncol / 2)];
+        if (COMPRESS_HALO && !upcall) {
+            /* one stream per direction and color, for sends and receives */
+            codec = new HaloCodec(8, nrhs * ncol);
+        }
+
         getBounds();
 
-        createNeighbourPorts();
+        long start = System.nanoTime();
+        Bootstrap bootstrap = new Bootstrap();
+        createNeighbourPorts(bootstrap);
         if (clusterReduce) {
-            reducer = new ClusterReducer(ibis, instances, rank);
+            reducerKind = REDUCE_CLUSTER;
         } else if (USE_O_N_BROADCAST) {
-            reducer = new Reducer(ibis, rank, size);
+            reducerKind = REDUCE_LINEAR;
         } else {
-            reducer = new TreeReducer(ibis, rank, size);
+            reducerKind = REDUCE_TREE;
         }
+        reducer = createReducer(reducerKind, group, bootstrap);
+        bootstrap.connectAll();
+        openChannels();
+        bootstrapNanos += System.nanoTime() - start;
 
         // System.err.println(rank + ": hi, I'm connected...");
 
-        if (rank == 0) {
+        double bootstrapTime = bootstrapNanos / 1e9;
+        if (verbose && size > 1) {
+            /* the slowest member holds up the start */
+            bootstrapTime = reducer.reduce(bootstrapTime);
+        }
+
+        if (rank == 0 && verbose) {
             System.out.println("Starting SOR");
             System.out.println("");
             System.out.println("CPUs          : " + size);
             System.out.println("Matrix size   : " + nrow + "x" + ncol);
+            if (nrhs > 1) {
+                System.out.println("Problems      : " + nrhs
+                        + " (interleaved)");
+            }
             System.out.println("Iterations    : "
                     + (maxIters > 0 ? ("" + maxIters) : "dynamic"));
             System.out.println("Reduce        : "
                     + (clusterReduce ? "cluster"
                             : (reduceAlways ? "on" : "off")));
+            System.out.println("Halo          : "
+                    + (packed ? "packed" : "full rows")
+                    + (codec != null ? ", compressed" : "")
+                    + (SHM_HALO ? ", shared memory within a host" : ""));
+            System.out.println("Bootstrap     : " + bootstrapTime + " sec.");
             System.out.println("");
         }
     }
@@ -192,6 +534,42 @@ public class SOR {
         System.out.println("N x N   : (int, int). Problem matrix size");
         System.out
                 .println("ITERATIONS    : (int). Number of iterations to calculate. 0 means dynamic termination detection.");
+        System.out
+                .println("-steps <k>    : solve k slowly changing problems, each warm started from the previous one.");
+        System.out
+                .println("-block <k>    : solve k problems with different boundaries in one interleaved sweep.");
+        System.out
+                .println("-groups <g> -problems <p> : split the pool into g groups that solve p problems from a shared queue.");
+        System.out
+                .println("-rebalance <m> : move rows between neighbours every m iterations, after the measured compute time.");
+        System.out
+                .println("-checkpoint <file> <k> : write the grid to file.0/file.1 every k iterations.");
+        System.out
+                .println("-restart <file> : continue from a checkpoint or exported grid.");
+        System.out
+                .println("-export <file> : write the final grid to file.");
+        System.out
+                .println("-temporal <k> : sweep k iterations per pass with a cache-blocked wavefront.");
+        System.out
+                .println("-ooc <dir>    : keep the stripe in a mapped file in dir, sweep with the wavefront.");
+        System.out
+                .println("-stencil <5|9> : use the 5-point or the 4-color 9-point stencil.");
+        System.out
+                .println("-variable     : solve div(a grad u) = 0 with a variable coefficient a.");
+        System.out
+                .println("-obstacle     : add a disk-shaped obstacle, divide the rows by active cells.");
+        System.out
+                .println("-refine <r>   : refine the four corners of the grid by a factor r.");
+        System.out
+                .println("-query        : answer SORQuery requests for live views of the grid.");
+        System.out
+                .println("-autotune     : choose async, reduce factor, reducer and wavefront depth by short trials.");
+        System.out
+                .println("-telemetry    : report p50/p99 phase times per CPU and the load imbalance.");
+        System.out
+                .println("-csv <prefix> : as -telemetry, and write a line per iteration to prefix.<rank>.csv.");
+        System.out
+                .println("-check        : check that a restart skips a checkpoint file without a header.");
         System.out.println("");
 
         for (int i = 0; i < args.length; i++) {
@@ -227,22 +605,51 @@ public class SOR {
                 rightR = null;
             }
 
+            closeChannels();
+
             reducer.end();
 
+            if (gridFile != null) {
+                gridFile.end();
+            }
+
+            if (stripe != null) {
+                stripe.close();
+            }
+
+            if (query != null) {
+                query.end();
+            }
+
+            if (telemetry != null) {
+                telemetry.close();
+            }
+
         } catch (Exception e) {
             System.out.println("Oops " + e);
             e.printStackTrace();
 
         } finally {
-            try {
-                ibis.end();
-            } catch (IOException e) {
-                // give up anyway
+            if (ownsIbis) {
+                try {
+                    ibis.end();
+                } catch (IOException e) {
+                    // give up anyway
+                }
             }
         }
     }
 
+    /**
+     * Closes the ports and reducers of this solver. An Ibis that was
+     * passed to the constructor is left running.
+     */
+    public void end() {
+        cleanup();
+    }
+
     private void createIbis() throws IOException {
+        long start = System.nanoTime();
         try {
             ibis = IbisFactory.createIbis(reqprops, null,
                     portTypeReduce, portTypeBroadcast, portTypeNeighbour);
@@ -260,35 +667,42 @@ public class SOR {
                     }
                 });
 
-        registry = ibis.registry();
+        setGroup(Group.world(ibis));
+        bootstrapNanos = System.nanoTime() - start;
+    }
 
-        size = registry.getPoolSize();
+    private void setGroup(Group group) {
+        this.group = group;
+        registry = ibis.registry();
+        size = group.size();
+        rank = group.getRank();
+        instances = group.getMembers();
+    }
 
-        instances = new IbisIdentifier[size];
+    private void createNeighbourPorts(Bootstrap bootstrap) throws IOException {
 
-        for (int i = 0; i < size; i++) {
-            IbisIdentifier id = registry.elect("" + i);
-            instances[i] = id;
-            if (id.equals(ibis.identifier())) {
-                rank = i;
-                break;
-            }
+        /*
+         * The halo channels are created before the neighbours can connect,
+         * so they exist once the neighbours open them, see openChannels().
+         */
+        if (shared(rank - 1)) {
+            leftOut = ShmChannel.create(channelFile(rank, rank - 1), nrhs
+                    * ncol);
         }
-
-        for (int i = rank+1; i < size; i++) {
-            instances[i] = registry.getElectionResult("" + i);
+        if (shared(rank + 1)) {
+            rightOut = ShmChannel.create(channelFile(rank, rank + 1), nrhs
+                    * ncol);
         }
-    }
-
-    private void createNeighbourPorts() throws IOException {
 
 
         if (rank != 0) {
             if (upcall) {
                 leftSyncer = new Syncer(g[lb - 1]);
             }
-            leftR = ibis.createReceivePort(portTypeNeighbour, "leftR", leftSyncer);
-            leftS = ibis.createSendPort(portTypeNeighbour, "leftS");
+            leftR = ibis.createReceivePort(portTypeNeighbour,
+                    group.portName("leftR"), leftSyncer);
+            leftS = ibis.createSendPort(portTypeNeighbour,
+                    group.portName("leftS"));
             leftR.enableConnections();
 
             // System.out.println(rank + " created leftR and leftS");
@@ -298,46 +712,81 @@ public class SOR {
             if (upcall) {
                 rightSyncer = new Syncer(g[ub]);
             }
-            rightR = ibis.createReceivePort(portTypeNeighbour, "rightR", rightSyncer);
-            rightS = ibis.createSendPort(portTypeNeighbour, "rightS");
+            rightR = ibis.createReceivePort(portTypeNeighbour,
+                    group.portName("rightR"), rightSyncer);
+            rightS = ibis.createSendPort(portTypeNeighbour,
+                    group.portName("rightS"));
             rightR.enableConnections();
 
             // System.out.println(rank + " created rightR and rightS");
         }
 
         if (rank != 0) {
-            IbisIdentifier id = registry.getElectionResult("" + (rank-1));
-            leftS.connect(id, "rightR");
+            IbisIdentifier id = group.getMember(rank - 1);
+            bootstrap.connect(leftS, id, group.portName("rightR"));
         }
 
         if (rank != size - 1) {
-            IbisIdentifier id = registry.getElectionResult("" + (rank+1));
-            rightS.connect(id, "leftR");
+            IbisIdentifier id = group.getMember(rank + 1);
+            bootstrap.connect(rightS, id, group.portName("leftR"));
         }
     }
 
-    private void getBounds() {
-        // getBounds
-        int n = N - 1;
-        int nlarge = n % size;
-        int size_small = n / size;
-        int size_large = size_small + 1;
+    /**
+     * Returns true if the halos to and from member <code>r</code> go
+     * through a ShmChannel: if it exists and runs on the same host.
+     */
+    private boolean shared(int r) {
+        if (!SHM_HALO || upcall || r < 0 || r >= size) {
+            return false;
+        }
+        return group.getMember(r).location().equals(
+                ibis.identifier().location())
+                && ShmChannel.available(new File(SHM_DIR));
+    }
 
-        int temp_lb;
+    private File channelFile(int from, int to) {
+        String name = "sor-" + System.getProperty("user.name") + "-"
+                + registry.getPoolName() + "-" + group.getName() + from
+                + "-" + to;
+        return new File(SHM_DIR, name.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
 
-        if (rank < nlarge) {
-            temp_lb = rank * size_large;
-            ub = temp_lb + size_large;
-        } else {
-            temp_lb = nlarge * size_large + (rank - nlarge) * size_small;
-            ub = temp_lb + size_small;
+    /**
+     * Opens the halo channels from the neighbours on this host. Called
+     * once the neighbour ports are connected, which the neighbours only
+     * allow after they have created their channels.
+     */
+    private void openChannels() throws IOException {
+        if (shared(rank - 1)) {
+            leftIn = ShmChannel.open(channelFile(rank - 1, rank), nrhs
+                    * ncol);
         }
+        if (shared(rank + 1)) {
+            rightIn = ShmChannel.open(channelFile(rank + 1, rank), nrhs
+                    * ncol);
+        }
+        if (verbose && (leftIn != null || rightIn != null)) {
+            System.out.println(rank + ": halos to the neighbours on this"
+                    + " host go through " + SHM_DIR);
+        }
+    }
 
-        if (temp_lb == 0) {
-            lb = 1; /* row 0 is static */
-        } else {
-            lb = temp_lb;
+    private void closeChannels() {
+        ShmChannel[] channels = { leftOut, leftIn, rightOut, rightIn };
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] != null) {
+                channels[i].close();
+            }
         }
+        leftOut = leftIn = rightOut = rightIn = null;
+    }
+
+    private void getBounds() {
+        divideRows();
+
+        lb = bounds[rank];
+        ub = bounds[rank + 1];
         // System.err.println(rank + ": my slice [" + lb + "," + ub + ">");
 
         r = 0.5 * (Math.cos(Math.PI / (ncol)) + Math.cos(Math.PI / (nrow)));
@@ -345,9 +794,7 @@ public class SOR {
         stopdiff = TOLERANCE / (2.0 - temp_omega);
         omega = temp_omega * 0.8; /* magic factor */
 
-        g = createGrid();
-
-        if (rank == 0) {
+        if (rank == 0 && verbose) {
             System.out.println("Problem parameters");
             System.out.println("r       : " + r);
             System.out.println("omega   : " + omega);
@@ -358,33 +805,203 @@ public class SOR {
         }
     }
 
-    private double[][] createGrid() {
+    /**
+     * Divides the interior rows over the members: evenly, or with a mask
+     * so that each member has about the same number of active cells.
+     */
+    private void divideRows() {
+        int n = N - 1;
+        int nlarge = n % size;
+        int size_small = n / size;
+        int size_large = size_small + 1;
+
+        bounds = new int[size + 1];
+        for (int r = 0; r < size; r++) {
+            if (r < nlarge) {
+                bounds[r] = r * size_large;
+            } else {
+                bounds[r] = nlarge * size_large + (r - nlarge) * size_small;
+            }
+        }
+        bounds[0] = 1; /* row 0 is static */
+        bounds[size] = n;
+
+        if (spans != null) {
+            long total = active[n];
+            for (int r = 1; r < size; r++) {
+                int b = rowAt(total * r / size);
+                /* every member keeps at least one row */
+                int lo = bounds[r - 1] + 1;
+                int hi = n - size + r;
+                bounds[r] = uncut(Math.max(lo, Math.min(hi, b)), lo, hi);
+                if (bounds[r] < 0) {
+                    throw new IllegalArgumentException("The patches leave "
+                            + "too few rows for " + size + " stripes");
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of active cells in rows <code>first ...
+     * last-1</code>.
+     */
+    private long cells(int first, int last) {
+        if (active == null) {
+            return (long) (last - first) * (ncol - 2);
+        }
+        return active[last] - active[first];
+    }
+
+    /**
+     * Returns the row b for which the active cells in rows 1 ... b-1 are
+     * closest to <code>count</code>.
+     */
+    private int rowAt(double count) {
+        int lo = 1;
+        int hi = nrow - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) / 2;
+            if (cells(1, mid) < count) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo > 1 && count - cells(1, lo - 1) < cells(1, lo) - count) {
+            lo--;
+        }
+        return lo;
+    }
+
+    private double[][] createGrid() throws IOException {
 
         double[][] g = new double[nrow][];
 
+        int border = 2 * temporal;
+        if (oocDir != null && ub - lb > 2 * border) {
+            /*
+             * Only the rows that the halo exchange and the fill-in of the
+             * wavefront triangles touch stay in memory.
+             */
+            int blockRows = Math.max(border + 2, OOC_BLOCK
+                    / (8 * nrhs * ncol));
+            stripe = new StripeFile(new File(oocDir), lb + border, ub
+                    - border, nrhs * ncol, blockRows);
+        }
+
         for (int i = lb - 1; i <= ub; i++) {
             // malloc the own range plus one more line
             // of overlap on each border
-            g[i] = new double[ncol];
+            if (stripe == null || !stripe.contains(i)) {
+                g[i] = new double[nrhs * ncol];
+            }
+        }
+
+        if (oocDir != null) {
+            wavefront = new Wavefront(ncol, nrhs, omega, stripe,
+                    WAVEFRONT_CACHE);
         }
 
         return g;
     }
 
-    private void initGrid() {
+    private void initGrid() throws IOException {
+        if (g == null) {
+            g = createGrid();
+        }
+        double[] buf = stripe == null ? null : new double[nrhs * ncol];
+
         /* initialize the grid */
         for (int i = lb - 1; i <= ub; i++) {
+            double[] row = g[i] == null ? buf : g[i];
             for (int j = 0; j < ncol; j++) {
+                double v;
                 if (i == 0)
-                    g[i][j] = 4.56;
+                    v = 4.56;
                 else if (i == nrow - 1)
-                    g[i][j] = 9.85;
+                    v = 9.85;
                 else if (j == 0)
-                    g[i][j] = 7.32;
+                    v = 7.32;
                 else if (j == ncol - 1)
-                    g[i][j] = 6.88;
+                    v = 6.88;
                 else
-                    g[i][j] = 0.0;
+                    v = 0.0;
+                /* in block mode, problem m has its boundary scaled */
+                for (int m = 0; m < nrhs; m++) {
+                    row[j * nrhs + m] = v * (1.0 + 0.1 * m);
+                }
+            }
+            if (row == buf) {
+                stripe.write(i, row);
+            }
+        }
+        initPatches(false);
+    }
+
+    /**
+     * Initializes the grid for {@link #solve}. The boundary cells are
+     * taken from <code>boundary</code>, the interior from
+     * <code>guess</code>; a null guess keeps the interior of the previous
+     * solve (warm start), or zeroes it for the first solve.
+     */
+    private void initGrid(BoundaryCondition[] boundary, RightHandSide[] rhs,
+            double[][] guess) throws IOException {
+
+        if (stripe != null) {
+            throw new IllegalStateException(
+                    "solve() is not available out of core");
+        }
+        if (g == null) {
+            g = createGrid();
+        }
+        if (boundary == null && !solved) {
+            initGrid();
+        }
+        for (int i = lb - 1; i <= ub; i++) {
+            for (int j = 0; j < ncol; j++) {
+                for (int m = 0; m < nrhs; m++) {
+                    int c = j * nrhs + m;
+                    if (i == 0 || i == nrow - 1 || j == 0 || j == ncol - 1
+                            || (mask != null && mask.isObstacle(i, j))) {
+                        if (boundary != null) {
+                            g[i][c] = boundary[m].value(i, j);
+                        }
+                    } else if (guess != null) {
+                        g[i][c] = guess[i][c];
+                    } else if (!solved) {
+                        g[i][c] = 0.0;
+                    }
+                }
+            }
+        }
+
+        initPatches(guess == null && solved);
+
+        f = null;
+        if (rhs != null) {
+            if (patches != null) {
+                throw new IllegalStateException(
+                        "Refined patches only solve the Laplace equation");
+            }
+            /* store h*h*f/4, so that the update is stencil() - f */
+            double h = 1.0 / (N - 1);
+            double scale = h * h / 4.0;
+            f = new double[nrow][];
+            for (int i = lb; i < ub; i++) {
+                f[i] = new double[nrhs * ncol];
+                for (int j = 1; j < ncol - 1; j++) {
+                    for (int m = 0; m < nrhs; m++) {
+                        if (rhs[m] == null) {
+                            continue;
+                        }
+                        if (stencil != null) {
+                            f[i][j] = stencil.rhs(rhs[m], i, j, h);
+                        } else {
+                            f[i][j * nrhs + m] = scale * rhs[m].value(i, j);
+                        }
+                    }
+                }
             }
         }
     }
@@ -393,6 +1010,53 @@ public class SOR {
         return (g[row - 1][col] + g[row + 1][col] + g[row][col - 1] + g[row][col + 1]) / 4.0;
     }
 
+    /**
+     * Returns the maximum norm of laplace(u) - f over the whole grid.
+     * The halo rows must be up to date.
+     */
+    private double residual() throws IOException {
+        double max = stripeResidual();
+        if (size > 1) {
+            max = reducer.reduce(max);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the maximum norm of laplace(u) - f over the stripe of this
+     * member.
+     */
+    private double stripeResidual() {
+        double h = 1.0 / (N - 1);
+        double max = 0.0;
+        int k = nrhs;
+        if (stencil != null) {
+            if (coefficient != null && a == null) {
+                initCoefficients();
+            }
+            for (int i = lb; i < ub; i++) {
+                max = Math.max(max, stencil.residual(g, a, f, i, h));
+            }
+            return max;
+        }
+        int[] all = { 1, ncol - 1 };
+        for (int i = lb; i < ub; i++) {
+            int[] span = spans == null ? all : spans[i];
+            for (int s = 0; s < span.length; s += 2) {
+                for (int c = k * span[s]; c < k * span[s + 1]; c++) {
+                    double r = (g[i - 1][c] + g[i + 1][c] + g[i][c - k]
+                            + g[i][c + k]) / 4.0 - g[i][c];
+                    if (f != null) {
+                        r -= f[i][c];
+                    }
+                    max = Math.max(max, Math.abs(r));
+                }
+            }
+        }
+        max *= 4.0 / (h * h);
+        return max;
+    }
+
     private boolean even(int i) {
         return i % 2 == 0;
     }
@@ -408,21 +1072,73 @@ public class SOR {
                 + " av.time " + t_communicate.averageTime());
         System.err.println(rank + ": t_reduce " + t_reduce.nrTimes()
                 + " av.time " + t_reduce.averageTime());
+        if (codec != null) {
+            codec.report(System.err, rank);
+        }
+        if (rebalanceIters > 0) {
+            System.err.println(rank + ": rows " + lb + " ... " + (ub - 1)
+                    + " after " + rebalances + " rebalances");
+        }
     }
 
-    private void send(boolean dest, double[] col) throws IOException {
+    /**
+     * Returns the first column that is updated in row <code>row</code>
+     * during phase <code>color</code>. The other cells updated in that
+     * phase follow at every second column.
+     */
+    private static int firstColumn(int row, int color) {
+        return 1 + ((row + color) & 1);
+    }
 
-        /* Two cases here: sync and async */
-        WriteMessage m;
+    /**
+     * Returns the number of cells that phase <code>color</code> updates
+     * in row <code>row</code>.
+     */
+    private int packedLength(int row, int color) {
+        return nrhs * ((ncol - firstColumn(row, color)) / 2);
+    }
 
-        if (dest == PREV) {
-            m = leftS.newMessage();
-        } else {
-            m = rightS.newMessage();
-        }
+    private void send(boolean dest, double[] col, int row, int updated)
+            throws IOException {
+
+        ShmChannel channel = dest == PREV ? leftOut : rightOut;
 
         // System.err.print("Write col " + col); for (int i = 0; i < col.length; i++) { System.err.print(col[i] + " "); } System.err.println();
-        m.writeArray(col);
+        double[] values = col;
+        int n = nrhs * ncol;
+        if (packed) {
+            /*
+             * Only the cells of the color that was updated last have
+             * changed since the previous exchange; the neighbour already
+             * has the others.
+             */
+            n = 0;
+            for (int j = firstColumn(row, updated); j < ncol - 1; j += 2) {
+                for (int c = j * nrhs; c < (j + 1) * nrhs; c++) {
+                    haloBuf[n++] = col[c];
+                }
+            }
+            values = haloBuf;
+        }
+        if (channel != null) {
+            /* no framing and no compression, just a copy */
+            channel.write(values, n);
+            return;
+        }
+
+        /* Two cases here: sync and async */
+        WriteMessage m;
+
+        if (dest == PREV) {
+            m = leftS.newMessage();
+        } else {
+            m = rightS.newMessage();
+        }
+        if (codec != null) {
+            codec.write(m, values, n, (dest == PREV ? 0 : colors) + updated);
+        } else {
+            m.writeArray(values, 0, n);
+        }
         m.finish();
     }
 
@@ -465,7 +1181,8 @@ public class SOR {
         }
     }
 
-    private void receive(boolean source, double[] col) throws IOException {
+    private void receive(boolean source, double[] col, int row, int updated)
+            throws IOException {
 
         if (upcall) {
             Syncer syncer;
@@ -477,61 +1194,97 @@ public class SOR {
             syncer.consume();
 
         } else {
-            ReadMessage m;
+            ShmChannel channel = source == PREV ? leftIn : rightIn;
 
-            if (source == PREV) {
-                m = leftR.receive();
-            } else {
-                m = rightR.receive();
+            double[] values = col;
+            int n = nrhs * ncol;
+            if (packed) {
+                values = haloBuf;
+                n = packedLength(row, updated);
             }
+            if (channel != null) {
+                channel.read(values, n);
+            } else {
+                ReadMessage m;
 
-            m.readArray(col);
+                if (source == PREV) {
+                    m = leftR.receive();
+                } else {
+                    m = rightR.receive();
+                }
+                if (codec != null) {
+                    codec.read(m, values, n, 2 * colors
+                            + (source == PREV ? 0 : colors) + updated);
+                } else {
+                    m.readArray(values, 0, n);
+                }
+                m.finish();
+            }
+            if (packed) {
+                int k = 0;
+                for (int j = firstColumn(row, updated); j < ncol - 1; j += 2) {
+                    for (int c = j * nrhs; c < (j + 1) * nrhs; c++) {
+                        col[c] = haloBuf[k++];
+                    }
+                }
+            }
             // System.err.print("Read col " + col); for (int i = 0; i < col.length; i++) { System.err.print(col[i] + " "); } System.err.println();
-            m.finish();
         }
     }
 
-    private void send() throws IOException {
+    /**
+     * Sends the border rows to the neighbours at the start of phase
+     * <code>color</code>, i.e. after the other color has been updated.
+     */
+    private void send(int color) throws IOException {
         if (TIMINGS)
             t_communicate.start();
+        long start = System.nanoTime();
+
+        int updated = (color + colors - 1) % colors;
 
         if (rank != 0) {
-            send(PREV, g[lb]);
+            send(PREV, g[lb], lb, updated);
             // System.err.println(rank + ": S[" + lb + "]");
         }
         if (rank != size - 1) {
-            send(NEXT, g[ub - 1]);
+            send(NEXT, g[ub - 1], ub - 1, updated);
             // System.err.println(rank + ": S[" + (ub - 1) + "]");
         }
 
+        communicateNanos += System.nanoTime() - start;
         if (TIMINGS)
             t_communicate.stop();
     }
 
-    private void receive() throws IOException {
+    private void receive(int color) throws IOException {
         if (TIMINGS)
             t_communicate.start();
+        long start = System.nanoTime();
+
+        int updated = (color + colors - 1) % colors;
 
         if (rank != size - 1) {
-            receive(NEXT, g[ub]);
+            receive(NEXT, g[ub], ub, updated);
             // System.err.println(rank + ": R[" + ub + "]");
         }
         if (rank != 0) {
-            receive(PREV, g[lb - 1]);
+            receive(PREV, g[lb - 1], lb - 1, updated);
             // System.err.println(rank + ": R[" + (lb - 1) + "]");
         }
 
+        communicateNanos += System.nanoTime() - start;
         if (TIMINGS)
             t_communicate.stop();
     }
 
-    private void sendReceive() throws IOException {
+    private void sendReceive(int color) throws IOException {
         if (even(rank)) {
-            send();
-            receive();
+            send(color);
+            receive(color);
         } else {
-            receive();
-            send();
+            receive(color);
+            send(color);
         }
     }
 
@@ -540,41 +1293,1000 @@ public class SOR {
             t_compute.start();
 
         double maxdiff = 0.0;
+        long start = System.nanoTime();
 
-        for (int i = lb; i < ub; i++) {
-            // int d = (even(i) ^ phase) ? 1 : 0;
-            int d = (i + color) & 1;
-            for (int j = 1 + d; j < ncol - 1; j += 2) {
-                double gNew = stencil(i, j);
-                double diff = Math.abs(gNew - g[i][j]);
+        if (stencil != null) {
+            if (pendingFile != null) {
+                for (int i = lb; i < ub; i++) {
+                    gridFile.preserve(i);
+                }
+            }
+            maxdiff = stencil.sweep(g, a, f, color, lb, ub);
+        } else if (spans != null) {
+            maxdiff = computeMasked(color, lb, ub);
+        } else if (nrhs > 1) {
+            maxdiff = computeBlock(color, lb, ub);
+        } else if (f == null) {
+            for (int i = lb; i < ub; i++) {
+                if (gridFile != null) {
+                    gridFile.preserve(i);
+                }
+                // int d = (even(i) ^ phase) ? 1 : 0;
+                int d = (i + color) & 1;
+                for (int j = 1 + d; j < ncol - 1; j += 2) {
+                    double gNew = stencil(i, j);
+                    double diff = Math.abs(gNew - g[i][j]);
+
+                    if (diff > maxdiff) {
+                        maxdiff = diff;
+                    }
 
-                if (diff > maxdiff) {
-                    maxdiff = diff;
+                    g[i][j] += omega * (gNew - g[i][j]);
+                }
+            }
+        } else {
+            for (int i = lb; i < ub; i++) {
+                if (gridFile != null) {
+                    gridFile.preserve(i);
                 }
+                int d = (i + color) & 1;
+                double[] fi = f[i];
+                for (int j = 1 + d; j < ncol - 1; j += 2) {
+                    double gNew = stencil(i, j) - fi[j];
+                    double diff = Math.abs(gNew - g[i][j]);
+
+                    if (diff > maxdiff) {
+                        maxdiff = diff;
+                    }
 
-                g[i][j] += omega * (gNew - g[i][j]);
+                    g[i][j] += omega * (gNew - g[i][j]);
+                }
             }
         }
 
+        long elapsed = System.nanoTime() - start;
+        sweepNanos += elapsed;
+        computeNanos += elapsed;
+
         if (TIMINGS)
             t_compute.stop();
 
         return maxdiff;
     }
 
+    /**
+     * Returns the number of iterations that the wavefront can do in one
+     * pass, starting at <code>iteration</code>. A pass ends where the
+     * loop must see the maxdiff of an iteration: at a reduce, or where
+     * convergence is tested, and at a rebalance or checkpoint.
+     */
+    private int fusedIterations(int iteration) {
+        int k = temporal;
+        if (maxIters <= 0) {
+            return 1;
+        }
+        k = Math.min(k, maxIters - iteration);
+        if (size > 1 && reduceAlways) {
+            k = Math.min(k, itersPerReduce - iteration % itersPerReduce);
+        }
+        if (rebalanceIters > 0) {
+            k = Math.min(k, rebalanceIters - iteration % rebalanceIters);
+        }
+        if (checkpointFile != null) {
+            k = Math.min(k, checkpointIters - iteration % checkpointIters);
+        }
+        /* the two triangles of the pass must fit in the stripe */
+        k = Math.min(k, (ub - lb) / 4);
+        return Math.max(k, 1);
+    }
+
+    /**
+     * Performs <code>levels</code> half-sweeps, starting with color 0, in
+     * one wavefront pass over the stripe. Before each half-sweep, the halo
+     * rows are exchanged as usual; only the triangles at the borders wait
+     * for them. Returns the maxdiff of the last half-sweep.
+     */
+    private double sweep(int levels) throws IOException {
+        double[] diff = new double[levels];
+
+        sendReceive(0);
+
+        if (TIMINGS)
+            t_compute.start();
+        long start = System.nanoTime();
+        wavefront.trapezoid(g, f, lb, ub, 0, levels, diff,
+                pendingFile == null ? null : gridFile);
+        long elapsed = System.nanoTime() - start;
+        sweepNanos += elapsed;
+        computeNanos += elapsed;
+        if (TIMINGS)
+            t_compute.stop();
+
+        for (int h = 1; h < levels; h++) {
+            int color = h & 1;
+            sendReceive(color);
+            diff[h] = Math.max(diff[h], compute(color, lb, lb + h));
+            /* in a stripe of one row, the two triangles are the same row */
+            int lower = Math.max(lb + h, ub - h);
+            diff[h] = Math.max(diff[h], compute(color, lower, ub));
+        }
+
+        return diff[levels - 1];
+    }
+
+    /**
+     * Sweeps the stripe with a wavefront of up to <code>iterations</code>
+     * iterations per pass, in column tiles that fit in the cache, instead
+     * of one half-sweep at a time; 0 turns this off. The results are
+     * identical. Must be called with the same value on all members.
+     */
+    public void setTemporalBlocking(int iterations) {
+        if (iterations > 0 && stencil != null) {
+            throw new IllegalStateException(
+                    "The wavefront only sweeps the 5-point stencil");
+        }
+        if (iterations > 0 && mask != null) {
+            throw new IllegalStateException(
+                    "A mask is only supported by the plain 5-point sweep");
+        }
+        if (iterations > 0 && patches != null) {
+            throw new IllegalStateException(
+                    "Refined patches are only supported by the plain 5-point sweep");
+        }
+        if (iterations <= 0) {
+            if (stripe != null) {
+                throw new IllegalStateException(
+                        "An out-of-core stripe needs the wavefront");
+            }
+            wavefront = null;
+            return;
+        }
+        temporal = iterations;
+        if (wavefront == null) {
+            wavefront = new Wavefront(ncol, nrhs, omega, stripe,
+                    WAVEFRONT_CACHE);
+        }
+    }
+
+    /**
+     * Keeps the rows of the stripe in a memory-mapped file in directory
+     * <code>dir</code>, apart from the rows near the borders, and sweeps
+     * them with a wavefront of up to <code>iterations</code> iterations,
+     * so that each row is paged in once per pass. Must be called before
+     * the first solve; rebalancing, checkpoints and solve() are not
+     * available out of core.
+     */
+    public void setOutOfCore(String dir, int iterations) {
+        if (g != null) {
+            throw new IllegalStateException(
+                    "The grid has already been allocated");
+        }
+        if (stencil != null) {
+            throw new IllegalStateException(
+                    "The wavefront only sweeps the 5-point stencil");
+        }
+        if (mask != null) {
+            throw new IllegalStateException(
+                    "A mask is only supported by the plain 5-point sweep");
+        }
+        if (patches != null) {
+            throw new IllegalStateException(
+                    "Refined patches are only supported by the plain 5-point sweep");
+        }
+        if (rebalanceIters > 0 || checkpointFile != null
+                || restartFile != null || exportFile != null) {
+            throw new IllegalStateException(
+                    "Rebalancing and checkpoints are not available out of core");
+        }
+        oocDir = dir;
+        temporal = Math.max(1, iterations);
+    }
+
+    /**
+     * Records the time per iteration of each phase in histograms, see
+     * {@link Telemetry}. If <code>csv</code> is not null, each member also
+     * writes a line per iteration to <code>csv.&lt;rank&gt;.csv</code>.
+     */
+    public void setTelemetry(String csv) throws IOException {
+        if (telemetry != null) {
+            telemetry.close();
+        }
+        telemetry = new Telemetry(csv == null ? null : csv + "." + rank
+                + ".csv");
+    }
+
+    /**
+     * Prints the percentiles of the phase times of all members, and the
+     * load imbalance, on rank 0, and clears the histograms. Must be called
+     * by all members; start() calls it after the run.
+     */
+    public void reportTelemetry() throws IOException {
+        if (telemetry != null) {
+            telemetry.report(reducer, rank, size, System.out);
+        }
+    }
+
+    /**
+     * Answers queries about the stripe of this member while it solves,
+     * see {@link SORQuery}. The queries arrive through a separate Ibis in
+     * the pool <code>&lt;pool&gt;-query</code>, and are answered between
+     * two color phases of the sweep. The members are found there by the
+     * name of their group and their rank in it.
+     */
+    public void enableQueries() throws IOException {
+        if (query == null) {
+            query = new QueryServer(this, registry.getPoolName(),
+                    group.portName("query") + rank);
+        }
+    }
+
+    /**
+     * Fills in the answer to <code>q</code>. Called by the solver thread
+     * between phases, or by the query upcall while the solver is idle.
+     */
+    void answer(QueryServer.Query q) {
+        q.rank = rank;
+        q.size = size;
+        q.N = N;
+        q.nrhs = nrhs;
+        q.lb = lb;
+        q.ub = ub;
+        q.iteration = done;
+        q.maxdiff = lastDiff;
+
+        if (g == null || q.kind == QueryServer.INFO) {
+            return;
+        }
+
+        /* rank 0 also has row 0, and the last rank row nrow-1 */
+        int first = rank == 0 ? 0 : lb;
+        int last = rank == size - 1 ? nrow - 1 : ub - 1;
+
+        if (q.kind == QueryServer.ROW) {
+            if (q.argument >= first && q.argument <= last) {
+                q.values = copyRow(q.argument);
+            }
+        } else if (q.kind == QueryServer.DOWNSAMPLE) {
+            int step = Math.max(1, q.argument);
+            int cols = (ncol - 1) / step + 1;
+            int rows = last / step - (first + step - 1) / step + 1;
+            q.values = new double[rows * cols];
+            int k = 0;
+            for (int i = (first + step - 1) / step * step; i <= last; i += step) {
+                double[] row = copyRow(i);
+                for (int j = 0; j < ncol; j += step) {
+                    q.values[k++] = row[j * nrhs];
+                }
+            }
+        } else if (q.kind == QueryServer.RESIDUAL) {
+            /* the rows of an out-of-core stripe are not resident */
+            q.values = new double[] { stripe == null ? stripeResidual()
+                    : Double.NaN };
+        }
+    }
+
+    private double[] copyRow(int i) {
+        double[] row = new double[nrhs * ncol];
+        if (g[i] != null) {
+            System.arraycopy(g[i], 0, row, 0, row.length);
+        } else {
+            stripe.read(i, row);
+        }
+        return row;
+    }
+
+    /**
+     * Adds the obstacles of <code>mask</code> to the domain. The sweeps
+     * skip the runs of obstacle cells in each row, and the rows are
+     * divided over the members so that each has about the same number of
+     * active cells, as is the work of a rebalance. Must be called with
+     * the same mask on all members, before the grid is initialized; the
+     * mask is only supported with the 5-point stencil, without the
+     * wavefront.
+     */
+    public void setMask(Mask mask) {
+        if (g != null) {
+            throw new IllegalStateException(
+                    "The grid has already been allocated");
+        }
+        if (stencil != null || wavefront != null || oocDir != null) {
+            throw new IllegalStateException(
+                    "A mask is only supported by the plain 5-point sweep");
+        }
+        if (patches != null) {
+            throw new IllegalStateException(
+                    "A mask cannot be combined with refined patches");
+        }
+        this.mask = mask;
+        initSpans();
+
+        if (rank == 0 && verbose && mask != null) {
+            System.out.println("Active cells  : " + active[nrow - 1]
+                    + " of " + (long) (nrow - 2) * (ncol - 2));
+            System.out.println("");
+        }
+    }
+
+    /**
+     * Derives the runs of active cells of each row from the mask and the
+     * patches, and the work of each row: its active cells, plus the fine
+     * cells of the patches that it holds, spread over their inner rows.
+     * Then divides the rows over the members by work.
+     */
+    private void initSpans() {
+        if (mask == null && patches == null) {
+            spans = null;
+            active = null;
+        } else {
+            long[] work = new long[nrow];
+            for (int p = 0; patches != null && p < patches.length; p++) {
+                Patch patch = patches[p];
+                long fine = patch.cells() * REFINE_SWEEPS;
+                int rows = patch.row1 - patch.row0 - 1;
+                for (int i = 0; i < rows; i++) {
+                    work[patch.row0 + 1 + i] += fine / rows
+                            + (i < fine % rows ? 1 : 0);
+                }
+            }
+
+            spans = new int[nrow][];
+            active = new long[nrow];
+            int[] run = new int[ncol];
+            for (int i = 1; i < nrow - 1; i++) {
+                int n = 0;
+                int cells = 0;
+                int j = 1;
+                while (j < ncol - 1) {
+                    if (!active(i, j)) {
+                        j++;
+                        continue;
+                    }
+                    run[n++] = j;
+                    while (j < ncol - 1 && active(i, j)) {
+                        j++;
+                    }
+                    run[n++] = j;
+                    cells += run[n - 1] - run[n - 2];
+                }
+                spans[i] = new int[n];
+                System.arraycopy(run, 0, spans[i], 0, n);
+                active[i + 1] = active[i] + cells + work[i];
+            }
+        }
+        divideRows();
+        lb = bounds[rank];
+        ub = bounds[rank + 1];
+    }
+
+    /**
+     * Returns true if coarse cell (i, j) is swept: if it is neither an
+     * obstacle nor inside a patch.
+     */
+    private boolean active(int i, int j) {
+        if (mask != null && mask.isObstacle(i, j)) {
+            return false;
+        }
+        for (int p = 0; patches != null && p < patches.length; p++) {
+            if (patches[p].covers(i, j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Refines the coarse cells in rows <code>row0+1 ... row1-1</code> and
+     * columns <code>col0+1 ... col1-1</code> by <code>ratio</code>, see
+     * {@link Patch}. The patch is swept by the member that holds its rows,
+     * REFINE_SWEEPS times per iteration, and the rows are divided over the
+     * members by their cells, fine and coarse; a stripe never cuts a
+     * patch, and a patch moves along with its rows when the stripes are
+     * rebalanced. Patches may not overlap. Must be called with the same
+     * patches on all members, before the grid is initialized; refinement
+     * is only supported for the Laplace equation and the plain 5-point
+     * sweep of a single problem. The fine grids are not part of the grid
+     * files and the queries.
+     */
+    public void addPatch(int row0, int col0, int row1, int col1, int ratio) {
+        if (g != null) {
+            throw new IllegalStateException(
+                    "The grid has already been allocated");
+        }
+        if (stencil != null || wavefront != null || oocDir != null
+                || mask != null || nrhs > 1) {
+            throw new IllegalStateException(
+                    "Refined patches are only supported by the plain 5-point sweep");
+        }
+        if (row0 < 0 || col0 < 0 || row1 > nrow - 1 || col1 > ncol - 1
+                || row1 - row0 < 2 || col1 - col0 < 2 || ratio < 2) {
+            throw new IllegalArgumentException("Cannot refine rows " + row0
+                    + " ... " + row1 + ", columns " + col0 + " ... " + col1
+                    + " by " + ratio);
+        }
+        Patch patch = new Patch(row0, col0, row1, col1, ratio);
+        int n = patches == null ? 0 : patches.length;
+        for (int p = 0; p < n; p++) {
+            if (patches[p].overlaps(patch)) {
+                throw new IllegalArgumentException("Patch " + row0 + ","
+                        + col0 + " ... " + row1 + "," + col1
+                        + " overlaps another one");
+            }
+        }
+        Patch[] more = new Patch[n + 1];
+        if (n > 0) {
+            System.arraycopy(patches, 0, more, 0, n);
+        }
+        more[n] = patch;
+        patches = more;
+
+        initSpans();
+
+        if (rank == 0 && verbose) {
+            System.out.println("Refined patch : rows " + row0 + " ... "
+                    + row1 + ", columns " + col0 + " ... " + col1 + " by "
+                    + ratio + ", " + patch.cells() + " fine cells");
+        }
+    }
+
+    /**
+     * Returns <code>b</code> if a stripe that starts at row b cuts no
+     * patch, or else the row nearest to b in <code>lo ... hi</code> that
+     * does not, or -1 if there is none.
+     */
+    private int uncut(int b, int lo, int hi) {
+        for (int d = 0; b - d >= lo || b + d <= hi; d++) {
+            if (b - d >= lo && !cuts(b - d)) {
+                return b - d;
+            }
+            if (b + d <= hi && !cuts(b + d)) {
+                return b + d;
+            }
+        }
+        return -1;
+    }
+
+    private boolean cuts(int b) {
+        for (int p = 0; patches != null && p < patches.length; p++) {
+            if (patches[p].cuts(b)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Allocates the fine grids of the patches of this member, if they do
+     * not exist or <code>keep</code> is false, by interpolation from the
+     * coarse grid, and releases the others.
+     */
+    private void initPatches(boolean keep) {
+        for (int p = 0; patches != null && p < patches.length; p++) {
+            Patch patch = patches[p];
+            if (patch.row0 + 1 < lb || patch.row0 + 1 >= ub) {
+                patch.u = null;
+            } else if (patch.u == null || !keep) {
+                patch.prolong(g);
+            }
+        }
+    }
+
+    /**
+     * Does the refinement step of an iteration on the patches of this
+     * member: interpolates their ghost cells from the coarse grid, sweeps
+     * them and injects the result into the coarse grid. Returns the
+     * largest fine update.
+     */
+    private double refine() {
+        double maxdiff = 0.0;
+        long start = System.nanoTime();
+
+        for (int p = 0; p < patches.length; p++) {
+            Patch patch = patches[p];
+            if (patch.u == null) {
+                continue;
+            }
+            patch.ghosts(g);
+            maxdiff = Math.max(maxdiff, patch.smooth(REFINE_SWEEPS));
+            /* the sweep has preserved the rows for a pending checkpoint */
+            patch.inject(g);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        sweepNanos += elapsed;
+        computeNanos += elapsed;
+
+        return maxdiff;
+    }
+
+    /**
+     * Replaces the constant 5-point stencil of the solver. With
+     * <code>points</code> 9, the fourth-order Mehrstellen stencil is used,
+     * swept in four colors. With a non-null <code>a</code>, the operator
+     * is div(a grad u) instead of laplace(u), with a 5-point or 9-point
+     * stencil. Must be called with the same arguments on all members,
+     * before the first iteration; block mode and the wavefront only
+     * support the constant 5-point stencil.
+     */
+    public void setStencil(int points, Coefficient a) {
+        if (points != 5 && points != 9) {
+            throw new IllegalArgumentException("No " + points
+                    + "-point stencil");
+        }
+        if (nrhs > 1) {
+            throw new IllegalStateException(
+                    "Block mode only sweeps the 5-point stencil");
+        }
+        if (wavefront != null) {
+            throw new IllegalStateException(
+                    "The wavefront only sweeps the 5-point stencil");
+        }
+        if (mask != null) {
+            throw new IllegalStateException(
+                    "A mask is only supported by the plain 5-point sweep");
+        }
+        if (patches != null) {
+            throw new IllegalStateException(
+                    "Refined patches are only supported by the plain 5-point sweep");
+        }
+        if (points == 5 && a == null) {
+            stencil = null;
+        } else if (a == null) {
+            stencil = new NinePoint(ncol, omega);
+        } else if (points == 5) {
+            stencil = new VariableFivePoint(ncol, omega);
+        } else {
+            stencil = new VariableNinePoint(ncol, omega);
+        }
+        coefficient = a;
+        this.a = null;
+        colors = stencil == null ? 2 : stencil.colors();
+        /* the packed halo format assumes red/black */
+        packed = PACKED_HALO && !upcall && colors == 2;
+        if (codec != null) {
+            codec = new HaloCodec(4 * colors, nrhs * ncol);
+        }
+    }
+
+    private void initCoefficients() {
+        if (a == null) {
+            a = new double[nrow][];
+        }
+        for (int i = 0; i < nrow; i++) {
+            if (i < lb - 1 || i > ub) {
+                a[i] = null;
+            } else if (a[i] == null) {
+                a[i] = new double[ncol];
+                for (int j = 0; j < ncol; j++) {
+                    a[i][j] = coefficient.value(i, j);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the stripe boundaries so that the active cells are divided in
+     * proportion to the speed of the members. <code>cost[1 + r]</code>
+     * is the compute time per cell of member r since the last rebalance,
+     * which is the same on all members, so they all derive the same
+     * bounds. A boundary moves at most halfway into the smaller of its two
+     * stripes, so the rows always move between neighbours only, and each
+     * member keeps at least MIN_ROWS rows.
+     */
+    private void rebalance(double[] cost) throws IOException {
+        long n = cells(bounds[0], bounds[size]);
+
+        double speed = 0.0;
+        double slowest = 0.0;
+        for (int r = 0; r < size; r++) {
+            if (cost[1 + r] <= 0.0) {
+                return;
+            }
+            speed += 1.0 / cost[1 + r];
+            slowest = Math.max(slowest,
+                    cost[1 + r] * cells(bounds[r], bounds[r + 1]));
+        }
+        sweepNanos = 0;
+
+        if (slowest < IMBALANCE * n / speed) {
+            return;
+        }
+
+        int[] newBounds = bounds.clone();
+        double sum = 0.0;
+        for (int r = 1; r < size; r++) {
+            sum += 1.0 / cost[r];
+            int b = rowAt(n * sum / speed);
+            int limit = (Math.min(bounds[r] - bounds[r - 1], bounds[r + 1]
+                    - bounds[r]) - MIN_ROWS) / 2;
+            if (limit < 0) {
+                limit = 0;
+            }
+            newBounds[r] = Math.max(bounds[r] - limit,
+                    Math.min(bounds[r] + limit, b));
+            /* the current bound cuts no patch, so there is one */
+            newBounds[r] = uncut(newBounds[r], bounds[r] - limit, bounds[r]
+                    + limit);
+        }
+
+        migrate(newBounds);
+    }
+
+    /**
+     * Moves rows to and from the neighbours to take up the stripe
+     * <code>newBounds[rank] ... newBounds[rank+1]-1</code>. The grid rows
+     * that this member no longer needs are released, the new ones are
+     * allocated as they arrive.
+     */
+    private void migrate(int[] newBounds) throws IOException {
+        int newLb = newBounds[rank];
+        int newUb = newBounds[rank + 1];
+
+        if (gridFile != null) {
+            /* the writer must be done with the rows that move */
+            gridFile.await();
+        }
+
+        if (TIMINGS)
+            t_communicate.start();
+        long start = System.nanoTime();
+
+        if (even(rank)) {
+            migrateSend(PREV, newLb, newUb);
+            migrateSend(NEXT, newLb, newUb);
+            migrateReceive(NEXT, newLb, newUb);
+            migrateReceive(PREV, newLb, newUb);
+        } else {
+            migrateReceive(NEXT, newLb, newUb);
+            migrateReceive(PREV, newLb, newUb);
+            migrateSend(PREV, newLb, newUb);
+            migrateSend(NEXT, newLb, newUb);
+        }
+
+        for (int i = lb - 1; i <= ub; i++) {
+            if (i < newLb - 1 || i > newUb) {
+                g[i] = null;
+            }
+            if (f != null && (i < newLb || i >= newUb)) {
+                f[i] = null;
+            }
+        }
+
+        lb = newLb;
+        ub = newUb;
+        bounds = newBounds;
+        rebalances++;
+
+        if (a != null) {
+            /* the coefficients are recomputed rather than moved */
+            initCoefficients();
+        }
+
+        communicateNanos += System.nanoTime() - start;
+        if (TIMINGS)
+            t_communicate.stop();
+    }
+
+    /**
+     * Sends the rows that move to neighbour <code>dest</code>, followed by
+     * the row that becomes its new halo row.
+     */
+    private void migrateSend(boolean dest, int newLb, int newUb)
+            throws IOException {
+
+        int first;
+        int count;
+        int halo;
+        WriteMessage m;
+
+        if (dest == PREV) {
+            if (rank == 0) {
+                return;
+            }
+            first = lb;
+            count = Math.max(0, newLb - lb);
+            halo = newLb;
+            m = leftS.newMessage();
+        } else {
+            if (rank == size - 1) {
+                return;
+            }
+            first = newUb;
+            count = Math.max(0, ub - newUb);
+            halo = newUb - 1;
+            m = rightS.newMessage();
+        }
+
+        m.writeInt(count);
+        for (int i = first; i < first + count; i++) {
+            m.writeArray(g[i]);
+            if (f != null) {
+                m.writeArray(f[i]);
+            }
+        }
+        if (count > 0) {
+            m.writeArray(g[halo]);
+        }
+        if (patches != null) {
+            /* the patches whose rows move go along */
+            int moved = 0;
+            for (int p = 0; p < patches.length; p++) {
+                if (moves(patches[p], dest, newLb, newUb)) {
+                    moved++;
+                }
+            }
+            m.writeInt(moved);
+            for (int p = 0; p < patches.length; p++) {
+                if (moves(patches[p], dest, newLb, newUb)) {
+                    m.writeInt(p);
+                    patches[p].send(m);
+                }
+            }
+        }
+        m.finish();
+    }
+
+    private void migrateReceive(boolean source, int newLb, int newUb)
+            throws IOException {
+
+        int first;
+        int halo;
+        ReadMessage m;
+
+        if (source == PREV) {
+            if (rank == 0) {
+                return;
+            }
+            first = newLb;
+            halo = newLb - 1;
+            m = leftR.receive();
+        } else {
+            if (rank == size - 1) {
+                return;
+            }
+            first = ub;
+            halo = newUb;
+            m = rightR.receive();
+        }
+
+        int count = m.readInt();
+        for (int i = first; i < first + count; i++) {
+            g[i] = readRow(m, g[i]);
+            if (f != null) {
+                f[i] = readRow(m, f[i]);
+            }
+        }
+        if (count > 0) {
+            g[halo] = readRow(m, g[halo]);
+        }
+        if (patches != null) {
+            int moved = m.readInt();
+            for (int p = 0; p < moved; p++) {
+                patches[m.readInt()].receive(m);
+            }
+        }
+        m.finish();
+    }
+
+    private boolean moves(Patch patch, boolean dest, int newLb, int newUb) {
+        if (patch.u == null) {
+            return false;
+        }
+        if (dest == PREV) {
+            return patch.row0 + 1 < newLb;
+        }
+        return patch.row0 + 1 >= newUb;
+    }
+
+    private double[] readRow(ReadMessage m, double[] row) throws IOException {
+        if (row == null) {
+            row = new double[nrhs * ncol];
+        }
+        m.readArray(row);
+        return row;
+    }
+
+    /**
+     * Sets the number of iterations between rebalances of the row
+     * stripes, or 0 (the default) to keep the initial stripes. The rows
+     * are redistributed according to the compute time of each member, so
+     * that faster machines get more rows. Must be called with the same
+     * value on all members. Not available in upcall mode.
+     */
+    public void setRebalanceInterval(int iters) {
+        if (upcall) {
+            throw new IllegalStateException(
+                    "Cannot rebalance with upcall halo receipt");
+        }
+        if (iters > 0 && oocDir != null) {
+            throw new IllegalStateException(
+                    "Rebalancing is not available out of core");
+        }
+        rebalanceIters = iters;
+    }
+
+    /**
+     * The sweep of block mode: for each cell of the color, update the
+     * values of all problems, which are adjacent in memory.
+     */
+    private double computeBlock(int color, int lb, int ub) {
+        final int k = nrhs;
+        double maxdiff = 0.0;
+
+        for (int i = lb; i < ub; i++) {
+            if (gridFile != null) {
+                gridFile.preserve(i);
+            }
+            int d = (i + color) & 1;
+            double[] up = g[i - 1];
+            double[] row = g[i];
+            double[] down = g[i + 1];
+            double[] fi = f == null ? null : f[i];
+            for (int j = 1 + d; j < ncol - 1; j += 2) {
+                int end = (j + 1) * k;
+                for (int c = j * k; c < end; c++) {
+                    double gNew = (up[c] + down[c] + row[c - k] + row[c + k]) / 4.0;
+                    if (fi != null) {
+                        gNew -= fi[c];
+                    }
+                    double diff = Math.abs(gNew - row[c]);
+
+                    if (diff > maxdiff) {
+                        maxdiff = diff;
+                    }
+
+                    row[c] += omega * (gNew - row[c]);
+                }
+            }
+        }
+
+        return maxdiff;
+    }
+
+    /**
+     * The sweep with a mask: as computeBlock(), but only over the runs of
+     * active cells of each row.
+     */
+    private double computeMasked(int color, int lb, int ub) {
+        final int k = nrhs;
+        double maxdiff = 0.0;
+
+        for (int i = lb; i < ub; i++) {
+            if (gridFile != null) {
+                gridFile.preserve(i);
+            }
+            int[] span = spans[i];
+            double[] up = g[i - 1];
+            double[] row = g[i];
+            double[] down = g[i + 1];
+            double[] fi = f == null ? null : f[i];
+            for (int s = 0; s < span.length; s += 2) {
+                /* the first column of the color in the run */
+                int first = span[s] + ((span[s] + 1 + i + color) & 1);
+                for (int j = first; j < span[s + 1]; j += 2) {
+                    int end = (j + 1) * k;
+                    for (int c = j * k; c < end; c++) {
+                        double gNew = (up[c] + down[c] + row[c - k] + row[c + k]) / 4.0;
+                        if (fi != null) {
+                            gNew -= fi[c];
+                        }
+                        double diff = Math.abs(gNew - row[c]);
+
+                        if (diff > maxdiff) {
+                            maxdiff = diff;
+                        }
+
+                        row[c] += omega * (gNew - row[c]);
+                    }
+                }
+            }
+        }
+
+        return maxdiff;
+    }
+
     public void start(String runName) throws IOException {
 
+        initGrid();
+        f = null;
+        if (telemetry != null) {
+            telemetry.reset();
+        }
+
+        int first = 0;
+        if (restartFile != null) {
+            first = (int) restart(restartFile);
+            if (rank == 0 && verbose) {
+                System.out.println("Restart from iteration " + first);
+            }
+        }
+
+        SORStatistics s = iterate(first);
+
+        if (exportFile != null && !runName.equals("warmup")) {
+            export(exportFile, s.getIterations(), s.getMaxDiff());
+        }
+
+        if (rank == 0) {
+            System.out.println("application " + runName + " " + nrow + " x "
+                    + ncol + " took " + s.getSeconds() + " sec.");
+            System.out.println("using " + s.getIterations() + " iterations,"
+                    + " diff is " + s.getMaxDiff() + " (allowed diff "
+                    + stopdiff + ")");
+        }
+
+        if (!runName.equals("warmup")) {
+            reportTimings();
+            reportTelemetry();
+        }
+    }
+
+    /**
+     * Solves laplace(u) = f on this solver's grid. The ports and reducers
+     * of the solver are reused, and the solution is left in the grid, so a
+     * following solve of a nearly identical problem can start from it.
+     *
+     * @param boundary the Dirichlet values, or null to keep the previous
+     *        ones (for the first solve: those of the SOR program)
+     * @param rhs the right-hand side, or null for the Laplace equation
+     * @param guess the initial guess, indexed as the global grid, of which
+     *        at least rows lb-1 ... ub must be present. If null, the
+     *        previous solution is used, or zero for the first solve.
+     * @return the iteration and residual statistics, identical on all
+     *         members of the pool
+     */
+    public SORStatistics solve(BoundaryCondition boundary, RightHandSide rhs,
+            double[][] guess) throws IOException {
+
+        BoundaryCondition[] boundaries = null;
+        RightHandSide[] rhss = null;
+        if (boundary != null) {
+            boundaries = new BoundaryCondition[nrhs];
+            java.util.Arrays.fill(boundaries, boundary);
+        }
+        if (rhs != null) {
+            rhss = new RightHandSide[nrhs];
+            java.util.Arrays.fill(rhss, rhs);
+        }
+        return solve(boundaries, rhss, guess);
+    }
+
+    /**
+     * Solves the <code>nrhs</code> problems of a block mode solver
+     * together. Problem m has boundary values <code>boundary[m]</code>
+     * and right-hand side <code>rhs[m]</code>; the guess is interleaved
+     * as the grid, see {@link #getGrid()}. The residual statistics are
+     * the maximum over all problems.
+     */
+    public SORStatistics solve(BoundaryCondition[] boundary,
+            RightHandSide[] rhs, double[][] guess) throws IOException {
+
+        initGrid(boundary, rhs, guess);
+
+        double initialResidual = residual();
+
+        SORStatistics s = iterate(0);
+
+        /* bring the halo rows up to date for the residual and the next solve */
+        sendReceive(0);
+        double residual = residual();
+
+        solved = true;
+
+        return new SORStatistics(s.getIterations(), s.getMaxDiff(),
+                initialResidual, residual, s.getSeconds(), s.converged());
+    }
+
+    private SORStatistics iterate(int first) throws IOException {
+
         long t_start, t_end; /* time values */
         double maxdiff;
 
-        initGrid();
-
         // abuse the reduce as a barrier
         if (size > 1) {
             reducer.reduce(42.0);
         }
 
-        if (rank == 0) {
+        if (rank == 0 && verbose) {
             System.out.println("... and they're off !");
             System.out.flush();
         }
@@ -584,79 +2296,401 @@ public class SOR {
             t_communicate.reset();
             t_reduce.reset();
         }
+        if (codec != null) {
+            codec.resetStatistics();
+        }
+        sweepNanos = 0;
+
+        if (coefficient != null && a == null) {
+            initCoefficients();
+        }
 
         /* now do the "real" computation */
         t_start = System.currentTimeMillis();
 
-        int iteration = 0;
+        int iteration = first;
+        if (query != null) {
+            done = first;
+            lastDiff = Double.NaN;
+            query.setRunning(true);
+        }
 
         maxdiff = Double.MAX_VALUE;
         do {
             double diff = Double.MAX_VALUE;
-
-            for (int color = 0; color < 2; color++) {
-                if (async) {
-                    send();
-                } else {
-                    sendReceive();
+            int k = 1; /* iterations done in this pass */
+
+            long passStart = System.nanoTime();
+            computeNanos = 0;
+            communicateNanos = 0;
+            reduceNanos = 0;
+
+            if (wavefront != null) {
+                k = fusedIterations(iteration);
+                diff = sweep(2 * k);
+                if (query != null) {
+                    query.poll();
                 }
+            } else {
+                for (int color = 0; color < colors; color++) {
+                    if (async) {
+                        send(color);
+                    } else {
+                        sendReceive(color);
+                    }
 
-                if (async) {
-                    diff = compute(color, lb + 1, ub - 1);
+                    if (async) {
+                        diff = compute(color, lb + 1, ub - 1);
 
-                    receive();
+                        receive(color);
 
-                    diff = Math.max(diff, compute(color, lb, lb + 1));
-                    diff = Math.max(diff, compute(color, ub - 1, ub));
+                        diff = Math.max(diff, compute(color, lb, lb + 1));
+                        diff = Math.max(diff, compute(color, ub - 1, ub));
 
-                } else {
-                    diff = compute(color, lb, ub);
+                    } else {
+                        diff = compute(color, lb, ub);
+                    }
+
+                    if (query != null) {
+                        /* the grid is consistent between the phases */
+                        query.poll();
+                    }
+                }
+                if (patches != null) {
+                    diff = Math.max(diff, refine());
                 }
             }
             // System.err.print(rank + " ");
 
-            if (size > 1 && (maxIters == 0 || reduceAlways)
-                    && ((iteration + 1) % itersPerReduce == 0)) {
+            boolean reduceNow = size > 1 && (maxIters == 0 || reduceAlways)
+                    && ((iteration + k) % itersPerReduce == 0);
 
+            if (size > 1 && rebalanceIters > 0
+                    && (iteration + k) % rebalanceIters == 0) {
+                /* piggyback the cost of a cell on each member on the reduce */
+                double[] v = new double[size + 1];
+                v[0] = diff;
+                v[1 + rank] = (double) sweepNanos / cells(lb, ub);
                 if (TIMINGS)
                     t_reduce.start();
+                long start = System.nanoTime();
+                reducer.reduce(v);
+                reduceNanos += System.nanoTime() - start;
+                if (TIMINGS)
+                    t_reduce.stop();
+                maxdiff = reduceNow ? v[0] : diff;
+                rebalance(v);
+            } else if (reduceNow) {
+
+                if (TIMINGS)
+                    t_reduce.start();
+                long start = System.nanoTime();
                 maxdiff = reducer.reduce(diff);
+                reduceNanos += System.nanoTime() - start;
                 if (TIMINGS)
                     t_reduce.stop();
             } else {
                 maxdiff = diff;
             }
 
-            if (rank == 0) {
-                // System.err.println(iteration + "");
-                // System.err.print(".");
-                System.out.print(".");
-                System.out.flush();
+            for (int i = 0; i < k; i++) {
+                if (rank == 0 && verbose) {
+                    // System.err.println(iteration + "");
+                    // System.err.print(".");
+                    System.out.print(".");
+                    System.out.flush();
+                }
+
+                iteration++;
             }
 
-            iteration++;
+            if (codec != null) {
+                codec.endIterations(k);
+            }
+
+            if (query != null) {
+                done = iteration;
+                lastDiff = maxdiff;
+            }
+
+            if (checkpointFile != null && iteration % checkpointIters == 0) {
+                checkpoint(checkpointFile + "." + (checkpoints++ % 2),
+                        iteration, maxdiff);
+            }
+
+            if (telemetry != null) {
+                telemetry.pass(iteration, k, maxdiff, computeNanos,
+                        communicateNanos, reduceNanos, System.nanoTime()
+                                - passStart);
+            }
 
         } while ((maxIters > 0) ? (iteration < maxIters)
                 : (maxdiff > stopdiff));
 
+        if (query != null) {
+            query.setRunning(false);
+        }
+
         // Another barrier for simultaneous finish
         if (size > 1) {
             reducer.reduce(42.0);
         }
+        commitGrid();
 
         t_end = System.currentTimeMillis();
 
+        return new SORStatistics(iteration, maxdiff, Double.NaN, Double.NaN,
+                (t_end - t_start) / 1000.0, maxdiff <= stopdiff);
+    }
+
+    /**
+     * Starts writing the stripe of this member to <code>file</code>. The
+     * rows are written in the background while the iterations go on; the
+     * previous grid file is committed first.
+     */
+    private void checkpoint(String file, int iteration, double maxdiff)
+            throws IOException {
+
+        commitGrid();
+
+        if (gridFile == null) {
+            gridFile = new GridFile(nrow, ncol, nrhs);
+        }
+        /* rank 0 also writes row 0, and the last rank row nrow-1 */
+        int first = rank == 0 ? 0 : lb;
+        int last = rank == size - 1 ? nrow - 1 : ub - 1;
+        gridFile.begin(file, g, first, last, rank == 0, iteration, omega,
+                maxdiff);
+        pendingFile = file;
+    }
+
+    /**
+     * Waits until all members have written the pending grid file, and
+     * marks it complete.
+     */
+    private void commitGrid() throws IOException {
+        if (pendingFile == null) {
+            return;
+        }
+        gridFile.await();
+        if (size > 1) {
+            reducer.reduce(0.0);
+        }
         if (rank == 0) {
-            System.out.println("application " + runName + " " + nrow + " x "
-                    + ncol + " took " + ((t_end - t_start) / 1000.0) + " sec.");
-            System.out.println("using " + iteration + " iterations,"
-                    + " diff is " + maxdiff + " (allowed diff " + stopdiff
-                    + ")");
+            GridFile.commit(pendingFile);
         }
+        pendingFile = null;
+    }
 
-        if (!runName.equals("warmup")) {
-            reportTimings();
+    /**
+     * Writes the grid to <code>file</code>, each member its own rows. For
+     * the file format, see GridFile.java. Must be called by all members.
+     */
+    public void export(String file, int iteration, double maxdiff)
+            throws IOException {
+        checkpoint(file, iteration, maxdiff);
+        commitGrid();
+    }
+
+    /**
+     * Writes a checkpoint of the grid every <code>iters</code> iterations,
+     * alternately to <code>file.0</code> and <code>file.1</code>, so that
+     * one complete checkpoint always survives a crash. A null file turns
+     * checkpointing off. Must be called with the same values on all
+     * members.
+     */
+    public void setCheckpoint(String file, int iters) {
+        if (iters > 0 && file != null && oocDir != null) {
+            throw new IllegalStateException(
+                    "Checkpoints are not available out of core");
+        }
+        checkpointFile = iters > 0 ? file : null;
+        checkpointIters = iters;
+    }
+
+    /**
+     * Makes {@link #start} continue from the grid in <code>file</code>.
+     */
+    public void setRestart(String file) {
+        if (file != null && oocDir != null) {
+            throw new IllegalStateException(
+                    "A restart is not available out of core");
+        }
+        restartFile = file;
+    }
+
+    /**
+     * Makes {@link #start} export the final grid to <code>file</code>.
+     */
+    public void setExport(String file) {
+        if (file != null && oocDir != null) {
+            throw new IllegalStateException(
+                    "An export is not available out of core");
+        }
+        exportFile = file;
+    }
+
+    /**
+     * Reads this member's rows and halo rows from a grid file that was
+     * written by {@link #export}, or from the latest complete checkpoint
+     * <code>file.0</code> or <code>file.1</code>. Only this member's part
+     * of the file is mapped. A following {@link #solve} with a null guess
+     * starts from this grid.
+     *
+     * @return the iteration at which the grid was written
+     */
+    public long restart(String file) throws IOException {
+        String name = GridFile.latest(file);
+        if (gridFile == null) {
+            gridFile = new GridFile(nrow, ncol, nrhs);
+        }
+        if (g == null) {
+            g = createGrid();
+        }
+        gridFile.read(name, g, lb - 1, ub);
+        solved = true;
+        return GridFile.iteration(name);
+    }
+
+    /**
+     * Returns the grid. Only the rows lb-1 ... ub are present on this
+     * member; the others are null. In block mode, value m of cell (i, j)
+     * is at <code>getGrid()[i][j * nrhs + m]</code>.
+     */
+    public double[][] getGrid() {
+        return g;
+    }
+
+    /**
+     * Returns the first row that this member computes.
+     */
+    public int getLowerBound() {
+        return lb;
+    }
+
+    /**
+     * Returns the first row above the rows that this member computes.
+     */
+    public int getUpperBound() {
+        return ub;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    public int getPoolSize() {
+        return size;
+    }
+
+    /**
+     * Solves problems from a queue that is shared by all groups of the
+     * pool, until <code>problems</code> have been handed out. The rank 0
+     * member of the group takes the next problem number from a registry
+     * sequence number, and hands it to the others with a max reduce.
+     * Problem p has its top boundary scaled by 1 + p.
+     */
+    private void workQueue(int problems) throws IOException {
+        int done = 0;
+        long t_start = System.currentTimeMillis();
+
+        while (true) {
+            double next = -1.0;
+            if (rank == 0) {
+                next = registry.getSequenceNumber("SORqueue");
+            }
+            if (size > 1) {
+                next = reducer.reduce(next);
+            }
+            final int p = (int) next;
+            if (p >= problems) {
+                break;
+            }
+
+            BoundaryCondition boundary = new BoundaryCondition() {
+                public double value(int row, int col) {
+                    if (row == 0)
+                        return 4.56 * (1 + p);
+                    else if (row == nrow - 1)
+                        return 9.85;
+                    else if (col == 0)
+                        return 7.32;
+                    else
+                        return 6.88;
+                }
+            };
+            /* each problem starts cold, from a zero interior */
+            solved = false;
+            SORStatistics s = solve(boundary, null, null);
+            done++;
+            if (rank == 0) {
+                System.out.println("group " + group.getName() + " problem "
+                        + p + ": " + s);
+            }
+        }
+
+        if (rank == 0) {
+            System.out.println("group " + group.getName() + " solved "
+                    + done + " problems in "
+                    + ((System.currentTimeMillis() - t_start) / 1000.0)
+                    + " sec.");
+        }
+    }
+
+    /**
+     * Solves a sequence of problems whose top boundary slowly rises, each
+     * one warm started from the solution of the previous one.
+     */
+    private void timeSteps(int steps) throws IOException {
+        for (int step = 0; step < steps; step++) {
+            final double top = 4.56 + 0.01 * step;
+            BoundaryCondition boundary = new BoundaryCondition() {
+                public double value(int row, int col) {
+                    if (row == 0)
+                        return top;
+                    else if (row == nrow - 1)
+                        return 9.85;
+                    else if (col == 0)
+                        return 7.32;
+                    else
+                        return 6.88;
+                }
+            };
+            SORStatistics s = solve(boundary, null, null);
+            if (rank == 0) {
+                System.out.println("step " + step + ": " + s);
+            }
         }
+        reportTimings();
+    }
+
+    /**
+     * Splits the pool into <code>groups</code> groups that each solve
+     * problems from a shared queue.
+     */
+    private static void solveQueue(int N, int nrhs, int maxIters,
+            boolean async, int itersPerReduce, boolean clusterReduce,
+            int groups, int problems, boolean query) throws Exception {
+
+        Ibis ibis = IbisFactory.createIbis(reqprops, null, getPortTypes());
+        Group world = Group.world(ibis);
+        Group group = world.split("queue", groups);
+
+        if (world.getRank() == 0) {
+            System.out.println("Solving " + problems + " problems of "
+                    + N + "x" + N + " on " + groups + " groups of "
+                    + world.size() / groups + " CPUs");
+        }
+
+        SOR sor = new SOR(ibis, group, N, nrhs, maxIters, async,
+                itersPerReduce, clusterReduce);
+        if (query) {
+            sor.enableQueries();
+        }
+        sor.workQueue(problems);
+        sor.end();
+
+        ibis.end();
     }
 
     public static void main(String[] args) {
@@ -672,6 +2706,26 @@ public class SOR {
             boolean upcall = false;
             int itersPerReduce = 1;
             boolean clusterReduce = false;
+            int steps = 0;
+            int nrhs = 1;
+            int groups = 0;
+            int problems = 0;
+            int rebalance = 0;
+            String checkpoint = null;
+            int checkpointIters = 0;
+            String restart = null;
+            String export = null;
+            String ooc = null;
+            int temporal = 0;
+            int points = 5;
+            boolean variable = false;
+            boolean obstacle = false;
+            int refine = 0;
+            boolean query = false;
+            boolean autotune = false;
+            boolean telemetry = false;
+            String csv = null;
+            boolean check = false;
 
             int options = 0;
             for (int i = 0; i < args.length; i++) {
@@ -697,6 +2751,51 @@ public class SOR {
                     itersPerReduce = Integer.parseInt(args[i]);
                 } else if (args[i].equals("-reduce-cluster")) {
                     clusterReduce = true;
+                } else if (args[i].equals("-block")) {
+                    ++i;
+                    nrhs = Integer.parseInt(args[i]);
+                } else if (args[i].equals("-groups")) {
+                    ++i;
+                    groups = Integer.parseInt(args[i]);
+                } else if (args[i].equals("-problems")) {
+                    ++i;
+                    problems = Integer.parseInt(args[i]);
+                } else if (args[i].equals("-rebalance")) {
+                    ++i;
+                    rebalance = Integer.parseInt(args[i]);
+                } else if (args[i].equals("-checkpoint")) {
+                    checkpoint = args[++i];
+                    checkpointIters = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-restart")) {
+                    restart = args[++i];
+                } else if (args[i].equals("-export")) {
+                    export = args[++i];
+                } else if (args[i].equals("-ooc")) {
+                    ooc = args[++i];
+                } else if (args[i].equals("-temporal")) {
+                    temporal = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-stencil")) {
+                    points = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-variable")) {
+                    variable = true;
+                } else if (args[i].equals("-obstacle")) {
+                    obstacle = true;
+                } else if (args[i].equals("-refine")) {
+                    refine = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-query")) {
+                    query = true;
+                } else if (args[i].equals("-autotune")) {
+                    autotune = true;
+                } else if (args[i].equals("-telemetry")) {
+                    telemetry = true;
+                } else if (args[i].equals("-csv")) {
+                    telemetry = true;
+                    csv = args[++i];
+                } else if (args[i].equals("-check")) {
+                    check = true;
+                } else if (args[i].equals("-steps")) {
+                    ++i;
+                    steps = Integer.parseInt(args[i]);
                 } else if (options == 0) {
                     N = Integer.parseInt(args[i]);
                     N += 2;
@@ -710,12 +2809,112 @@ public class SOR {
                 }
             }
 
-            SOR sor = new SOR(N, maxIters, reduce, async, upcall,
+            if (check) {
+                if (!GridFile.checkRestart()) {
+                    System.out.println("A restart does not pick file.0 "
+                            + "when file.1 has no header");
+                    System.exit(1);
+                }
+                System.out.println("A restart picks file.0 when file.1 "
+                        + "has no header");
+            }
+
+            if (groups > 0) {
+                solveQueue(N, nrhs, maxIters, async, itersPerReduce,
+                        clusterReduce, groups, problems, query);
+                return;
+            }
+
+            SOR sor = new SOR(N, nrhs, maxIters, reduce, async, upcall,
                     itersPerReduce, clusterReduce);
+            if (obstacle) {
+                if (points != 5 || variable || ooc != null || temporal > 0) {
+                    System.out.println("-obstacle cannot be combined with "
+                            + "-stencil, -variable, -ooc or -temporal");
+                    System.exit(1);
+                }
+                final int n = N;
+                sor.setMask(new Mask() {
+                    /* a disk in the upper half, about half of the area */
+                    public boolean isObstacle(int row, int col) {
+                        double y = (double) row / (n - 1) - 0.4;
+                        double x = (double) col / (n - 1) - 0.5;
+                        return x * x + y * y < 0.4 * 0.4;
+                    }
+                });
+            }
+            if (refine > 0) {
+                if (points != 5 || variable || ooc != null || temporal > 0
+                        || nrhs > 1 || obstacle) {
+                    System.out.println("-refine cannot be combined with "
+                            + "-stencil, -variable, -ooc, -temporal, -block "
+                            + "or -obstacle");
+                    System.exit(1);
+                }
+                /*
+                 * the boundary jumps at the corners, so that is where the
+                 * solution is least smooth
+                 */
+                int n = Math.max(2, (N - 1) / 8);
+                sor.addPatch(0, 0, n, n, refine);
+                sor.addPatch(0, N - 1 - n, n, N - 1, refine);
+                sor.addPatch(N - 1 - n, 0, N - 1, n, refine);
+                sor.addPatch(N - 1 - n, N - 1 - n, N - 1, N - 1, refine);
+            }
+            if (points != 5 || variable) {
+                if (nrhs > 1 || ooc != null || temporal > 0) {
+                    System.out.println("-stencil and -variable cannot be "
+                            + "combined with -block, -ooc or -temporal");
+                    System.exit(1);
+                }
+                final int n = N;
+                sor.setStencil(points, !variable ? null : new Coefficient() {
+                    /* a smooth bump, from 1 at the boundary to 10 */
+                    public double value(int row, int col) {
+                        return 1.0 + 9.0 * Math.sin(Math.PI * row / (n - 1))
+                                * Math.sin(Math.PI * col / (n - 1));
+                    }
+                });
+            }
+            if (ooc != null) {
+                if (rebalance > 0 || checkpoint != null || restart != null
+                        || export != null || steps > 0) {
+                    System.out.println("-ooc cannot be combined with "
+                            + "-rebalance, -checkpoint, -restart, -export "
+                            + "or -steps");
+                    System.exit(1);
+                }
+                sor.setOutOfCore(ooc, temporal);
+            } else {
+                sor.setTemporalBlocking(temporal);
+            }
+            if (query) {
+                sor.enableQueries();
+            }
+            if (telemetry) {
+                sor.setTelemetry(csv);
+            }
+            if (autotune) {
+                if (ooc != null || temporal > 0) {
+                    System.out.println("-autotune chooses the wavefront "
+                            + "depth itself; it cannot be combined with "
+                            + "-ooc or -temporal");
+                    System.exit(1);
+                }
+                sor.autotune(tp.getIntProperty("autotune.budget", 4000));
+            }
+            sor.setRebalanceInterval(rebalance);
+            sor.setCheckpoint(checkpoint, checkpointIters);
+            sor.setRestart(restart);
+            sor.setExport(export);
             if (warmup) {
                 sor.start("warmup");
             }
-            sor.start("SOR");
+            if (steps > 0) {
+                sor.timeSteps(steps);
+            } else {
+                sor.start("SOR");
+            }
 
             sor.cleanup();
 
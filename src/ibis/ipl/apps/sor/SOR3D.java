@@ -0,0 +1,602 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * SOR3D.java
+ *
+ * Red/black SOR for the 3D Laplace equation with the 7-point stencil, on an
+ * N x N x N grid with fixed boundary values.
+ *
+ * The interior is decomposed over a pz x py grid of members: in slabs of z
+ * planes (py = 1), or in pencils of z planes and y rows. Each member keeps
+ * its planes g[z] with one halo plane on each side in z; a plane holds its
+ * rows y (plus one halo row on each side) of N values x. Between the
+ * half-sweeps, the z faces are exchanged as whole planes, the y faces are
+ * packed into one contiguous buffer of rows. The 7-point stencil does not
+ * need the edges or corners of the halo.
+ *
+ * The neighbour ports, reducers and timers are set up as in SOR.
+ */
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisFactory;
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceivePort;
+import ibis.ipl.SendPort;
+import ibis.ipl.WriteMessage;
+import ibis.util.Timer;
+import ibis.util.TypedProperties;
+
+import java.io.IOException;
+
+public class SOR3D {
+
+    static TypedProperties tp = new TypedProperties(System.getProperties());
+
+    private static final boolean USE_O_N_BROADCAST = tp
+            .getBooleanProperty("bcast.O_n", false);
+
+    private final static boolean TIMINGS = tp.getBooleanProperty("timing",
+            false);
+
+    private static final double TOLERANCE = 0.00001; /* termination criterion */
+
+    /* the directions of the neighbours */
+    private static final int Z_PREV = 0;
+
+    private static final int Z_NEXT = 1;
+
+    private static final int Y_PREV = 2;
+
+    private static final int Y_NEXT = 3;
+
+    private static final String[] DIRECTION = { "zPrev", "zNext", "yPrev",
+            "yNext" };
+
+    private Timer t_compute = Timer.createTimer();
+
+    private Timer t_communicate = Timer.createTimer();
+
+    private Timer t_reduce = Timer.createTimer();
+
+    private Ibis ibis;
+
+    private Group group;
+
+    private ReducerInterface reducer;
+
+    private int rank;
+
+    private int size;
+
+    private int pz;
+
+    private int py; /* the members form a pz x py grid */
+
+    private int cz;
+
+    private int cy; /* the coordinates of this member */
+
+    private int N;
+
+    private int zlb;
+
+    private int zub; /* this member computes planes zlb ... zub-1 */
+
+    private int ylb;
+
+    private int yub; /* and rows ylb ... yub-1 of each plane */
+
+    private int nyl; /* rows per plane, including the two halo rows */
+
+    private double omega;
+
+    private double stopdiff;
+
+    private int maxIters;
+
+    private double[][] g; /* g[z][(y - ylb + 1) * N + x] */
+
+    private double[] yFace; /* one y face, packed */
+
+    private int[] neighbour = new int[4];
+
+    private SendPort[] sendPort = new SendPort[4];
+
+    private ReceivePort[] receivePort = new ReceivePort[4];
+
+    private long haloBytes;
+
+    /**
+     * Creates a 3D solver on the members of <code>group</code>, which form
+     * a <code>pz</code> x <code>py</code> grid. The Ibis must have been
+     * created with {@link SOR#getCapabilities()} and
+     * {@link SOR#getPortTypes()}.
+     *
+     * @param maxIters the number of iterations, or 0 to iterate until
+     *        convergence
+     */
+    public SOR3D(Ibis ibis, Group group, int N, int pz, int py, int maxIters)
+            throws IOException {
+
+        this.ibis = ibis;
+        this.group = group;
+        this.N = N;
+        this.pz = pz;
+        this.py = py;
+        this.maxIters = maxIters;
+
+        rank = group.getRank();
+        size = group.size();
+        if (pz * py != size) {
+            throw new IllegalArgumentException("Cannot arrange " + size
+                    + " members in " + pz + " x " + py);
+        }
+        if (N - 2 < pz || N - 2 < py) {
+            throw new IllegalArgumentException("Problem too small for "
+                    + pz + " x " + py + " members");
+        }
+        cz = rank / py;
+        cy = rank % py;
+
+        getBounds();
+        Bootstrap bootstrap = new Bootstrap();
+        createNeighbourPorts(bootstrap);
+
+        if (USE_O_N_BROADCAST) {
+            reducer = new Reducer(ibis, group, bootstrap);
+        } else {
+            reducer = new TreeReducer(ibis, group, bootstrap);
+        }
+        bootstrap.connectAll();
+    }
+
+    /**
+     * Returns the pz x py arrangement of <code>size</code> members: slabs
+     * (py = 1), or pencils with pz and py as close as possible.
+     */
+    public static int[] decompose(int size, boolean pencil) {
+        if (!pencil) {
+            return new int[] { size, 1 };
+        }
+        int py = (int) Math.sqrt(size);
+        while (size % py != 0) {
+            py--;
+        }
+        return new int[] { size / py, py };
+    }
+
+    /**
+     * Returns the first of interior rows 1 ... n that part p of
+     * <code>parts</code> gets; part p ends where part p+1 starts.
+     */
+    private static int split(int n, int parts, int p) {
+        return 1 + (int) ((long) n * p / parts);
+    }
+
+    private void getBounds() {
+        int n = N - 2;
+
+        zlb = split(n, pz, cz);
+        zub = split(n, pz, cz + 1);
+        ylb = split(n, py, cy);
+        yub = split(n, py, cy + 1);
+        nyl = yub - ylb + 2;
+
+        double r = (Math.cos(Math.PI / N) + Math.cos(Math.PI / N) + Math
+                .cos(Math.PI / N)) / 3.0;
+        double temp_omega = 2.0 / (1.0 + Math.sqrt(1.0 - r * r));
+        stopdiff = TOLERANCE / (2.0 - temp_omega);
+        omega = temp_omega * 0.8; /* magic factor, as in SOR */
+
+        g = new double[N][];
+        for (int z = zlb - 1; z <= zub; z++) {
+            g[z] = new double[nyl * N];
+        }
+        yFace = new double[(zub - zlb) * N];
+
+        neighbour[Z_PREV] = cz > 0 ? rank - py : -1;
+        neighbour[Z_NEXT] = cz < pz - 1 ? rank + py : -1;
+        neighbour[Y_PREV] = cy > 0 ? rank - 1 : -1;
+        neighbour[Y_NEXT] = cy < py - 1 ? rank + 1 : -1;
+    }
+
+    private static int opposite(int d) {
+        return d ^ 1;
+    }
+
+    private void createNeighbourPorts(Bootstrap bootstrap)
+            throws IOException {
+
+        for (int d = 0; d < 4; d++) {
+            if (neighbour[d] >= 0) {
+                receivePort[d] = ibis.createReceivePort(
+                        SOR.portTypeNeighbour, group.portName(DIRECTION[d]
+                                + "R"));
+                sendPort[d] = ibis.createSendPort(SOR.portTypeNeighbour,
+                        group.portName(DIRECTION[d] + "S"));
+                receivePort[d].enableConnections();
+            }
+        }
+
+        for (int d = 0; d < 4; d++) {
+            if (neighbour[d] >= 0) {
+                IbisIdentifier id = group.getMember(neighbour[d]);
+                bootstrap.connect(sendPort[d], id, group
+                        .portName(DIRECTION[opposite(d)] + "R"));
+            }
+        }
+    }
+
+    /**
+     * Initializes the boundary: the plane z = 0 at 4.56, z = N-1 at 9.85,
+     * the other faces at 7.32 and 6.88, and the interior at 0.
+     */
+    private void initGrid() {
+        for (int z = zlb - 1; z <= zub; z++) {
+            for (int ly = 0; ly < nyl; ly++) {
+                int y = ylb - 1 + ly;
+                for (int x = 0; x < N; x++) {
+                    double v;
+                    if (z == 0)
+                        v = 4.56;
+                    else if (z == N - 1)
+                        v = 9.85;
+                    else if (y == 0 || x == 0)
+                        v = 7.32;
+                    else if (y == N - 1 || x == N - 1)
+                        v = 6.88;
+                    else
+                        v = 0.0;
+                    g[z][ly * N + x] = v;
+                }
+            }
+        }
+    }
+
+    private double compute(int color) {
+        if (TIMINGS)
+            t_compute.start();
+
+        double maxdiff = 0.0;
+
+        for (int z = zlb; z < zub; z++) {
+            double[] down = g[z - 1];
+            double[] p = g[z];
+            double[] up = g[z + 1];
+            for (int y = ylb; y < yub; y++) {
+                int row = (y - ylb + 1) * N;
+                int x0 = 1 + ((1 + y + z + color) & 1);
+                for (int c = row + x0; c < row + N - 1; c += 2) {
+                    double gNew = (down[c] + up[c] + p[c - N] + p[c + N]
+                            + p[c - 1] + p[c + 1]) / 6.0;
+                    double diff = Math.abs(gNew - p[c]);
+
+                    if (diff > maxdiff) {
+                        maxdiff = diff;
+                    }
+
+                    p[c] += omega * (gNew - p[c]);
+                }
+            }
+        }
+
+        if (TIMINGS)
+            t_compute.stop();
+
+        return maxdiff;
+    }
+
+    private void send(int d) throws IOException {
+        WriteMessage m = sendPort[d].newMessage();
+        if (d == Z_PREV) {
+            m.writeArray(g[zlb]);
+            haloBytes += 8L * g[zlb].length;
+        } else if (d == Z_NEXT) {
+            m.writeArray(g[zub - 1]);
+            haloBytes += 8L * g[zub - 1].length;
+        } else {
+            /* pack row ylb or yub-1 of all planes */
+            int row = (d == Y_PREV ? 1 : nyl - 2) * N;
+            for (int z = zlb; z < zub; z++) {
+                System.arraycopy(g[z], row, yFace, (z - zlb) * N, N);
+            }
+            m.writeArray(yFace);
+            haloBytes += 8L * yFace.length;
+        }
+        m.finish();
+    }
+
+    private void receive(int d) throws IOException {
+        ReadMessage m = receivePort[d].receive();
+        if (d == Z_PREV) {
+            m.readArray(g[zlb - 1]);
+        } else if (d == Z_NEXT) {
+            m.readArray(g[zub]);
+        } else {
+            m.readArray(yFace);
+            int row = (d == Y_PREV ? 0 : nyl - 1) * N;
+            for (int z = zlb; z < zub; z++) {
+                System.arraycopy(yFace, (z - zlb) * N, g[z], row, N);
+            }
+        }
+        m.finish();
+    }
+
+    /**
+     * Exchanges the faces in direction <code>prev</code> and
+     * <code>prev + 1</code>; members with an even coordinate send first.
+     */
+    private void exchange(int prev, boolean even) throws IOException {
+        int next = prev + 1;
+        if (even) {
+            if (neighbour[prev] >= 0) send(prev);
+            if (neighbour[next] >= 0) send(next);
+            if (neighbour[next] >= 0) receive(next);
+            if (neighbour[prev] >= 0) receive(prev);
+        } else {
+            if (neighbour[next] >= 0) receive(next);
+            if (neighbour[prev] >= 0) receive(prev);
+            if (neighbour[prev] >= 0) send(prev);
+            if (neighbour[next] >= 0) send(next);
+        }
+    }
+
+    private void sendReceive() throws IOException {
+        if (TIMINGS)
+            t_communicate.start();
+
+        exchange(Z_PREV, cz % 2 == 0);
+        exchange(Y_PREV, cy % 2 == 0);
+
+        if (TIMINGS)
+            t_communicate.stop();
+    }
+
+    /**
+     * Initializes the grid and iterates; returns the statistics, which
+     * are the same on all members.
+     */
+    public SORStatistics run() throws IOException {
+        long t_start, t_end;
+        double maxdiff;
+
+        initGrid();
+
+        // abuse the reduce as a barrier
+        if (size > 1) {
+            reducer.reduce(42.0);
+        }
+
+        if (TIMINGS) {
+            t_compute.reset();
+            t_communicate.reset();
+            t_reduce.reset();
+        }
+        haloBytes = 0;
+
+        t_start = System.currentTimeMillis();
+
+        int iteration = 0;
+
+        do {
+            double diff = 0.0;
+
+            for (int color = 0; color < 2; color++) {
+                sendReceive();
+                diff = compute(color);
+            }
+
+            if (size > 1 && maxIters == 0) {
+                if (TIMINGS)
+                    t_reduce.start();
+                maxdiff = reducer.reduce(diff);
+                if (TIMINGS)
+                    t_reduce.stop();
+            } else {
+                maxdiff = diff;
+            }
+
+            iteration++;
+
+        } while ((maxIters > 0) ? (iteration < maxIters)
+                : (maxdiff > stopdiff));
+
+        // Another barrier for simultaneous finish
+        if (size > 1) {
+            maxdiff = reducer.reduce(maxdiff);
+        }
+
+        t_end = System.currentTimeMillis();
+
+        return new SORStatistics(iteration, maxdiff, Double.NaN, Double.NaN,
+                (t_end - t_start) / 1000.0, maxdiff <= stopdiff);
+    }
+
+    /**
+     * Returns the number of bytes of halo faces that this member sent in
+     * the last run.
+     */
+    public long getHaloBytes() {
+        return haloBytes;
+    }
+
+    public double getStopDiff() {
+        return stopdiff;
+    }
+
+    void reportTimings() {
+        if (!TIMINGS) {
+            return;
+        }
+
+        System.err.println(rank + ": t_compute " + t_compute.nrTimes()
+                + " av.time " + t_compute.averageTime());
+        System.err.println(rank + ": t_communicate " + t_communicate.nrTimes()
+                + " av.time " + t_communicate.averageTime());
+        System.err.println(rank + ": t_reduce " + t_reduce.nrTimes()
+                + " av.time " + t_reduce.averageTime());
+    }
+
+    /**
+     * Closes the ports and the reducer.
+     */
+    public void end() throws IOException {
+        for (int d = 0; d < 4; d++) {
+            if (sendPort[d] != null) {
+                sendPort[d].close();
+                sendPort[d] = null;
+            }
+        }
+        for (int d = 0; d < 4; d++) {
+            if (receivePort[d] != null) {
+                receivePort[d].close();
+                receivePort[d] = null;
+            }
+        }
+        reducer.end();
+    }
+
+    /**
+     * Runs slabs and pencils on the first 1, 2, 4, ... members of the
+     * pool, and on all of them, and prints the time per iteration and the
+     * halo traffic of the busiest member.
+     */
+    private static void benchmark(Ibis ibis, Group world, int N, int iters)
+            throws IOException {
+
+        ReducerInterface barrier = new TreeReducer(ibis, world.head("bench",
+                world.size()));
+
+        if (world.getRank() == 0) {
+            System.out.println("Benchmark " + N + "x" + N + "x" + N + ", "
+                    + iters + " iterations");
+            System.out.println("CPUs decomposition   sec/iter   Mcells/s"
+                    + "   halo MB/iter");
+        }
+
+        for (int p = 1; ; p = Math.min(2 * p, world.size())) {
+            for (int pencil = 0; pencil < 2; pencil++) {
+                int[] d = decompose(p, pencil == 1);
+                if (pencil == 1 && d[1] == 1) {
+                    /* the same as slabs */
+                    continue;
+                }
+
+                Group sub = world.head((pencil == 1 ? "pencil" : "slab") + p,
+                        p);
+                SORStatistics s = null;
+                long bytes = 0;
+                if (sub != null) {
+                    SOR3D sor = new SOR3D(ibis, sub, N, d[0], d[1], iters);
+                    s = sor.run();
+                    bytes = sor.getHaloBytes();
+                    sor.end();
+                }
+                bytes = (long) barrier.reduce((double) bytes);
+
+                if (world.getRank() == 0) {
+                    double perIter = s.getSeconds() / iters;
+                    double cells = (double) (N - 2) * (N - 2) * (N - 2);
+                    System.out.println(p + " "
+                            + (pencil == 1 ? "pencil " : "slab   ") + d[0]
+                            + "x" + d[1] + "   " + (float) perIter + "   "
+                            + (float) (cells / perIter / 1e6) + "   "
+                            + (float) (bytes / 1e6 / iters));
+                }
+            }
+            if (p == world.size()) {
+                break;
+            }
+        }
+
+        barrier.end();
+    }
+
+    private static void usage() {
+        System.out.println("Usage: sor3d {<N> {<ITERATIONS>}} [-slab|-pencil] [-bench]");
+        System.out.println("");
+        System.out.println("N x N x N : (int). Problem size");
+        System.out
+                .println("ITERATIONS    : (int). Number of iterations to calculate. 0 means dynamic termination detection.");
+        System.out
+                .println("-slab         : decompose in z planes (default)");
+        System.out
+                .println("-pencil       : decompose in z planes and y rows");
+        System.out
+                .println("-bench        : compare slabs and pencils on 1, 2, 4, ... CPUs");
+    }
+
+    public static void main(String[] args) {
+        try {
+            int N = 130;
+            int maxIters = 0;
+            boolean pencil = false;
+            boolean bench = false;
+
+            int options = 0;
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-slab")) {
+                    pencil = false;
+                } else if (args[i].equals("-pencil")) {
+                    pencil = true;
+                } else if (args[i].equals("-bench")) {
+                    bench = true;
+                } else if (options == 0) {
+                    N = Integer.parseInt(args[i]) + 2;
+                    options++;
+                } else if (options == 1) {
+                    maxIters = Integer.parseInt(args[i]);
+                    options++;
+                } else {
+                    usage();
+                    System.exit(33);
+                }
+            }
+
+            Ibis ibis = IbisFactory.createIbis(SOR.getCapabilities(), null,
+                    SOR.getPortTypes());
+            Group world = Group.world(ibis);
+
+            if (bench) {
+                benchmark(ibis, world, N, maxIters > 0 ? maxIters : 20);
+            } else {
+                int[] d = decompose(world.size(), pencil);
+                SOR3D sor = new SOR3D(ibis, world, N, d[0], d[1], maxIters);
+
+                if (world.getRank() == 0) {
+                    System.out.println("Starting SOR3D");
+                    System.out.println("");
+                    System.out.println("CPUs          : " + world.size()
+                            + " (" + d[0] + "x" + d[1] + ")");
+                    System.out.println("Matrix size   : " + N + "x" + N
+                            + "x" + N);
+                    System.out.println("Iterations    : "
+                            + (maxIters > 0 ? ("" + maxIters) : "dynamic"));
+                    System.out.println("");
+                }
+
+                SORStatistics s = sor.run();
+
+                if (world.getRank() == 0) {
+                    System.out.println("application SOR3D " + N + " x " + N
+                            + " x " + N + " took " + s.getSeconds()
+                            + " sec.");
+                    System.out.println("using " + s.getIterations()
+                            + " iterations," + " diff is " + s.getMaxDiff()
+                            + " (allowed diff " + sor.getStopDiff() + ")");
+                }
+                sor.reportTimings();
+                sor.end();
+            }
+
+            ibis.end();
+
+        } catch (Exception e) {
+            System.out.println("Oops " + e);
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * SORQuery.java
+ *
+ * Inspects a running SOR without stopping it: joins the query pool of the
+ * solvers (see QueryServer) and asks all members for their part of the
+ * answer. Each member answers from its grid between two color phases, so
+ * the parts are consistent by themselves, but may be a few iterations
+ * apart.
+ *
+ * The solvers of a group other than the whole pool (see Group.split) are
+ * found by the name of their group.
+ *
+ * Usage: SORQuery <pool> [-group <name>] status | row <i> |
+ *        downsample <step> | residual
+ */
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisCreationFailedException;
+import ibis.ipl.IbisFactory;
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceivePort;
+import ibis.ipl.SendPort;
+import ibis.ipl.WriteMessage;
+
+import java.io.IOException;
+import java.util.Properties;
+
+public class SORQuery {
+
+    private Ibis ibis;
+
+    private final String group;
+
+    private ReceivePort reply;
+
+    private SendPort[] members;
+
+    private QueryServer.Query[] answers;
+
+    /**
+     * Connects to the members of the SOR that runs in pool
+     * <code>pool</code> and was started with queries enabled.
+     */
+    public SORQuery(String pool) throws IOException {
+        this(pool, "");
+    }
+
+    /**
+     * Connects to the members of the SOR that runs on the group named
+     * <code>group</code> (see {@link Group#getName()}) in pool
+     * <code>pool</code>, and was started with queries enabled.
+     */
+    public SORQuery(String pool, String group) throws IOException {
+        this.group = group;
+
+        Properties properties = new Properties();
+        properties.setProperty("ibis.pool.name", pool
+                + QueryServer.POOL_SUFFIX);
+        try {
+            ibis = IbisFactory.createIbis(QueryServer.capabilities,
+                    properties, true, null, QueryServer.portTypeQuery,
+                    QueryServer.portTypeReply);
+        } catch (IbisCreationFailedException e) {
+            throw new IOException("Could not create the query Ibis: " + e);
+        }
+        reply = ibis.createReceivePort(QueryServer.portTypeReply, "reply");
+        reply.enableConnections();
+
+        /* rank 0 tells how many members there are */
+        members = new SendPort[1];
+        members[0] = connect(0);
+        int size = ask(0, QueryServer.INFO, 0).size;
+
+        SendPort first = members[0];
+        members = new SendPort[size];
+        members[0] = first;
+        for (int r = 1; r < size; r++) {
+            members[r] = connect(r);
+        }
+    }
+
+    private SendPort connect(int rank) throws IOException {
+        IbisIdentifier id = ibis.registry().getElectionResult(
+                group + "query" + rank);
+        SendPort s = ibis.createSendPort(QueryServer.portTypeQuery);
+        s.connect(id, "query");
+        return s;
+    }
+
+    private void send(int rank, int kind, int argument) throws IOException {
+        WriteMessage m = members[rank].newMessage();
+        m.writeInt(kind);
+        m.writeInt(argument);
+        m.writeString(reply.name());
+        m.finish();
+    }
+
+    private QueryServer.Query receive(int kind) throws IOException {
+        ReadMessage m = reply.receive();
+        QueryServer.Query q = new QueryServer.Query(kind, 0);
+        q.rank = m.readInt();
+        q.size = m.readInt();
+        q.N = m.readInt();
+        q.nrhs = m.readInt();
+        q.lb = m.readInt();
+        q.ub = m.readInt();
+        q.iteration = m.readLong();
+        q.maxdiff = m.readDouble();
+        q.values = new double[m.readInt()];
+        m.readArray(q.values);
+        m.finish();
+        return q;
+    }
+
+    private QueryServer.Query ask(int rank, int kind, int argument)
+            throws IOException {
+        send(rank, kind, argument);
+        return receive(kind);
+    }
+
+    /**
+     * Sends the query to all members, and collects the answers by rank.
+     */
+    private QueryServer.Query[] askAll(int kind, int argument)
+            throws IOException {
+        for (int r = 0; r < members.length; r++) {
+            send(r, kind, argument);
+        }
+        QueryServer.Query[] all = new QueryServer.Query[members.length];
+        for (int r = 0; r < members.length; r++) {
+            QueryServer.Query q = receive(kind);
+            all[q.rank] = q;
+        }
+        answers = all;
+        return all;
+    }
+
+    /**
+     * Returns for each member: its rows, the iteration and the maxdiff of
+     * the last iteration.
+     */
+    public String status() throws IOException {
+        QueryServer.Query[] all = askAll(QueryServer.INFO, 0);
+        StringBuffer s = new StringBuffer();
+        for (int r = 0; r < all.length; r++) {
+            s.append(r + ": rows " + all[r].lb + " ... " + (all[r].ub - 1)
+                    + ", iteration " + all[r].iteration + ", maxdiff "
+                    + all[r].maxdiff + "\n");
+        }
+        return s.toString();
+    }
+
+    /**
+     * Returns row <code>i</code> of the grid, interleaved as in
+     * SOR.getGrid().
+     */
+    public double[] row(int i) throws IOException {
+        QueryServer.Query[] all = askAll(QueryServer.ROW, i);
+        for (int r = 0; r < all.length; r++) {
+            if (all[r].values.length > 0) {
+                return all[r].values;
+            }
+        }
+        throw new IllegalArgumentException("No member has row " + i);
+    }
+
+    /**
+     * Returns every <code>step</code>-th row and column of the grid (of
+     * problem 0 in block mode), including row and column 0.
+     */
+    public double[][] downsample(int step) throws IOException {
+        QueryServer.Query[] all = askAll(QueryServer.DOWNSAMPLE, step);
+        int N = all[0].N;
+        int cols = (N - 1) / step + 1;
+        double[][] grid = new double[cols][];
+        int row = 0;
+        for (int r = 0; r < all.length; r++) {
+            double[] v = all[r].values;
+            for (int k = 0; k < v.length; k += cols) {
+                grid[row] = new double[cols];
+                System.arraycopy(v, k, grid[row], 0, cols);
+                row++;
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Returns the maximum residual over the grid. The members compute it
+     * with the halo rows that they last received, so it is approximate at
+     * the stripe borders.
+     */
+    public double residual() throws IOException {
+        QueryServer.Query[] all = askAll(QueryServer.RESIDUAL, 0);
+        double max = 0.0;
+        for (int r = 0; r < all.length; r++) {
+            max = Math.max(max, all[r].values[0]);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the lowest and highest iteration in the last answers.
+     */
+    public long[] iterations() {
+        long[] range = { Long.MAX_VALUE, Long.MIN_VALUE };
+        for (int r = 0; answers != null && r < answers.length; r++) {
+            range[0] = Math.min(range[0], answers[r].iteration);
+            range[1] = Math.max(range[1], answers[r].iteration);
+        }
+        return range;
+    }
+
+    public void end() throws IOException {
+        for (int r = 0; r < members.length; r++) {
+            members[r].close();
+        }
+        reply.close();
+        ibis.end();
+    }
+
+    private static void usage() {
+        System.out
+                .println("Usage: SORQuery <pool> [-group <name>] status | row <i> | downsample <step> | residual");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) {
+        String group = "";
+        int a = 1;
+        if (args.length > 2 && args[1].equals("-group")) {
+            group = args[2];
+            a = 3;
+        }
+        if (args.length < a + 1) {
+            usage();
+        }
+        try {
+            SORQuery q = new SORQuery(args[0], group);
+            if (args[a].equals("status")) {
+                System.out.print(q.status());
+            } else if (args[a].equals("row") && args.length > a + 1) {
+                double[] row = q.row(Integer.parseInt(args[a + 1]));
+                for (int j = 0; j < row.length; j++) {
+                    System.out.println(row[j]);
+                }
+            } else if (args[a].equals("downsample") && args.length > a + 1) {
+                double[][] grid = q.downsample(Integer.parseInt(args[a + 1]));
+                for (int i = 0; i < grid.length; i++) {
+                    StringBuffer s = new StringBuffer();
+                    for (int j = 0; j < grid[i].length; j++) {
+                        s.append(j == 0 ? "" : " ");
+                        s.append((float) grid[i][j]);
+                    }
+                    System.out.println(s);
+                }
+            } else if (args[a].equals("residual")) {
+                System.out.println(q.residual());
+            } else {
+                usage();
+            }
+            long[] it = q.iterations();
+            System.err.println("iterations " + it[0] + " ... " + it[1]);
+            q.end();
+        } catch (Exception e) {
+            System.out.println("Oops " + e);
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * SORStatistics.java
+ *
+ * The outcome of one SOR solve. The residuals are the maximum norm over the
+ * whole grid of laplace(u) - f, before and after the iterations; maxdiff is
+ * the largest update of a grid value in the last iteration.
+ */
+
+public class SORStatistics {
+
+    private final int iterations;
+
+    private final double maxdiff;
+
+    private final double initialResidual;
+
+    private final double residual;
+
+    private final double seconds;
+
+    private final boolean converged;
+
+    SORStatistics(int iterations, double maxdiff, double initialResidual,
+            double residual, double seconds, boolean converged) {
+        this.iterations = iterations;
+        this.maxdiff = maxdiff;
+        this.initialResidual = initialResidual;
+        this.residual = residual;
+        this.seconds = seconds;
+        this.converged = converged;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public double getMaxDiff() {
+        return maxdiff;
+    }
+
+    public double getInitialResidual() {
+        return initialResidual;
+    }
+
+    public double getResidual() {
+        return residual;
+    }
+
+    public double getSeconds() {
+        return seconds;
+    }
+
+    public boolean converged() {
+        return converged;
+    }
+
+    public String toString() {
+        return iterations + " iterations, maxdiff " + maxdiff + ", residual "
+                + initialResidual + " -> " + residual + ", " + seconds
+                + " sec." + (converged ? "" : " (not converged)");
+    }
+}
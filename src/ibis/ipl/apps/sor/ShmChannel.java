@@ -0,0 +1,159 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * ShmChannel.java
+ *
+ * A one-way channel for halo rows between two members on the same host:
+ * a ring of SLOTS rows in a memory-mapped file, normally in /dev/shm, so
+ * that a halo exchange is a copy into and out of shared memory.
+ *
+ * The file starts with two sequence numbers, each on its own cache line:
+ * the number of rows written, which only the writer updates, and the
+ * number of rows read, which only the reader updates. The writer fills
+ * slot (written % SLOTS) and then advances written; the reader waits
+ * until written has passed its own count, empties the slot and advances
+ * read. A full ring makes the writer wait. The members exchange halos in
+ * lock step, with at most two rows in flight per direction, so the ring
+ * is never full in practice.
+ *
+ * The rows and the sequence numbers are plain stores into the mapping.
+ * Their order is kept by the volatile accesses of barrier() between them,
+ * which HotSpot compiles to memory fences.
+ *
+ * The writer creates the file; a file of an earlier run with the same
+ * name is replaced. The reader must only open it once the writer has
+ * created it, which the members ensure by creating their channels before
+ * they enable connections to their neighbour ports.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+class ShmChannel {
+
+    static final int SLOTS = 4;
+
+    private static final int WRITTEN = 0;
+
+    private static final int READ = 64;
+
+    private static final int HEADER = 128;
+
+    private static volatile int barrier;
+
+    private final File file;
+
+    private final boolean writer;
+
+    private final int rowLength;
+
+    private MappedByteBuffer map;
+
+    private DoubleBuffer rows;
+
+    private long count; /* rows written or read by this side */
+
+    private ShmChannel(File file, boolean writer, int rowLength)
+            throws IOException {
+        this.file = file;
+        this.writer = writer;
+        this.rowLength = rowLength;
+
+        long size = HEADER + 8L * SLOTS * rowLength;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (writer) {
+                raf.setLength(size);
+            } else if (raf.length() != size) {
+                throw new IOException(file + " holds " + raf.length()
+                        + " bytes, not " + size);
+            }
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    size);
+        } finally {
+            raf.close();
+        }
+        /* both sides are on the same machine */
+        map.order(ByteOrder.nativeOrder());
+        map.position(HEADER);
+        rows = map.slice().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    /**
+     * Creates the channel for rows of <code>rowLength</code> doubles in
+     * <code>file</code>, for writing.
+     */
+    static ShmChannel create(File file, int rowLength) throws IOException {
+        file.delete();
+        if (!file.createNewFile()) {
+            throw new IOException("Cannot create " + file);
+        }
+        file.deleteOnExit();
+        return new ShmChannel(file, true, rowLength);
+    }
+
+    /**
+     * Opens the channel in <code>file</code> that the writer has created,
+     * for reading.
+     */
+    static ShmChannel open(File file, int rowLength) throws IOException {
+        if (!file.exists()) {
+            throw new IOException("No halo channel " + file);
+        }
+        return new ShmChannel(file, false, rowLength);
+    }
+
+    private static void barrier() {
+        barrier++;
+    }
+
+    /**
+     * Writes <code>values[0 ... n-1]</code> as the next row.
+     */
+    void write(double[] values, int n) {
+        while (count - map.getLong(READ) >= SLOTS) {
+            Thread.yield();
+        }
+        barrier();
+        rows.position((int) (count % SLOTS) * rowLength);
+        rows.put(values, 0, n);
+        barrier();
+        map.putLong(WRITTEN, ++count);
+    }
+
+    /**
+     * Reads the next row into <code>values[0 ... n-1]</code>.
+     */
+    void read(double[] values, int n) {
+        while (map.getLong(WRITTEN) <= count) {
+            Thread.yield();
+        }
+        barrier();
+        rows.position((int) (count % SLOTS) * rowLength);
+        rows.get(values, 0, n);
+        barrier();
+        map.putLong(READ, ++count);
+    }
+
+    void close() {
+        map = null;
+        rows = null;
+        if (writer) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Returns true if <code>dir</code> can hold channels.
+     */
+    static boolean available(File dir) {
+        return dir.isDirectory() && dir.canWrite();
+    }
+}
@@ -0,0 +1,60 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * Stencil.java
+ *
+ * A discretization of the operator of an SOR problem, other than the
+ * constant 5-point Laplacian that SOR has built in. Each subclass has its
+ * own sweep loop, so that the call site in SOR.compute() only ever sees one
+ * class and the JIT can inline the stencil into the loop.
+ *
+ * Like the built-in stencil, a sweep computes for each cell of the color
+ * the value gNew that satisfies the discrete equation given its
+ * neighbours, and moves the cell by omega * (gNew - g). The right-hand side
+ * is stored in f as the value that is subtracted from the weighted average
+ * of the neighbours; see rhs().
+ */
+
+abstract class Stencil {
+
+    final int ncol;
+
+    final double omega;
+
+    Stencil(int ncol, double omega) {
+        this.ncol = ncol;
+        this.omega = omega;
+    }
+
+    /**
+     * Returns the number of colors: cells of the same color are never
+     * neighbours, so a color can be updated in any order.
+     */
+    abstract int colors();
+
+    /**
+     * Updates the cells of <code>color</code> in rows <code>lb ...
+     * ub-1</code>, and returns the largest update.
+     *
+     * @param a the coefficient rows lb-1 ... ub, or null for a constant
+     *        stencil
+     * @param f the right-hand side as returned by rhs(), or null
+     */
+    abstract double sweep(double[][] g, double[][] a, double[][] f,
+            int color, int lb, int ub);
+
+    /**
+     * Returns the maximum over row <code>i</code> of |Lu - f|, with the
+     * grid distance <code>h</code>.
+     */
+    abstract double residual(double[][] g, double[][] a, double[][] f, int i,
+            double h);
+
+    /**
+     * Returns the value to store in f[i][j] for right-hand side
+     * <code>rhs</code>.
+     */
+    abstract double rhs(RightHandSide rhs, int i, int j, double h);
+}
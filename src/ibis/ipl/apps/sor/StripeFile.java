@@ -0,0 +1,140 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * StripeFile.java
+ *
+ * Out-of-core storage for the rows of an SOR stripe. The rows live in a
+ * temporary file that is memory-mapped in blocks of rows; the operating
+ * system pages them in and out. The rows are swept in order, so when the
+ * sweep enters a block, a read-ahead thread pages in the next one.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+class StripeFile implements Runnable {
+
+    private final int first;
+
+    private final int last;
+
+    private final int rowLength;
+
+    private final int blockRows;
+
+    private final File file;
+
+    private RandomAccessFile raf;
+
+    private MappedByteBuffer[] blocks;
+
+    private DoubleBuffer[] views;
+
+    private int current = -1; /* the block that the sweep is in */
+
+    private int next = -1; /* the block to read ahead, -1 if none */
+
+    private Thread reader;
+
+    /**
+     * Creates the storage for rows <code>first ... last-1</code> of
+     * <code>rowLength</code> doubles, in a temporary file in
+     * <code>dir</code>.
+     */
+    StripeFile(File dir, int first, int last, int rowLength, int blockRows)
+            throws IOException {
+        this.first = first;
+        this.last = last;
+        this.rowLength = rowLength;
+        this.blockRows = blockRows;
+
+        file = File.createTempFile("sor", ".stripe", dir);
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+
+        long rowBytes = 8L * rowLength;
+        int rows = last - first;
+        int nblocks = (rows + blockRows - 1) / blockRows;
+        blocks = new MappedByteBuffer[nblocks];
+        views = new DoubleBuffer[nblocks];
+        FileChannel channel = raf.getChannel();
+        for (int b = 0; b < nblocks; b++) {
+            int n = Math.min(blockRows, rows - b * blockRows);
+            blocks[b] = channel.map(FileChannel.MapMode.READ_WRITE, b
+                    * blockRows * rowBytes, n * rowBytes);
+            views[b] = blocks[b].asDoubleBuffer();
+        }
+
+        reader = new Thread(this, "SOR read-ahead");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    boolean contains(int row) {
+        return row >= first && row < last;
+    }
+
+    private DoubleBuffer seek(int row) {
+        int k = row - first;
+        int b = k / blockRows;
+        if (b != current) {
+            current = b;
+            if (b + 1 < blocks.length) {
+                readAhead(b + 1);
+            }
+        }
+        DoubleBuffer view = views[b];
+        view.position((k % blockRows) * rowLength);
+        return view;
+    }
+
+    void read(int row, double[] dst) {
+        seek(row).get(dst);
+    }
+
+    void write(int row, double[] src) {
+        seek(row).put(src);
+    }
+
+    private synchronized void readAhead(int b) {
+        next = b;
+        notifyAll();
+    }
+
+    public void run() {
+        while (true) {
+            MappedByteBuffer block;
+            synchronized (this) {
+                while (next < 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (blocks == null) {
+                    return;
+                }
+                block = blocks[next];
+                next = -1;
+            }
+            block.load();
+        }
+    }
+
+    void close() throws IOException {
+        reader.interrupt();
+        synchronized (this) {
+            blocks = null;
+            views = null;
+        }
+        raf.close();
+        file.delete();
+    }
+}
@@ -0,0 +1,175 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * Telemetry.java
+ *
+ * Records the time that an SOR member spends per iteration in each phase
+ * (compute, communicate, reduce, and the whole iteration) in histograms,
+ * and optionally writes a CSV line per pass:
+ *
+ *     iteration,iterations,maxdiff,compute_us,communicate_us,reduce_us,total_us
+ *
+ * where a pass is one iteration, or the iterations fused by the wavefront;
+ * the times are per iteration. At the end, the percentiles and totals of
+ * all members are gathered on rank 0 with one vector reduce, each member
+ * filling its own slots, and rank 0 prints them with the load imbalance of
+ * each phase.
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+
+class Telemetry {
+
+    static final int COMPUTE = 0;
+
+    static final int COMMUNICATE = 1;
+
+    static final int REDUCE = 2;
+
+    static final int TOTAL = 3;
+
+    private static final String[] PHASES = { "compute", "communicate",
+            "reduce", "iteration" };
+
+    /* the values that each member contributes per phase */
+    private static final int P50 = 0;
+
+    private static final int P99 = 1;
+
+    private static final int MAX = 2;
+
+    private static final int SUM = 3;
+
+    private static final int VALUES = 4;
+
+    private final Histogram[] phases = new Histogram[PHASES.length];
+
+    private PrintWriter csv;
+
+    /**
+     * @param csv the file to write the CSV lines to, or null
+     */
+    Telemetry(String csv) throws IOException {
+        for (int p = 0; p < phases.length; p++) {
+            phases[p] = new Histogram();
+        }
+        if (csv != null) {
+            this.csv = new PrintWriter(new BufferedWriter(new FileWriter(csv)));
+            this.csv.println("iteration,iterations,maxdiff,compute_us,"
+                    + "communicate_us,reduce_us,total_us");
+        }
+    }
+
+    /**
+     * Records a pass of <code>k</code> iterations, that ended with
+     * <code>iteration</code>. The times are in nanoseconds, for the
+     * whole pass.
+     */
+    void pass(int iteration, int k, double maxdiff, long compute,
+            long communicate, long reduce, long total) {
+        phases[COMPUTE].record(compute / k, k);
+        phases[COMMUNICATE].record(communicate / k, k);
+        phases[REDUCE].record(reduce / k, k);
+        phases[TOTAL].record(total / k, k);
+        if (csv != null) {
+            csv.println(iteration + "," + k + "," + maxdiff + ","
+                    + micros(compute / k) + "," + micros(communicate / k)
+                    + "," + micros(reduce / k) + "," + micros(total / k));
+        }
+    }
+
+    private static float micros(double nanos) {
+        return (float) (nanos / 1000.0);
+    }
+
+    /**
+     * Gathers the statistics of all members on rank 0, which prints them
+     * on <code>out</code>, and starts over. Must be called by all members.
+     */
+    void report(ReducerInterface reducer, int rank, int size, PrintStream out)
+            throws IOException {
+
+        int stride = PHASES.length * VALUES;
+        double[] v = new double[1 + size * stride];
+        v[0] = phases[TOTAL].count();
+        for (int p = 0; p < PHASES.length; p++) {
+            int o = 1 + rank * stride + p * VALUES;
+            v[o + P50] = phases[p].percentile(50.0);
+            v[o + P99] = phases[p].percentile(99.0);
+            v[o + MAX] = phases[p].max();
+            v[o + SUM] = phases[p].total();
+        }
+        if (size > 1) {
+            reducer.reduce(v);
+        }
+        reset();
+
+        if (rank != 0) {
+            return;
+        }
+
+        out.println("Telemetry over " + (long) v[0]
+                + " iterations, in microseconds per iteration:");
+        out.println("rank  phase         p50        p99        max");
+        for (int r = 0; r < size; r++) {
+            for (int p = 0; p < PHASES.length; p++) {
+                int o = 1 + r * stride + p * VALUES;
+                out.println(pad("" + r, 6) + pad(PHASES[p], 12)
+                        + pad("" + micros(v[o + P50]), 11)
+                        + pad("" + micros(v[o + P99]), 11)
+                        + micros(v[o + MAX]));
+            }
+        }
+
+        out.println("phase       p50 worst  p99 worst  imbalance  slowest");
+        for (int p = 0; p < PHASES.length; p++) {
+            double p50 = 0.0;
+            double p99 = 0.0;
+            double sum = 0.0;
+            double slowest = -1.0;
+            int straggler = 0;
+            for (int r = 0; r < size; r++) {
+                int o = 1 + r * stride + p * VALUES;
+                p50 = Math.max(p50, v[o + P50]);
+                p99 = Math.max(p99, v[o + P99]);
+                sum += v[o + SUM];
+                if (v[o + SUM] > slowest) {
+                    slowest = v[o + SUM];
+                    straggler = r;
+                }
+            }
+            /* the slowest member against the average member */
+            double imbalance = sum > 0.0 ? slowest * size / sum : 1.0;
+            out.println(pad(PHASES[p], 12) + pad("" + micros(p50), 11)
+                    + pad("" + micros(p99), 11)
+                    + pad("" + (float) imbalance, 11) + straggler);
+        }
+    }
+
+    private static String pad(String s, int width) {
+        StringBuffer b = new StringBuffer(s);
+        while (b.length() < width) {
+            b.append(' ');
+        }
+        return b.append(' ').toString();
+    }
+
+    void reset() {
+        for (int p = 0; p < phases.length; p++) {
+            phases[p].reset();
+        }
+    }
+
+    void close() {
+        if (csv != null) {
+            csv.close();
+            csv = null;
+        }
+    }
+}
@@ -18,7 +18,6 @@ import ibis.ipl.IbisIdentifier;
 import ibis.ipl.PortType;
 import ibis.ipl.ReadMessage;
 import ibis.ipl.ReceivePort;
-import ibis.ipl.Registry;
 import ibis.ipl.SendPort;
 import ibis.ipl.WriteMessage;
 import ibis.util.TypedProperties;
@@ -43,7 +42,24 @@ public class TreeReducer implements ReducerInterface {
 
     private int[] child = new int[2];
 
-    public TreeReducer(Ibis ibis, int rank, int size) throws IOException {
+    public TreeReducer(Ibis ibis, Group group) throws IOException {
+        this(ibis, group, null);
+    }
+
+    /**
+     * Creates the ports, but only queues their connections on
+     * <code>bootstrap</code>, to be made together with those of others.
+     * If <code>bootstrap</code> is null, they are made right away.
+     */
+    TreeReducer(Ibis ibis, Group group, Bootstrap bootstrap) throws IOException {
+
+        boolean connect = bootstrap == null;
+        if (connect) {
+            bootstrap = new Bootstrap();
+        }
+
+        int rank = group.getRank();
+        int size = group.size();
 
         PortType portTypeReduce = new PortType(PortType.SERIALIZATION_DATA,
                 PortType.CONNECTION_MANY_TO_ONE, PortType.COMMUNICATION_RELIABLE,
@@ -69,15 +85,13 @@ public class TreeReducer implements ReducerInterface {
             }
         }
 
-        Registry registry = ibis.registry();
-
         /* Create and connect ports for the reduce phase */
         if (children > 0) {
             reduceRreduce = new ReceivePort[2];
             for (int c = 0; c < 2; c++) {
                 if (child[c] != LEAF_NODE) {
                     reduceRreduce[c] = ibis.createReceivePort(portTypeReduce,
-                            "SOR" + c + "_reduceR");
+                            group.portName("SOR" + c + "_reduceR"));
                     reduceRreduce[c].enableConnections();
                 }
             }
@@ -85,28 +99,35 @@ public class TreeReducer implements ReducerInterface {
 
         if (parent != LEAF_NODE) {
             int childrank = rank - 2 * parent - 1;
-            reduceSreduce = ibis.createSendPort(portTypeReduce, "SORreduceS");
-            IbisIdentifier id = registry.getElectionResult("" + parent);
-            reduceSreduce.connect(id, "SOR" + childrank + "_reduceR");
+            reduceSreduce = ibis.createSendPort(portTypeReduce,
+                    group.portName("SORreduceS"));
+            IbisIdentifier id = group.getMember(parent);
+            bootstrap.connect(reduceSreduce, id,
+                    group.portName("SOR" + childrank + "_reduceR"));
         }
 
         /* Create and connect ports for the bcast phase */
         if (parent != LEAF_NODE) {
             reduceRbcast = ibis.createReceivePort(portTypeBroadcast,
-                    "SORreduceR");
+                    group.portName("SORreduceR"));
             reduceRbcast.enableConnections();
         }
 
         if (children > 0) {
-            reduceSbcast = ibis.createSendPort(portTypeBroadcast, "SORreduceSBC");
+            reduceSbcast = ibis.createSendPort(portTypeBroadcast,
+                    group.portName("SORreduceSBC"));
             for (int c = 0; c < 2; c++) {
                 if (child[c] != LEAF_NODE) {
-                    IbisIdentifier id = registry.getElectionResult("" + child[c]);
-                    reduceSbcast.connect(id, "SORreduceR");
+                    IbisIdentifier id = group.getMember(child[c]);
+                    bootstrap.connect(reduceSbcast, id,
+                            group.portName("SORreduceR"));
                 }
             }
         }
 
+        if (connect) {
+            bootstrap.connectAll();
+        }
     }
 
     public double reduce(double value) throws IOException {
@@ -138,6 +159,44 @@ public class TreeReducer implements ReducerInterface {
         return value;
     }
 
+    public double[] reduce(double[] values) throws IOException {
+
+        double[] temp = new double[values.length];
+
+        for (int c = 0; c < 2; c++) {
+            if (child[c] != LEAF_NODE) {
+                ReadMessage rm = reduceRreduce[c].receive();
+                rm.readArray(temp);
+                rm.finish();
+                max(values, temp);
+            }
+        }
+
+        if (parent != LEAF_NODE) {
+            WriteMessage wm = reduceSreduce.newMessage();
+            wm.writeArray(values);
+            wm.finish();
+
+            ReadMessage rm = reduceRbcast.receive();
+            rm.readArray(values);
+            rm.finish();
+        }
+
+        if (reduceSbcast != null) {
+            WriteMessage wm = reduceSbcast.newMessage();
+            wm.writeArray(values);
+            wm.finish();
+        }
+
+        return values;
+    }
+
+    private static void max(double[] values, double[] temp) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.max(values[i], temp[i]);
+        }
+    }
+
     public void end() throws IOException {
 
         if (reduceSreduce != null) {
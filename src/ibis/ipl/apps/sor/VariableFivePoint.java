@@ -0,0 +1,85 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * VariableFivePoint.java
+ *
+ * The 5-point stencil for div(a grad u) = f, with the coefficient on a
+ * face the average of a on the two cells it separates:
+ *
+ *     sum over N, S, E, W of a_face (u_nb - u) = h^2 f
+ *
+ * Red/black, like the constant stencil.
+ */
+
+class VariableFivePoint extends Stencil {
+
+    VariableFivePoint(int ncol, double omega) {
+        super(ncol, omega);
+    }
+
+    int colors() {
+        return 2;
+    }
+
+    double sweep(double[][] g, double[][] a, double[][] f, int color, int lb,
+            int ub) {
+        double maxdiff = 0.0;
+
+        for (int i = lb; i < ub; i++) {
+            double[] up = g[i - 1];
+            double[] row = g[i];
+            double[] down = g[i + 1];
+            double[] aUp = a[i - 1];
+            double[] aRow = a[i];
+            double[] aDown = a[i + 1];
+            double[] fi = f == null ? null : f[i];
+            for (int j = 1 + ((i + color) & 1); j < ncol - 1; j += 2) {
+                double ac = aRow[j];
+                double wN = ac + aUp[j];
+                double wS = ac + aDown[j];
+                double wW = ac + aRow[j - 1];
+                double wE = ac + aRow[j + 1];
+                double sum = wN * up[j] + wS * down[j] + wW * row[j - 1] + wE
+                        * row[j + 1];
+                if (fi != null) {
+                    sum -= 2.0 * fi[j];
+                }
+                double gNew = sum / (wN + wS + wW + wE);
+                double diff = Math.abs(gNew - row[j]);
+
+                if (diff > maxdiff) {
+                    maxdiff = diff;
+                }
+
+                row[j] += omega * (gNew - row[j]);
+            }
+        }
+
+        return maxdiff;
+    }
+
+    double residual(double[][] g, double[][] a, double[][] f, int i, double h) {
+        double max = 0.0;
+        double[] up = g[i - 1];
+        double[] row = g[i];
+        double[] down = g[i + 1];
+        for (int j = 1; j < ncol - 1; j++) {
+            double ac = a[i][j];
+            double r = ((ac + a[i - 1][j]) * (up[j] - row[j])
+                    + (ac + a[i + 1][j]) * (down[j] - row[j])
+                    + (ac + a[i][j - 1]) * (row[j - 1] - row[j])
+                    + (ac + a[i][j + 1]) * (row[j + 1] - row[j])) / 2.0;
+            if (f != null) {
+                r -= f[i][j];
+            }
+            max = Math.max(max, Math.abs(r));
+        }
+        return max / (h * h);
+    }
+
+    double rhs(RightHandSide rhs, int i, int j, double h) {
+        return h * h * rhs.value(i, j);
+    }
+}
@@ -0,0 +1,104 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * VariableNinePoint.java
+ *
+ * A 9-point stencil for div(a grad u) = f: 2/3 of the 5-point stencil of
+ * VariableFivePoint plus 1/3 of the same stencil rotated by 45 degrees,
+ * over the diagonals (distance h sqrt(2)):
+ *
+ *     2/3 sum over N, S, E, W of a_face (u_nb - u)
+ *         + 1/6 sum over NE, NW, SE, SW of a_diag (u_nb - u) = h^2 f
+ *
+ * For constant a, this is the Mehrstellen stencil of NinePoint. Like that
+ * one, it needs four colors.
+ */
+
+class VariableNinePoint extends Stencil {
+
+    private static final double FACE = 2.0 / 3.0;
+
+    private static final double DIAG = 1.0 / 6.0;
+
+    VariableNinePoint(int ncol, double omega) {
+        super(ncol, omega);
+    }
+
+    int colors() {
+        return 4;
+    }
+
+    double sweep(double[][] g, double[][] a, double[][] f, int color, int lb,
+            int ub) {
+        double maxdiff = 0.0;
+
+        for (int i = lb + ((lb + (color >> 1)) & 1); i < ub; i += 2) {
+            double[] up = g[i - 1];
+            double[] row = g[i];
+            double[] down = g[i + 1];
+            double[] aUp = a[i - 1];
+            double[] aRow = a[i];
+            double[] aDown = a[i + 1];
+            double[] fi = f == null ? null : f[i];
+            for (int j = 2 - (color & 1); j < ncol - 1; j += 2) {
+                double ac = aRow[j];
+                double wN = FACE * (ac + aUp[j]);
+                double wS = FACE * (ac + aDown[j]);
+                double wW = FACE * (ac + aRow[j - 1]);
+                double wE = FACE * (ac + aRow[j + 1]);
+                double wNW = DIAG * (ac + aUp[j - 1]);
+                double wNE = DIAG * (ac + aUp[j + 1]);
+                double wSW = DIAG * (ac + aDown[j - 1]);
+                double wSE = DIAG * (ac + aDown[j + 1]);
+                double sum = wN * up[j] + wS * down[j] + wW * row[j - 1] + wE
+                        * row[j + 1] + wNW * up[j - 1] + wNE * up[j + 1]
+                        + wSW * down[j - 1] + wSE * down[j + 1];
+                if (fi != null) {
+                    sum -= 2.0 * fi[j];
+                }
+                double gNew = sum
+                        / (wN + wS + wW + wE + wNW + wNE + wSW + wSE);
+                double diff = Math.abs(gNew - row[j]);
+
+                if (diff > maxdiff) {
+                    maxdiff = diff;
+                }
+
+                row[j] += omega * (gNew - row[j]);
+            }
+        }
+
+        return maxdiff;
+    }
+
+    double residual(double[][] g, double[][] a, double[][] f, int i, double h) {
+        double max = 0.0;
+        double[] up = g[i - 1];
+        double[] row = g[i];
+        double[] down = g[i + 1];
+        for (int j = 1; j < ncol - 1; j++) {
+            double ac = a[i][j];
+            double u = row[j];
+            double r = FACE * ((ac + a[i - 1][j]) * (up[j] - u)
+                    + (ac + a[i + 1][j]) * (down[j] - u)
+                    + (ac + a[i][j - 1]) * (row[j - 1] - u)
+                    + (ac + a[i][j + 1]) * (row[j + 1] - u))
+                    + DIAG * ((ac + a[i - 1][j - 1]) * (up[j - 1] - u)
+                    + (ac + a[i - 1][j + 1]) * (up[j + 1] - u)
+                    + (ac + a[i + 1][j - 1]) * (down[j - 1] - u)
+                    + (ac + a[i + 1][j + 1]) * (down[j + 1] - u));
+            r /= 2.0;
+            if (f != null) {
+                r -= f[i][j];
+            }
+            max = Math.max(max, Math.abs(r));
+        }
+        return max / (h * h);
+    }
+
+    double rhs(RightHandSide rhs, int i, int j, double h) {
+        return h * h * rhs.value(i, j);
+    }
+}
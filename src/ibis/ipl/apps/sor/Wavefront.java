@@ -0,0 +1,175 @@
+package ibis.ipl.apps.sor;
+
+/* $Id$ */
+
+/**
+ * Wavefront.java
+ *
+ * Temporal blocking of the red/black sweep. Half-sweep h updates the cells
+ * of color (color + h) % 2 from their four neighbours, which were last
+ * updated by half-sweep h-1. So half-sweep h can update row r as soon as
+ * half-sweep h-1 has updated rows r-1, r and r+1. A wavefront of rows
+ * runs through the stripe, with half-sweep h one row behind half-sweep
+ * h-1, and every row is visited for all half-sweeps while it is near the
+ * front. The values are identical to those of one half-sweep at a time.
+ *
+ * Without a halo exchange between the half-sweeps, half-sweep h can only
+ * update rows lb+h ... ub-h-1: a trapezoid. The triangles at the borders
+ * are filled in by the caller afterwards, one half-sweep at a time, with
+ * the usual halo exchange before each.
+ *
+ * If the stripe is in memory, the columns are also cut into tiles, so that
+ * the rows near the front fit in the cache. The tiles are skewed: in tile
+ * [c0, c1), half-sweep h updates the columns c0-h ... c1-h-1, so it only
+ * needs the columns of half-sweep h-1 in the same tile and in the tiles
+ * to its left.
+ *
+ * If the stripe is out of core, the rows that are not resident in g are
+ * read from the StripeFile when the front reaches them, and written back
+ * when the last half-sweep has passed. The rows are not cut into tiles
+ * then, which would page them in once per tile.
+ */
+
+class Wavefront {
+
+    private final int ncol;
+
+    private final int k; /* values per cell */
+
+    private final double omega;
+
+    private final StripeFile stripe; /* null if all rows are resident */
+
+    private final int cache; /* bytes of the rows near the front */
+
+    private double[][] free;
+
+    private int nfree;
+
+    Wavefront(int ncol, int k, double omega, StripeFile stripe, int cache) {
+        this.ncol = ncol;
+        this.k = k;
+        this.omega = omega;
+        this.stripe = stripe;
+        this.cache = cache;
+    }
+
+    /**
+     * Performs <code>levels</code> half-sweeps on the trapezoid, starting
+     * with color <code>color</code>. The largest update of half-sweep h is
+     * merged into <code>diff[h]</code>. If <code>checkpoint</code> is not
+     * null, each row is preserved before it is updated.
+     */
+    void trapezoid(double[][] g, double[][] f, int lb, int ub, int color,
+            int levels, double[] diff, GridFile checkpoint) {
+
+        int width = ncol;
+        if (stripe != null) {
+            if (free == null || free.length < levels + 2) {
+                free = new double[levels + 2][k * ncol];
+                nfree = free.length;
+            }
+        } else {
+            width = Math.max(16, cache / (8 * k * (levels + 2)));
+        }
+
+        for (int c0 = 1; c0 < ncol - 1; c0 += width) {
+            int c1 = c0 + width;
+            boolean lastTile = c1 >= ncol - 1;
+
+            int entered = lb - 1; /* the last row that is present */
+
+            for (int s = 0; s < ub - lb + levels; s++) {
+                /* half-sweep 0 of row lb+s reads row lb+s+1 */
+                while (entered < Math.min(ub, lb + s + 1)) {
+                    enter(g, ++entered);
+                }
+
+                for (int h = 0; h < levels; h++) {
+                    int row = lb + s - h;
+                    if (row < lb + h) {
+                        break;
+                    }
+                    if (row < ub - h) {
+                        if (checkpoint != null) {
+                            checkpoint.preserve(row);
+                        }
+                        double d = row(g, f == null ? null : f[row], row,
+                                (color + h) & 1, Math.max(1, c0 - h),
+                                lastTile ? ncol - 1 : c1 - h);
+                        if (d > diff[h]) {
+                            diff[h] = d;
+                        }
+                    }
+                }
+
+                /* the last half-sweep has passed row lb+s-levels */
+                int done = lb + s - levels;
+                if (done >= lb) {
+                    leave(g, done);
+                }
+            }
+        }
+    }
+
+    private void enter(double[][] g, int row) {
+        if (stripe != null && stripe.contains(row)) {
+            double[] r = free[--nfree];
+            stripe.read(row, r);
+            g[row] = r;
+        }
+    }
+
+    private void leave(double[][] g, int row) {
+        if (stripe != null && stripe.contains(row)) {
+            stripe.write(row, g[row]);
+            free[nfree++] = g[row];
+            g[row] = null;
+        }
+    }
+
+    /**
+     * Updates the cells of <code>color</code> in columns <code>lo ...
+     * hi-1</code> of row <code>i</code>, with the same arithmetic as
+     * SOR.compute().
+     */
+    private double row(double[][] g, double[] fi, int i, int color, int lo,
+            int hi) {
+        double maxdiff = 0.0;
+        int d = (i + color) & 1;
+        double[] up = g[i - 1];
+        double[] row = g[i];
+        double[] down = g[i + 1];
+        if (k == 1 && fi == null) {
+            /* the common case, as the first loop of SOR.compute() */
+            for (int j = lo + ((lo + 1 + d) & 1); j < hi; j += 2) {
+                double gNew = (up[j] + down[j] + row[j - 1] + row[j + 1]) / 4.0;
+                double diff = Math.abs(gNew - row[j]);
+
+                if (diff > maxdiff) {
+                    maxdiff = diff;
+                }
+
+                row[j] += omega * (gNew - row[j]);
+            }
+            return maxdiff;
+        }
+        for (int j = lo + ((lo + 1 + d) & 1); j < hi; j += 2) {
+            int end = (j + 1) * k;
+            for (int c = j * k; c < end; c++) {
+                double gNew = (up[c] + down[c] + row[c - k] + row[c + k]) / 4.0;
+                if (fi != null) {
+                    gNew -= fi[c];
+                }
+                double diff = Math.abs(gNew - row[c]);
+
+                if (diff > maxdiff) {
+                    maxdiff = diff;
+                }
+
+                row[c] += omega * (gNew - row[c]);
+            }
+        }
+        return maxdiff;
+    }
+}